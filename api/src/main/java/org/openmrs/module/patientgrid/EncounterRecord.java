@@ -0,0 +1,66 @@
+package org.openmrs.module.patientgrid;
+
+/**
+ * An immutable projection of the encounter fields the grid columns are computed from, it is loaded
+ * instead of the {@link org.openmrs.Encounter} entity to keep the session and the heap small for
+ * large periods.
+ */
+public final class EncounterRecord {
+	
+	private final int encounterId;
+	
+	private final int patientId;
+	
+	private final long encounterDatetime;
+	
+	private final Integer locationId;
+	
+	private final Integer formId;
+	
+	public EncounterRecord(int encounterId, int patientId, long encounterDatetime, Integer locationId, Integer formId) {
+		this.encounterId = encounterId;
+		this.patientId = patientId;
+		this.encounterDatetime = encounterDatetime;
+		this.locationId = locationId;
+		this.formId = formId;
+	}
+	
+	public int getEncounterId() {
+		return encounterId;
+	}
+	
+	public int getPatientId() {
+		return patientId;
+	}
+	
+	/**
+	 * @return the encounter datetime in milliseconds since the epoch
+	 */
+	public long getEncounterDatetime() {
+		return encounterDatetime;
+	}
+	
+	public Integer getLocationId() {
+		return locationId;
+	}
+	
+	public Integer getFormId() {
+		return formId;
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof EncounterRecord && ((EncounterRecord) o).encounterId == encounterId;
+	}
+	
+	@Override
+	public int hashCode() {
+		return Integer.hashCode(encounterId);
+	}
+	
+	@Override
+	public String toString() {
+		return "EncounterRecord{encounterId=" + encounterId + ", patientId=" + patientId + "}";
+	}
+	
+}
@@ -10,15 +10,19 @@ import org.openmrs.module.reporting.cohort.CohortUtil;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
 public class EvaluationContextPersistantCache extends EvaluationContext {
 	
+	private static final long NO_DATE = Long.MIN_VALUE;
+	
 	/**
-	 * Must be initialize at startup to be shared with child context.
+	 * Must be initialize at startup to be shared with child context, child contexts can be evaluated
+	 * concurrently see {@link org.openmrs.module.patientgrid.filter.ParallelCohortEvaluator}
 	 */
-	private transient Map<String, Object> persistentCache = new HashMap<>();
+	private transient Map<String, Object> persistentCache = new ConcurrentHashMap<>();
 	
 	public EvaluationContextPersistantCache() {
 	}
@@ -28,9 +32,9 @@ public class EvaluationContextPersistantCache extends EvaluationContext {
 		persistentCache = evaluationContextPersistantCache.persistentCache;
 	}
 	
-	public Object computeIfAbsent(EncounterType type, Function<EncounterType, ?> function) {
+	public <T> T computeIfAbsent(EncounterType type, Function<EncounterType, T> function) {
 		String key = function.getClass().getName() + "_" + type.getName();
-		Object res = getFromPersistentCache(key);
+		T res = (T) getFromPersistentCache(key);
 		if (res == null) {
 			res = function.apply(type);
 			addToPersistentCache(key, res);
@@ -48,12 +52,12 @@ public class EvaluationContextPersistantCache extends EvaluationContext {
 	 * @param functionClass
 	 * @return all cached data for this function cache.
 	 */
-	public List<Map> getAllCacheData(Class functionClass) {
-		List res = new ArrayList();
+	public <T> List<T> getAllCacheData(Class<? extends Function<EncounterType, T>> functionClass) {
+		List<T> res = new ArrayList<>();
 		String prefix = functionClass.getName() + "_";
 		getPersistentCache().entrySet().forEach(entry -> {
 			if (entry.getKey().startsWith(prefix)) {
-				res.add(entry.getValue());
+				res.add((T) entry.getValue());
 			}
 		});
 		return res;
@@ -85,37 +89,68 @@ public class EvaluationContextPersistantCache extends EvaluationContext {
 	}
 	
 	public void saveLatestEncDate(Integer patientId, Encounter value) {
-		HashMap<Integer, Date> patientDate = getPatientNewestDate();
-		Date currentDate = patientDate.get(patientId);
-		if (currentDate == null || value.getEncounterDatetime().after(currentDate)) {
-			patientDate.put(patientId, value.getEncounterDatetime());
+		saveLatestEncDate(patientId, value.getEncounterDatetime());
+	}
+	
+	public void saveLatestEncDate(Integer patientId, Date encounterDatetime) {
+		IntLongMap patientNewestDate = getPatientNewestDate();
+		synchronized (patientNewestDate) {
+			patientNewestDate.putIfGreater(patientId, encounterDatetime.getTime());
 		}
 	}
 	
-	private HashMap<Integer, Date> getPatientNewestDate() {
-		HashMap<Integer, Date> patientDate = (HashMap<Integer, Date>) persistentCache.computeIfAbsent("patientDate",
-		    s -> new HashMap<Integer, Date>());
-		return patientDate;
+	/**
+	 * The latest encounter dates are kept as epoch milliseconds in a primitive map, child contexts
+	 * evaluated concurrently must synchronize on it
+	 */
+	private IntLongMap getPatientNewestDate() {
+		return (IntLongMap) persistentCache.computeIfAbsent("patientDate", s -> new IntLongMap());
 	}
 	
 	Date getLatestEncounterDate(Integer patientId) {
-		return getPatientNewestDate().get(patientId);
+		IntLongMap patientNewestDate = getPatientNewestDate();
+		synchronized (patientNewestDate) {
+			return patientNewestDate.containsKey(patientId) ? new Date(patientNewestDate.get(patientId, NO_DATE)) : null;
+		}
 	}
 	
 	/**
+	 * Sorts the patients in the base cohort from the newest to the oldest latest encounter date, ties
+	 * are broken by patient id and the patients without any encounter come last. When a limit is
+	 * specified only the newest patients are kept using a heap bounded to the limit so that the
+	 * truncated cohort is the same across evaluations.
+	 *
 	 * @param limit the max number of rows. if -1 no limit
 	 */
 	public void limitAndSortCohortBasedOnEncounterDate(int limit) {
-		Cohort baseCohort = getBaseCohort();
-		HashMap<Integer, Date> patientNewestDate = getPatientNewestDate();
-		Cohort cohort = new Cohort();
-		for (CohortMembership member : baseCohort.getMemberships()) {
-			cohort.addMembership(new CohortMembership(member.getPatientId(), patientNewestDate.get(member.getPatientId())));
+		IntLongMap patientNewestDate = getPatientNewestDate();
+		//Patients without a date come last since NO_DATE is smaller than any date
+		Comparator<Integer> newestFirst = (patientId1, patientId2) -> {
+			int result = Long.compare(patientNewestDate.get(patientId2, NO_DATE),
+			    patientNewestDate.get(patientId1, NO_DATE));
+			return result != 0 ? result : patientId1.compareTo(patientId2);
+		};
+		List<Integer> patientIds;
+		Collection<CohortMembership> memberships = getBaseCohort().getMemberships();
+		if (limit > 0 && limit < memberships.size()) {
+			//The head of the heap is the oldest of the patients kept so far
+			PriorityQueue<Integer> heap = new PriorityQueue<>(limit + 1, newestFirst.reversed());
+			for (CohortMembership member : memberships) {
+				heap.offer(member.getPatientId());
+				if (heap.size() > limit) {
+					heap.poll();
+				}
+			}
+			patientIds = new ArrayList<>(heap);
+		} else {
+			patientIds = memberships.stream().map(CohortMembership::getPatientId).collect(Collectors.toList());
 		}
-		if (limit > 0 && limit < cohort.size()) {
-			List<CohortMembership> collect = cohort.getMemberships().stream().limit(limit).collect(Collectors.toList());
-			cohort = new Cohort();
-			cohort.setMemberships(collect);
+		
+		patientIds.sort(newestFirst);
+		Cohort cohort = new Cohort();
+		for (Integer patientId : patientIds) {
+			long date = patientNewestDate.get(patientId, NO_DATE);
+			cohort.addMembership(new CohortMembership(patientId, date == NO_DATE ? null : new Date(date)));
 		}
 		setBaseCohort(cohort);
 	}
@@ -1,5 +1,8 @@
 package org.openmrs.module.patientgrid;
 
+import java.util.List;
+import java.util.Map;
+
 import org.openmrs.module.patientgrid.period.DateRange;
 import org.openmrs.module.reporting.dataset.SimpleDataSet;
 
@@ -50,6 +53,25 @@ public class ExtendedDataSet {
 	 */
 	private String xstreamVersion = LAST_XSTREAM_VERSION;
 	
+	/**
+	 * Only set for a report shared across users, the ids of the locations each patient is mapped to
+	 * keyed by the patient uuid and ordered like the evaluated cohort, it is used to project the rows
+	 * visible to each user.
+	 */
+	private Map<String, List<String>> patientLocations;
+	
+	/**
+	 * true if this dataset is the view of a user projected from a shared report, it is never cached
+	 * itself
+	 */
+	private transient boolean sharedView;
+	
+	/**
+	 * true if this dataset is an obsolete report served from the cache while it is recomputed in the
+	 * background, it is never cached itself
+	 */
+	private transient boolean stale;
+	
 	public ExtendedDataSet() {
 	}
 	
@@ -120,4 +142,29 @@ public class ExtendedDataSet {
 	public String getXstreamVersion() {
 		return xstreamVersion;
 	}
+	
+	public Map<String, List<String>> getPatientLocations() {
+		return patientLocations;
+	}
+	
+	public void setPatientLocations(Map<String, List<String>> patientLocations) {
+		this.patientLocations = patientLocations;
+	}
+	
+	public boolean isSharedView() {
+		return sharedView;
+	}
+	
+	public void setSharedView(boolean sharedView) {
+		this.sharedView = sharedView;
+	}
+	
+	public boolean isStale() {
+		return stale;
+	}
+	
+	public void setStale(boolean stale) {
+		this.stale = stale;
+	}
+	
 }
@@ -0,0 +1,148 @@
+package org.openmrs.module.patientgrid;
+
+import java.util.Arrays;
+
+/**
+ * An open addressing hash map of int keys to long values backed by primitive arrays, it is used for
+ * the per patient evaluation state of large cohorts e.g. the latest encounter date of each patient
+ * as epoch milliseconds, so that no key, value or entry object is allocated per patient. This class
+ * is not thread safe.
+ */
+public class IntLongMap {
+	
+	private static final int DEFAULT_CAPACITY = 16;
+	
+	private static final float LOAD_FACTOR = 0.5f;
+	
+	private int[] keys;
+	
+	private long[] values;
+	
+	private boolean[] used;
+	
+	private int size;
+	
+	public IntLongMap() {
+		this(DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * @param expectedSize the expected number of entries
+	 */
+	public IntLongMap(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(DEFAULT_CAPACITY, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+		keys = new int[capacity];
+		values = new long[capacity];
+		used = new boolean[capacity];
+	}
+	
+	/**
+	 * Gets the value mapped to the specified key
+	 *
+	 * @param key the key
+	 * @param defaultValue the value to return if the key is not mapped
+	 * @return the value or the default value
+	 */
+	public long get(int key, long defaultValue) {
+		int index = indexOf(key);
+		return used[index] ? values[index] : defaultValue;
+	}
+	
+	public boolean containsKey(int key) {
+		return used[indexOf(key)];
+	}
+	
+	/**
+	 * Maps the specified key to the specified value
+	 *
+	 * @param key the key
+	 * @param value the value
+	 */
+	public void put(int key, long value) {
+		int index = indexOf(key);
+		if (!used[index]) {
+			insert(index, key, value);
+			return;
+		}
+		
+		values[index] = value;
+	}
+	
+	/**
+	 * Maps the specified key to the specified value unless it is already mapped to a greater value
+	 *
+	 * @param key the key
+	 * @param value the value
+	 */
+	public void putIfGreater(int key, long value) {
+		int index = indexOf(key);
+		if (!used[index]) {
+			insert(index, key, value);
+		} else if (value > values[index]) {
+			values[index] = value;
+		}
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	public void clear() {
+		Arrays.fill(used, false);
+		size = 0;
+	}
+	
+	private void insert(int index, int key, long value) {
+		keys[index] = key;
+		values[index] = value;
+		used[index] = true;
+		size++;
+		if (size > keys.length * LOAD_FACTOR) {
+			resize();
+		}
+	}
+	
+	/**
+	 * Gets the slot of the specified key using linear probing, it is either the slot holding the key or
+	 * the first free slot
+	 */
+	private int indexOf(int key) {
+		int mask = keys.length - 1;
+		int index = mix(key) & mask;
+		while (used[index] && keys[index] != key) {
+			index = (index + 1) & mask;
+		}
+		
+		return index;
+	}
+	
+	private void resize() {
+		int[] oldKeys = keys;
+		long[] oldValues = values;
+		boolean[] oldUsed = used;
+		keys = new int[oldKeys.length << 1];
+		values = new long[oldKeys.length << 1];
+		used = new boolean[oldKeys.length << 1];
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldUsed[i]) {
+				int index = indexOf(oldKeys[i]);
+				keys[index] = oldKeys[i];
+				values[index] = oldValues[i];
+				used[index] = true;
+			}
+		}
+	}
+	
+	/**
+	 * Spreads the bits of sequential ids like patient ids across the table
+	 */
+	private static int mix(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+}
@@ -0,0 +1,156 @@
+package org.openmrs.module.patientgrid;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An open addressing hash map of int keys to object values backed by arrays, it is used for the per
+ * patient and per encounter evaluation state of large cohorts e.g. the latest encounter record of
+ * each patient kept in the function caches, so that no boxed key or entry object is allocated per
+ * patient, see {@link IntLongMap}. This class is not thread safe, a map must be fully populated
+ * before it is shared.
+ */
+public class IntObjectMap<V> {
+	
+	private static final int DEFAULT_CAPACITY = 16;
+	
+	private static final float LOAD_FACTOR = 0.5f;
+	
+	private int[] keys;
+	
+	private Object[] values;
+	
+	private boolean[] used;
+	
+	private int size;
+	
+	/**
+	 * Receives the entries of a map, see {@link #forEach(EntryConsumer)}
+	 */
+	public interface EntryConsumer<V> {
+		
+		void accept(int key, V value);
+		
+	}
+	
+	public IntObjectMap() {
+		this(DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * @param expectedSize the expected number of entries
+	 */
+	public IntObjectMap(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(DEFAULT_CAPACITY, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+		keys = new int[capacity];
+		values = new Object[capacity];
+		used = new boolean[capacity];
+	}
+	
+	/**
+	 * Gets the value mapped to the specified key
+	 *
+	 * @param key the key
+	 * @return the value or null if the key is not mapped
+	 */
+	public V get(int key) {
+		int index = indexOf(key);
+		return used[index] ? (V) values[index] : null;
+	}
+	
+	public boolean containsKey(int key) {
+		return used[indexOf(key)];
+	}
+	
+	/**
+	 * Maps the specified key to the specified value
+	 *
+	 * @param key the key
+	 * @param value the value
+	 */
+	public void put(int key, V value) {
+		int index = indexOf(key);
+		if (used[index]) {
+			values[index] = value;
+			return;
+		}
+		
+		keys[index] = key;
+		values[index] = value;
+		used[index] = true;
+		size++;
+		if (size > keys.length * LOAD_FACTOR) {
+			resize();
+		}
+	}
+	
+	/**
+	 * Passes each entry of this map to the specified consumer
+	 *
+	 * @param consumer the consumer
+	 */
+	public void forEach(EntryConsumer<V> consumer) {
+		for (int i = 0; i < keys.length; i++) {
+			if (used[i]) {
+				consumer.accept(keys[i], (V) values[i]);
+			}
+		}
+	}
+	
+	/**
+	 * @return a list of the values of this map
+	 */
+	public List<V> values() {
+		List<V> list = new ArrayList<>(size);
+		forEach((key, value) -> list.add(value));
+		return list;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	/**
+	 * Gets the slot of the specified key using linear probing, it is either the slot holding the key or
+	 * the first free slot
+	 */
+	private int indexOf(int key) {
+		int mask = keys.length - 1;
+		int index = mix(key) & mask;
+		while (used[index] && keys[index] != key) {
+			index = (index + 1) & mask;
+		}
+		
+		return index;
+	}
+	
+	private void resize() {
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		boolean[] oldUsed = used;
+		keys = new int[oldKeys.length << 1];
+		values = new Object[oldKeys.length << 1];
+		used = new boolean[oldKeys.length << 1];
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldUsed[i]) {
+				int index = indexOf(oldKeys[i]);
+				keys[index] = oldKeys[i];
+				values[index] = oldValues[i];
+				used[index] = true;
+			}
+		}
+	}
+	
+	/**
+	 * Spreads the bits of sequential ids like patient ids across the table
+	 */
+	private static int mix(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+}
@@ -0,0 +1,163 @@
+package org.openmrs.module.patientgrid;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.hibernate.SessionFactory;
+import org.openmrs.Concept;
+import org.openmrs.Obs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the top level obs of a set of encounters for the concepts of the obs columns of a grid,
+ * indexed by encounter and concept so that each cell is looked up in constant time. The obs are
+ * loaded in chunks of encounters with a single query per chunk instead of initializing the obs
+ * collection of each encounter. As in {@link PatientGridUtils#getObsByConcept(org.openmrs.Encounter, Concept)},
+ * voided obs, obs in a group and obs having group members are ignored and no obs is returned for an
+ * encounter with multiple obs for the same concept. The obs ids can be indexed in another thread
+ * than the one evaluating the columns, the obs entities are then loaded by id in the session of the
+ * evaluating thread, see {@link #resolve(SessionFactory)}.
+ */
+public class ObsIndex {
+	
+	private static final Logger log = LoggerFactory.getLogger(ObsIndex.class);
+	
+	protected static final int CHUNK_SIZE = 1000;
+	
+	private static final String QUERY = "select o.obsId, o.encounter.encounterId, o.concept.conceptId from Obs o "
+	        + "where o.encounter.encounterId in (:encounterIds) and o.concept.conceptId in (:conceptIds) and "
+	        + "o.voided = false and o.obsGroup is null and not exists (select m.obsId from Obs m where m.obsGroup = o)";
+	
+	private static final String RESOLVE_QUERY = "select o from Obs o where o.obsId in (:obsIds)";
+	
+	private final Set<Integer> conceptIds;
+	
+	private final Set<Integer> loadedEncounterIds = new HashSet<>();
+	
+	private final Map<Long, Integer> encounterAndConceptObsIds = new HashMap<>();
+	
+	private final Map<Integer, Obs> obsById = new HashMap<>();
+	
+	/**
+	 * Keys of the encounter and concept pairs with multiple obs
+	 */
+	private final Set<Long> multipleObsKeys = new HashSet<>();
+	
+	public ObsIndex(Collection<Concept> concepts) {
+		conceptIds = concepts.stream().map(Concept::getConceptId).collect(Collectors.toSet());
+	}
+	
+	/**
+	 * Loads the obs of the specified encounters which are not yet loaded
+	 *
+	 * @param sf the session factory
+	 * @param encounterIds the encounter ids
+	 */
+	public void load(SessionFactory sf, Collection<Integer> encounterIds) {
+		loadIds(sf, encounterIds);
+		resolve(sf);
+	}
+	
+	/**
+	 * Indexes the ids of the obs of the specified encounters which are not yet loaded without loading
+	 * the obs entities
+	 *
+	 * @param sf the session factory
+	 * @param encounterIds the encounter ids
+	 */
+	public void loadIds(SessionFactory sf, Collection<Integer> encounterIds) {
+		List<Integer> toLoad = encounterIds.stream().filter(id -> !loadedEncounterIds.contains(id)).distinct()
+		        .collect(Collectors.toList());
+		if (toLoad.isEmpty() || conceptIds.isEmpty()) {
+			return;
+		}
+		
+		log.debug("Loading obs for {} encounters and {} concepts", toLoad.size(), conceptIds.size());
+		
+		for (int i = 0; i < toLoad.size(); i += CHUNK_SIZE) {
+			List<Integer> chunk = new ArrayList<>(toLoad.subList(i, Math.min(i + CHUNK_SIZE, toLoad.size())));
+			List<Object[]> rows = sf.getCurrentSession().createQuery(QUERY).setParameterList("encounterIds", chunk)
+			        .setParameterList("conceptIds", conceptIds).list();
+			rows.forEach(row -> add((Integer) row[0], (Integer) row[1], (Integer) row[2]));
+			loadedEncounterIds.addAll(chunk);
+		}
+	}
+	
+	/**
+	 * Loads the indexed obs entities which are not yet loaded in the current session
+	 *
+	 * @param sf the session factory
+	 */
+	public void resolve(SessionFactory sf) {
+		List<Integer> toResolve = encounterAndConceptObsIds.values().stream().filter(id -> !obsById.containsKey(id))
+		        .collect(Collectors.toList());
+		for (int i = 0; i < toResolve.size(); i += CHUNK_SIZE) {
+			List<Integer> chunk = new ArrayList<>(toResolve.subList(i, Math.min(i + CHUNK_SIZE, toResolve.size())));
+			List<Obs> obsList = sf.getCurrentSession().createQuery(RESOLVE_QUERY).setParameterList("obsIds", chunk)
+			        .list();
+			obsList.forEach(obs -> obsById.put(obs.getObsId(), obs));
+		}
+	}
+	
+	protected void add(Obs obs) {
+		if (add(obs.getObsId(), obs.getEncounter().getEncounterId(), obs.getConcept().getConceptId())) {
+			obsById.put(obs.getObsId(), obs);
+		}
+	}
+	
+	private boolean add(Integer obsId, Integer encounterId, Integer conceptId) {
+		long key = toKey(encounterId, conceptId);
+		if (multipleObsKeys.contains(key)) {
+			return false;
+		}
+		
+		if (encounterAndConceptObsIds.containsKey(key)) {
+			log.debug("Multi obs answer not yet supported. No data will be returned for encounter {} and concept {}",
+			    encounterId, conceptId);
+			encounterAndConceptObsIds.remove(key);
+			multipleObsKeys.add(key);
+			return false;
+		}
+		
+		encounterAndConceptObsIds.put(key, obsId);
+		return true;
+	}
+	
+	/**
+	 * Checks if the obs for the specified concept are loaded by this index
+	 *
+	 * @param concept the concept to check
+	 * @return true if the concept is indexed otherwise false
+	 */
+	public boolean covers(Concept concept) {
+		return conceptIds.contains(concept.getConceptId());
+	}
+	
+	/**
+	 * Gets the obs of the specified encounter for the specified concept
+	 *
+	 * @param encounterId the encounter id
+	 * @param concept the question concept
+	 * @return the obs or null if none or multiple exist
+	 */
+	public Obs get(Integer encounterId, Concept concept) {
+		if (encounterId == null || concept == null) {
+			return null;
+		}
+		
+		Integer obsId = encounterAndConceptObsIds.get(toKey(encounterId, concept.getConceptId()));
+		return obsId == null ? null : obsById.get(obsId);
+	}
+	
+	private static long toKey(int encounterId, int conceptId) {
+		return ((long) encounterId << 32) | (conceptId & 0xFFFFFFFFL);
+	}
+	
+}
@@ -1,18 +1,47 @@
 package org.openmrs.module.patientgrid;
 
 import org.openmrs.module.BaseModuleActivator;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.DaemonTokenAware;
+import org.openmrs.module.patientgrid.cache.DiskCache;
+import org.openmrs.module.patientgrid.cache.StaleReportRefresher;
+import org.openmrs.module.patientgrid.filter.ParallelCohortEvaluator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class PatientGridActivator extends BaseModuleActivator {
+public class PatientGridActivator extends BaseModuleActivator implements DaemonTokenAware {
 	
 	private static final Logger log = LoggerFactory.getLogger(PatientGridActivator.class);
 	
+	private static DaemonToken daemonToken;
+	
+	/**
+	 * @see DaemonTokenAware#setDaemonToken(DaemonToken)
+	 */
+	@Override
+	public void setDaemonToken(DaemonToken token) {
+		daemonToken = token;
+	}
+	
+	/**
+	 * @return the token used to run tasks in a daemon thread, null if the module is not started
+	 */
+	public static DaemonToken getDaemonToken() {
+		return daemonToken;
+	}
+	
 	/**
 	 * @see BaseModuleActivator#started()
 	 */
 	@Override
 	public void started() {
+		try {
+			DiskCache.getInstance().initIndex();
+		}
+		catch (Exception e) {
+			log.warn("Failed to build the grid report cache index", e);
+		}
+		
 		log.info("Patient grid module started");
 	}
 	
@@ -21,6 +50,15 @@ public class PatientGridActivator extends BaseModuleActivator {
 	 */
 	@Override
 	public void stopped() {
+		StaleReportRefresher.getInstance().shutdown();
+		ParallelCohortEvaluator.getInstance().shutdown();
+		try {
+			DiskCache.getInstance().flushAccessTimes();
+		}
+		catch (Exception e) {
+			log.warn("Failed to flush the grid report cache access times", e);
+		}
+		
 		log.info("Patient grid module stopped");
 	}
 	
@@ -24,6 +24,42 @@ public class PatientGridConstants {
 	
 	public static final String GP_DISK_CACHE_DIR = MODULE_ID + ".cacheDirectory";
 	
+	public static final String GP_MAX_CACHE_SIZE = MODULE_ID + ".maxCacheSize";
+	
+	public static final String GP_MAX_MEMORY_CACHE_SIZE = MODULE_ID + ".maxMemoryCacheSize";
+	
+	public static final String GP_CACHE_FORMAT = MODULE_ID + ".cacheFormat";
+	
+	public static final String GP_CACHE_COMPRESSION = MODULE_ID + ".cacheCompression";
+	
+	public static final String GP_CACHE_REPRESENTATION = MODULE_ID + ".cacheRepresentation";
+	
+	public static final String GP_PREWARM_THREADS = MODULE_ID + ".prewarmThreads";
+	
+	public static final String GP_PREWARM_WINDOW = MODULE_ID + ".prewarmWindow";
+	
+	public static final String GP_SERVE_STALE_REPORTS = MODULE_ID + ".serveStaleReports";
+	
+	public static final String GP_MAX_INCREMENTAL_REFRESH_PATIENTS = MODULE_ID + ".maxIncrementalRefreshPatients";
+	
+	public static final String GP_ENCOUNTER_SNAPSHOT_TTL = MODULE_ID + ".encounterSnapshotTtl";
+	
+	public static final String GP_ENCOUNTER_SNAPSHOT_MAX_SIZE = MODULE_ID + ".encounterSnapshotMaxSize";
+	
+	public static final String GP_FILTER_THREADS = MODULE_ID + ".filterThreads";
+	
+	public static final String GP_SHARE_REPORTS = MODULE_ID + ".shareReports";
+	
+	public static final String GP_SHARED_REPORT_MAX_ROWS = MODULE_ID + ".sharedReportMaxRows";
+	
+	public static final String CACHE_FORMAT_XML = "xml";
+	
+	public static final String CACHE_FORMAT_BINARY = "binary";
+	
+	public static final String CACHE_REPRESENTATION_JSON = "json";
+	
+	public static final String CACHE_REPRESENTATION_GZIP = "gzip";
+	
 	public static final String CACHE_MANAGER_NAME = "patientGridReportsCacheManager";
 	
 	public static final String CACHE_NAME_GRID_REPORTS = "patientGridReports";
@@ -32,6 +68,8 @@ public class PatientGridConstants {
 	
 	public static final String CACHE_KEY_SEPARATOR = "_";
 	
+	public static final String CACHE_KEY_SHARED_PREFIX = "shared-";
+	
 	public static final String CACHE_EVICT_KEY_EXP = "#patientGrid.getUuid()";
 	
 	public static final String CACHE_EVICT_CONDITION_EXP = "#patientGrid.getId() != null";
@@ -41,7 +79,7 @@ public class PatientGridConstants {
 	
 	public static final String CACHE_CONDITION_EXP = "T(org.openmrs.api.context.Context).getAuthenticatedUser() != null";
 	
-	public static final String CACHE_UNLESS_EXP = "#result.getSimpleDataSet().getRows().isEmpty() || T(org.openmrs.api.context.Context).getAuthenticatedUser() == null";
+	public static final String CACHE_UNLESS_EXP = "#result.getSimpleDataSet().getRows().isEmpty() || #result.isSharedView() || T(org.openmrs.api.context.Context).getAuthenticatedUser() == null";
 	
 	public static final DateFormat DATETIME_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ssXXX");
 	
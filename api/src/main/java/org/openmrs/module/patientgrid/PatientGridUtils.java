@@ -3,6 +3,7 @@ package org.openmrs.module.patientgrid;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.time.StopWatch;
+import org.hibernate.SessionFactory;
 import org.openmrs.*;
 import org.openmrs.api.APIException;
 import org.openmrs.api.context.Context;
@@ -10,12 +11,17 @@ import org.openmrs.module.patientgrid.PatientGridColumn.ColumnDatatype;
 import org.openmrs.module.patientgrid.converter.PatientGridAgeConverter;
 import org.openmrs.module.patientgrid.converter.PatientGridAgeRangeConverter;
 import org.openmrs.module.patientgrid.definition.*;
+import org.openmrs.module.patientgrid.filter.ParallelCohortEvaluator;
 import org.openmrs.module.patientgrid.filter.PatientGridFilterUtils;
 import org.openmrs.module.patientgrid.filter.definition.LocationCohortDefinition;
+import org.openmrs.module.patientgrid.function.MostRecentEncounterIdByTypeFunction;
+import org.openmrs.module.patientgrid.function.MostRecentEncounterRecordPerPatientByTypeFunction;
+import org.openmrs.module.patientgrid.function.ObsIndexByTypeFunction;
 import org.openmrs.module.patientgrid.period.DateRange;
 import org.openmrs.module.reporting.common.AgeRange;
 import org.openmrs.module.reporting.common.SortCriteria;
 import org.openmrs.module.reporting.common.TimeQualifier;
+import org.openmrs.module.reporting.data.DataDefinition;
 import org.openmrs.module.reporting.data.converter.DataConverter;
 import org.openmrs.module.reporting.data.converter.ObjectFormatter;
 import org.openmrs.module.reporting.data.converter.PropertyConverter;
@@ -23,15 +29,19 @@ import org.openmrs.module.reporting.data.patient.definition.EncountersForPatient
 import org.openmrs.module.reporting.data.patient.service.PatientDataService;
 import org.openmrs.module.reporting.data.person.definition.GenderDataDefinition;
 import org.openmrs.module.reporting.data.person.definition.PreferredNameDataDefinition;
+import org.openmrs.module.reporting.dataset.column.definition.RowPerObjectColumnDefinition;
 import org.openmrs.module.reporting.dataset.definition.PatientDataSetDefinition;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
+import org.openmrs.module.reporting.evaluation.querybuilder.HqlQueryBuilder;
+import org.openmrs.module.reporting.evaluation.service.EvaluationService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.stream.Collectors;
 
 import static org.openmrs.module.patientgrid.PatientGridConstants.*;
@@ -57,6 +67,10 @@ public class PatientGridUtils {
 	
 	private static final DataConverter AGE_CONVERTER = new PatientGridAgeConverter();
 	
+	private static final String LATEST_ENCOUNTER_RECORDS_QUERY = "select e.encounterId, e.patient.patientId, "
+	        + "e.encounterDatetime, l.locationId, f.formId from Encounter e left join e.location l left join e.form f "
+	        + "where e.encounterId in (:encounterIds)";
+	
 	private static PatientGridAgeRangeConverter ageRangeConverter;
 	
 	/**
@@ -119,6 +133,9 @@ public class PatientGridUtils {
 					ObsForLatestEncounterPatientDataDefinition obsDataDef = new ObsForLatestEncounterPatientDataDefinition();
 					obsDataDef.setConcept(obsColumn.getConcept());
 					obsDataDef.setEncounterType(obsColumn.getEncounterType());
+					obsDataDef.setConcepts(patientGrid.getObsColumns().stream()
+					        .filter(c -> c.getEncounterType().equals(obsColumn.getEncounterType()))
+					        .map(ObsPatientGridColumn::getConcept).distinct().collect(Collectors.toList()));
 					obsDataDef.setLocationCohortDefinition(locationCohortDefinition);
 					obsDataDef.setPeriodRange(dateRange);
 					dataSetDef.addColumn(columnDef.getName(), obsDataDef, (String) null, OBS_CONVERTER);
@@ -168,13 +185,7 @@ public class PatientGridUtils {
 			encDef.setOnOrBefore(periodRange.getToInServerTz());
 		}
 		if (locationCohortDefinition != null) {
-			if (locationCohortDefinition.getCountry()) {
-				Set<Location> allLocations = new HashSet<>();
-				locationCohortDefinition.getLocations().forEach(l -> allLocations.addAll(l.getDescendantLocations(false)));
-				encDef.setLocationList(new ArrayList<>(allLocations));
-			} else {
-				encDef.setLocationList(locationCohortDefinition.getLocations());
-			}
+			encDef.setLocationList(getLocationList(locationCohortDefinition));
 		}
 		
 		encDef.setTypes(Collections.singletonList(type));
@@ -205,6 +216,215 @@ public class PatientGridUtils {
 		return results;
 	}
 	
+	/**
+	 * Fetches the most recent encounter of the specified type for each patient in the cohort as
+	 * {@link EncounterRecord} projections, the entities are not loaded. The latest encounter of each
+	 * patient is picked by the database with the query of {@link MostRecentEncounterIdByTypeFunction},
+	 * ties on the datetime are broken by the greatest encounter id like in the filters. That query is
+	 * plain SQL so the projections are loaded by id with HQL on {@link Encounter} in order for the
+	 * hibernate filters of the datafilter module to apply to them like to the other columns. Those
+	 * filters hide the encounters by encounter type and by patient, so for a visible patient and type
+	 * the latest encounter picked by the SQL query is also the latest visible one.
+	 *
+	 * @param type the encounter type to match
+	 * @param context {@link EvaluationContext} object
+	 * @param locationCohortDefinition the location filter or null
+	 * @param periodRange the period the encounters must fall in or null
+	 * @return a map of patient ids to encounter records
+	 * @throws EvaluationException
+	 */
+	public static IntObjectMap<EncounterRecord> getLatestEncounterRecords(EncounterType type,
+	        EvaluationContextPersistantCache context, LocationCohortDefinition locationCohortDefinition,
+	        DateRange periodRange) throws EvaluationException {
+		Cohort cohort = context.getBaseCohort();
+		if (cohort == null || cohort.size() > 1) {
+			LOG.info("Fetching latest encounter records of type:{}", type);
+		}
+		
+		StopWatch stopWatch = new StopWatch();
+		stopWatch.start();
+		
+		IntObjectMap<EncounterRecord> results = new IntObjectMap<>(cohort == null ? 16 : cohort.size());
+		SessionFactory sf = Context.getRegisteredComponent("sessionFactory", SessionFactory.class);
+		List<Integer> encounterIds = new ArrayList<>();
+		for (Object encounterId : new MostRecentEncounterIdByTypeFunction(sf, periodRange, locationCohortDefinition,
+		        cohort == null ? null : cohort.getMemberIds()).apply(type)) {
+			encounterIds.add(toInteger(encounterId));
+		}
+		
+		for (int i = 0; i < encounterIds.size(); i += MostRecentEncounterIdByTypeFunction.IN_LIST_LIMIT) {
+			List<Integer> chunk = encounterIds.subList(i,
+			    Math.min(i + MostRecentEncounterIdByTypeFunction.IN_LIST_LIMIT, encounterIds.size()));
+			List<Object[]> rows = sf.getCurrentSession().createQuery(LATEST_ENCOUNTER_RECORDS_QUERY)
+			        .setParameterList("encounterIds", chunk).list();
+			for (Object[] row : rows) {
+				Integer encounterId = (Integer) row[0];
+				Integer patientId = (Integer) row[1];
+				Date encounterDatetime = (Date) row[2];
+				//Ties on the datetime are only returned by the query without window functions, the greatest id is kept
+				EncounterRecord other = results.get(patientId);
+				if (other != null && (other.getEncounterDatetime() > encounterDatetime.getTime()
+				        || (other.getEncounterDatetime() == encounterDatetime.getTime()
+				                && other.getEncounterId() > encounterId))) {
+					continue;
+				}
+				
+				results.put(patientId, new EncounterRecord(encounterId, patientId, encounterDatetime.getTime(),
+				        (Integer) row[3], (Integer) row[4]));
+				context.saveLatestEncDate(patientId, encounterDatetime);
+			}
+		}
+		
+		stopWatch.stop();
+		
+		if (cohort == null || cohort.size() > 1) {
+			LOG.info("Fetching latest encounter records of type: {} completed in {}", type, stopWatch.toString());
+		}
+		
+		return results;
+	}
+	
+	/**
+	 * Loads concurrently for each encounter type of the date, age and obs columns of the specified
+	 * dataset definition the latest encounter records of the patients in the base cohort along with the
+	 * ids of the obs of the obs columns, the columns are then evaluated from the persistent cache of
+	 * the specified context. Nothing is loaded if the columns have a single encounter type since their
+	 * evaluation is sequential anyway, see {@link ParallelCohortEvaluator#invokeAll(List)}
+	 *
+	 * @param dataSetDef the dataset definition
+	 * @param context the evaluation context
+	 * @throws EvaluationException
+	 */
+	public static void preloadLatestEncounters(PatientDataSetDefinition dataSetDef,
+	        EvaluationContextPersistantCache context) throws EvaluationException {
+		Map<EncounterType, DataDefinition> typeAndDef = new LinkedHashMap<>();
+		Map<EncounterType, List<Concept>> typeAndConcepts = new HashMap<>();
+		for (RowPerObjectColumnDefinition column : dataSetDef.getColumnDefinitions()) {
+			DataDefinition def = column.getDataDefinition().getParameterizable();
+			if (def instanceof ObsForLatestEncounterPatientDataDefinition) {
+				ObsForLatestEncounterPatientDataDefinition obsDef = (ObsForLatestEncounterPatientDataDefinition) def;
+				typeAndDef.putIfAbsent(obsDef.getEncounterType(), def);
+				typeAndConcepts.putIfAbsent(obsDef.getEncounterType(),
+				    obsDef.getConcepts() == null ? Collections.singletonList(obsDef.getConcept()) : obsDef.getConcepts());
+			} else if (def instanceof DateForLatestEncounterPatientDataDefinition) {
+				typeAndDef.putIfAbsent(((DateForLatestEncounterPatientDataDefinition) def).getEncounterType(), def);
+			} else if (def instanceof AgeAtLatestEncounterPatientDataDefinition) {
+				typeAndDef.putIfAbsent(((AgeAtLatestEncounterPatientDataDefinition) def).getEncounterType(), def);
+			}
+		}
+		if (typeAndDef.size() < 2 || (context.getBaseCohort() != null && context.getBaseCohort().isEmpty())) {
+			return;
+		}
+		
+		SessionFactory sf = Context.getRegisteredComponent("sessionFactory", SessionFactory.class);
+		List<Callable<Object>> tasks = new ArrayList<>(typeAndDef.size());
+		for (Map.Entry<EncounterType, DataDefinition> entry : typeAndDef.entrySet()) {
+			EncounterType type = entry.getKey();
+			DataDefinition def = entry.getValue();
+			List<Concept> concepts = typeAndConcepts.get(type);
+			EvaluationContextPersistantCache childContext = new EvaluationContextPersistantCache(context);
+			tasks.add(() -> {
+				IntObjectMap<EncounterRecord> records = childContext.computeIfAbsent(type,
+				    new MostRecentEncounterRecordPerPatientByTypeFunction(childContext, getPeriodRange(def),
+				            getLocationCohortDefinition(def)));
+				if (concepts != null) {
+					childContext.computeIfAbsent(type, new ObsIndexByTypeFunction(sf, records, concepts));
+				}
+				
+				return null;
+			});
+		}
+		
+		ParallelCohortEvaluator.getInstance().invokeAll(tasks);
+	}
+	
+	private static DateRange getPeriodRange(DataDefinition def) {
+		if (def instanceof ObsForLatestEncounterPatientDataDefinition) {
+			return ((ObsForLatestEncounterPatientDataDefinition) def).getPeriodRange();
+		} else if (def instanceof DateForLatestEncounterPatientDataDefinition) {
+			return ((DateForLatestEncounterPatientDataDefinition) def).getPeriodRange();
+		}
+		
+		return ((AgeAtLatestEncounterPatientDataDefinition) def).getPeriodRange();
+	}
+	
+	private static LocationCohortDefinition getLocationCohortDefinition(DataDefinition def) {
+		if (def instanceof ObsForLatestEncounterPatientDataDefinition) {
+			return ((ObsForLatestEncounterPatientDataDefinition) def).getLocationCohortDefinition();
+		} else if (def instanceof DateForLatestEncounterPatientDataDefinition) {
+			return ((DateForLatestEncounterPatientDataDefinition) def).getLocationCohortDefinition();
+		}
+		
+		return ((AgeAtLatestEncounterPatientDataDefinition) def).getLocationCohortDefinition();
+	}
+	
+	private static Integer toInteger(Object value) {
+		return value == null ? null : ((Number) value).intValue();
+	}
+	
+	/**
+	 * Fetches the date of the most recent encounter of any of the specified types for each patient in
+	 * the cohort and saves them in the context, a single aggregate row is returned per patient so that
+	 * the cohort can be sorted and limited before any encounter is loaded.
+	 *
+	 * @param types the encounter types to match
+	 * @param context {@link EvaluationContext} object
+	 * @param locationCohortDefinition the location filter or null
+	 * @param periodRange the period the encounters must fall in or null
+	 * @throws EvaluationException
+	 */
+	public static void loadLatestEncounterDates(Collection<EncounterType> types, EvaluationContextPersistantCache context,
+	        LocationCohortDefinition locationCohortDefinition, DateRange periodRange) throws EvaluationException {
+		if (types.isEmpty()) {
+			return;
+		}
+		
+		StopWatch stopWatch = new StopWatch();
+		stopWatch.start();
+		
+		HqlQueryBuilder q = new HqlQueryBuilder();
+		q.select("e.patient.patientId", "max(e.encounterDatetime)");
+		q.from(Encounter.class, "e");
+		q.wherePatientIn("e.patient.patientId", context);
+		q.whereIn("e.encounterType.encounterTypeId",
+		    types.stream().map(EncounterType::getEncounterTypeId).collect(Collectors.toList()));
+		if (periodRange != null) {
+			q.whereGreaterOrEqualTo("e.encounterDatetime", periodRange.getFromInServerTz());
+			q.whereLessOrEqualTo("e.encounterDatetime", periodRange.getToInServerTz());
+		}
+		if (locationCohortDefinition != null) {
+			q.whereIn("e.location", getLocationList(locationCohortDefinition));
+		}
+		q.groupBy("e.patient.patientId");
+		
+		for (Object[] row : Context.getService(EvaluationService.class).evaluateToList(q, context)) {
+			if (row[1] != null) {
+				context.saveLatestEncDate((Integer) row[0], (Date) row[1]);
+			}
+		}
+		
+		stopWatch.stop();
+		
+		LOG.debug("Fetching latest encounter dates of types: {} completed in {}", types, stopWatch.toString());
+	}
+	
+	/**
+	 * Gets the locations matched by the specified location filter, for a country filter these are the
+	 * descendant locations of the country locations
+	 *
+	 * @param locationCohortDefinition the location filter
+	 * @return the list of locations
+	 */
+	public static List<Location> getLocationList(LocationCohortDefinition locationCohortDefinition) {
+		if (locationCohortDefinition.getCountry()) {
+			Set<Location> allLocations = new HashSet<>();
+			locationCohortDefinition.getLocations().forEach(l -> allLocations.addAll(l.getDescendantLocations(false)));
+			return new ArrayList<>(allLocations);
+		}
+		
+		return locationCohortDefinition.getLocations();
+	}
+	
 	/**
 	 * Gets the observation from the specified encounter with a question concept that matches the
 	 * specified concept ignoring obs groupings and voided obs.
@@ -349,7 +569,18 @@ public class PatientGridUtils {
 	}
 	
 	public static String getCurrentUserTimeZone() {
-		String userTimeZone = Context.getAuthenticatedUser().getUserProperty("clientTimezone");
+		return getUserTimeZone(Context.getAuthenticatedUser());
+	}
+	
+	/**
+	 * Gets the timezone of the client of the specified user, the server timezone is used if the user
+	 * has none
+	 *
+	 * @param user the user
+	 * @return the timezone id
+	 */
+	public static String getUserTimeZone(User user) {
+		String userTimeZone = user.getUserProperty("clientTimezone");
 		if (userTimeZone == null) {
 			userTimeZone = TimeZone.getDefault().getID();
 			LOG.warn("use server timezone {} instead of User Timezone", userTimeZone);
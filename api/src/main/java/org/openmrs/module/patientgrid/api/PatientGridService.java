@@ -10,6 +10,7 @@ import static org.openmrs.module.patientgrid.PatientGridConstants.CACHE_UNLESS_E
 import static org.openmrs.module.patientgrid.PatientGridConstants.PRIV_MANAGE_PATIENT_GRIDS;
 
 import java.util.List;
+import java.util.Set;
 
 import org.openmrs.annotation.Authorized;
 import org.openmrs.api.OpenmrsService;
@@ -104,7 +105,10 @@ public interface PatientGridService extends OpenmrsService {
 	PatientGridColumnFilter getPatientGridColumnFilterByUuid(String uuid);
 	
 	/**
-	 * Evaluates the specified {@link PatientGrid}
+	 * Evaluates the specified {@link PatientGrid}, concurrent evaluations of the same grid for the
+	 * same user are coalesced into a single evaluation whose result is returned to all the callers.
+	 * When sharing reports is enabled, a shared grid is evaluated once for all users and the view of
+	 * the authenticated user is projected from the shared report.
 	 *
 	 * @param patientGrid the patient grid to evaluate
 	 * @return the generated {@link SimpleDataSet}
@@ -124,4 +128,17 @@ public interface PatientGridService extends OpenmrsService {
 	@CachePut(key = CACHE_KEY_EXP, condition = CACHE_CONDITION_EXP, unless = CACHE_UNLESS_EXP)
 	ExtendedDataSet evaluateIgnoreCache(PatientGrid patientGrid);
 	
+	/**
+	 * Refreshes the rows of the specified patients in the cached report of the specified grid for the
+	 * authenticated user, the columns are only evaluated for the patients whose rows changed instead of
+	 * the whole cohort. Shared reports are not refreshed this way.
+	 *
+	 * @param patientGrid the patient grid
+	 * @param patientIds the ids of the patients whose data changed
+	 * @return true if the cached report was refreshed, false if there is no cached report or if it
+	 *         can't be refreshed incrementally in which case it should be evicted
+	 */
+	@Authorized(PRIV_MANAGE_PATIENT_GRIDS)
+	boolean refreshCachedReport(PatientGrid patientGrid, Set<Integer> patientIds);
+	
 }
@@ -4,26 +4,53 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.time.StopWatch;
 import org.openmrs.Cohort;
 import org.openmrs.CohortMembership;
+import org.openmrs.EncounterType;
+import org.openmrs.Patient;
+import org.openmrs.User;
 import org.openmrs.api.APIException;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.impl.BaseOpenmrsService;
 import org.openmrs.module.patientgrid.*;
+import org.openmrs.module.patientgrid.PatientGridColumn.ColumnDatatype;
 import org.openmrs.module.patientgrid.api.PatientGridService;
 import org.openmrs.module.patientgrid.api.db.PatientGridDAO;
+import org.openmrs.module.patientgrid.cache.SingleFlight;
 import org.openmrs.module.patientgrid.filter.ObjectWithDateRange;
 import org.openmrs.module.patientgrid.filter.PatientGridFilterUtils;
+import org.openmrs.module.patientgrid.filter.PatientIdSet;
+import org.openmrs.module.patientgrid.period.DateRange;
+import org.openmrs.module.reporting.dataset.DataSetRow;
 import org.openmrs.module.reporting.dataset.SimpleDataSet;
 import org.openmrs.module.reporting.dataset.definition.PatientDataSetDefinition;
 import org.openmrs.module.reporting.dataset.definition.service.DataSetDefinitionService;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
+import org.openmrs.module.reporting.evaluation.querybuilder.HqlQueryBuilder;
+import org.openmrs.module.reporting.evaluation.service.EvaluationService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
+import static org.openmrs.module.patientgrid.PatientGridConstants.CACHE_KEY_SEPARATOR;
+import static org.openmrs.module.patientgrid.PatientGridConstants.CACHE_MANAGER_NAME;
+import static org.openmrs.module.patientgrid.PatientGridConstants.CACHE_NAME_GRID_REPORTS;
+import static org.openmrs.module.patientgrid.PatientGridConstants.COLUMN_UUID;
 import static org.openmrs.module.patientgrid.PatientGridConstants.GP_ROWS_COUNT_LIMIT;
 
 @Transactional(readOnly = true)
@@ -33,6 +60,21 @@ public class PatientGridServiceImpl extends BaseOpenmrsService implements Patien
 	
 	private PatientGridDAO dao;
 	
+	/**
+	 * Concurrent evaluations of the same grid for the same user are coalesced, they are keyed like the
+	 * grid report cache entries i.e. gridUuid_userUuid
+	 */
+	private final SingleFlight<String, ExtendedDataSet> evaluations = new SingleFlight<>();
+	
+	/**
+	 * Concurrent incremental refreshes of the same cached report are coalesced, they are kept apart
+	 * from {@link #evaluations} since a refresh can return a partial report or null which must never be
+	 * handed to an evaluation
+	 */
+	private final SingleFlight<String, ExtendedDataSet> refreshes = new SingleFlight<>();
+	
+	private final SharedReportEvaluator sharedReportEvaluator = new SharedReportEvaluator();
+	
 	/**
 	 * Normally we should use {@link #mergeCohort(Cohort, Cohort)} but it compares also the date of the
 	 * {@link CohortMembership}. In our case, we just want to compare the patientIds.
@@ -48,8 +90,7 @@ public class PatientGridServiceImpl extends BaseOpenmrsService implements Patien
 		if (staticCohort.isEmpty()) {
 			initCohort.getMemberships().clear();
 		} else {
-			Set<Integer> patientIds = staticCohort.getMemberships().stream().map(CohortMembership::getPatientId)
-			        .collect(Collectors.toSet());
+			PatientIdSet patientIds = PatientIdSet.of(staticCohort);
 			initCohort.setMemberships(initCohort.getMemberships().stream()
 			        .filter(cohortMembership -> patientIds.contains(cohortMembership.getPatientId()))
 			        .collect(Collectors.toSet()));
@@ -138,6 +179,26 @@ public class PatientGridServiceImpl extends BaseOpenmrsService implements Patien
 	 * @see PatientGridService#evaluate(PatientGrid)
 	 */
 	public ExtendedDataSet evaluate(PatientGrid patientGrid) {
+		return evaluate(patientGrid, false);
+	}
+	
+	private ExtendedDataSet evaluate(PatientGrid patientGrid, boolean ignoreCache) {
+		User user = Context.getAuthenticatedUser();
+		if (user != null && SharedReportEvaluator.isApplicable(patientGrid)) {
+			ExtendedDataSet view = sharedReportEvaluator.evaluate(patientGrid, ignoreCache);
+			if (view != null) {
+				return view;
+			}
+		}
+		if (user == null || patientGrid.getUuid() == null) {
+			return doEvaluate(patientGrid);
+		}
+		
+		return evaluations.execute(patientGrid.getUuid() + CACHE_KEY_SEPARATOR + user.getUuid(),
+		    () -> doEvaluate(patientGrid));
+	}
+	
+	private ExtendedDataSet doEvaluate(PatientGrid patientGrid) {
 		log.debug("Generating report for patient grid: {}", patientGrid);
 		
 		try {
@@ -153,7 +214,128 @@ public class PatientGridServiceImpl extends BaseOpenmrsService implements Patien
 	
 	public static ExtendedDataSet createExtendedDataSet(PatientGrid patientGrid, String clientTimezone,
 	        PatientDataSetDefinition dataSetDef) throws EvaluationException {
+		return createExtendedDataSet(patientGrid, clientTimezone, dataSetDef, getRowsCountLimit());
+	}
+	
+	/**
+	 * Evaluates the specified dataset definition for the cohort matching the grid filters
+	 *
+	 * @param patientGrid the patient grid
+	 * @param clientTimezone the client timezone
+	 * @param dataSetDef the dataset definition
+	 * @param limit the maximum number of rows, zero or less for no limit
+	 * @return the extended dataset
+	 * @throws EvaluationException
+	 */
+	protected static ExtendedDataSet createExtendedDataSet(PatientGrid patientGrid, String clientTimezone,
+	        PatientDataSetDefinition dataSetDef, int limit) throws EvaluationException {
+		EvaluationContextPersistantCache context = new EvaluationContextPersistantCache();
+		ObjectWithDateRange<Cohort> cohortWithPeriod = filterPatients(patientGrid, clientTimezone, context);
+		Cohort cohort = cohortWithPeriod.getObject();
+		int initCohortSize = cohort.getMemberships().size();
+		context.setBaseCohort(cohort);
+		limitCohort(patientGrid, context, cohortWithPeriod.getDateRange(), limit);
+		
+		SimpleDataSet ds;
+		//if the cohort is empty -> do nothing
+		if (cohort.isEmpty()) {
+			ds = new SimpleDataSet(dataSetDef, context);
+		} else {
+			ds = evaluateDataSet(dataSetDef, context);
+		}
+		ExtendedDataSet extendedDataSet = new ExtendedDataSet(ds, cohortWithPeriod.getDateRange());
+		
+		extendedDataSet.setRowsCountLimit(limit);
+		extendedDataSet.setInitialRowsCount(initCohortSize);
+		if (limit > 0 && limit < initCohortSize) {
+			extendedDataSet.setTruncated(true);
+		}
+		context.clearPersistentCache();
+		return extendedDataSet;
+	}
+	
+	/**
+	 * Evaluates the shared report of the specified grid, the whole cohort matching the grid filters is
+	 * sorted by latest encounter date and the ids of the locations each patient is mapped to are
+	 * included in the returned dataset but the columns are only evaluated for the patients which can
+	 * be in the view of a user i.e. the first patients of each location up to the rows limit, see
+	 * {@link SharedReportEvaluator#getVisiblePatients(Map, int)}
+	 *
+	 * @param patientGrid the patient grid
+	 * @param clientTimezone the client timezone
+	 * @param dataSetDef the dataset definition
+	 * @param limit the maximum number of rows of the view of a user, zero or less for no limit
+	 * @param maxRows the maximum number of rows of the shared report, zero or less for no limit
+	 * @return the extended dataset or null if the shared report would have more than the max rows
+	 * @throws EvaluationException
+	 */
+	protected static ExtendedDataSet createSharedExtendedDataSet(PatientGrid patientGrid, String clientTimezone,
+	        PatientDataSetDefinition dataSetDef, int limit, int maxRows) throws EvaluationException {
 		EvaluationContextPersistantCache context = new EvaluationContextPersistantCache();
+		ObjectWithDateRange<Cohort> cohortWithPeriod = filterPatients(patientGrid, clientTimezone, context);
+		Cohort cohort = cohortWithPeriod.getObject();
+		int initCohortSize = cohort.getMemberships().size();
+		context.setBaseCohort(cohort);
+		if (limit > 0 && !cohort.isEmpty()) {
+			loadLatestEncounterDates(patientGrid, context, cohortWithPeriod.getDateRange());
+		}
+		context.limitAndSortCohortBasedOnEncounterDate(0);
+		
+		Map<Integer, String> patientUuids = SharedReportEvaluator.getPatientUuids(context);
+		Map<String, List<String>> patientLocations = SharedReportEvaluator.getPatientLocations(context, patientUuids);
+		Set<String> visiblePatients = SharedReportEvaluator.getVisiblePatients(patientLocations, limit);
+		if (maxRows > 0 && visiblePatients.size() > maxRows) {
+			log.debug("The shared report of patient grid {} would have {} rows, it is not evaluated", patientGrid,
+			    visiblePatients.size());
+			context.clearPersistentCache();
+			return null;
+		}
+		
+		Cohort visibleCohort = new Cohort();
+		for (CohortMembership member : context.getBaseCohort().getMemberships()) {
+			if (visiblePatients.contains(patientUuids.get(member.getPatientId()))) {
+				visibleCohort.addMembership(new CohortMembership(member.getPatientId(), member.getStartDate()));
+			}
+		}
+		context.setBaseCohort(visibleCohort);
+		
+		SimpleDataSet ds;
+		if (visibleCohort.isEmpty()) {
+			ds = new SimpleDataSet(dataSetDef, context);
+		} else {
+			ds = evaluateDataSet(dataSetDef, context);
+		}
+		ExtendedDataSet extendedDataSet = new ExtendedDataSet(ds, cohortWithPeriod.getDateRange());
+		extendedDataSet.setRowsCountLimit(limit);
+		extendedDataSet.setInitialRowsCount(initCohortSize);
+		extendedDataSet.setTruncated(visibleCohort.size() < initCohortSize);
+		extendedDataSet.setPatientLocations(patientLocations);
+		context.clearPersistentCache();
+		return extendedDataSet;
+	}
+	
+	/**
+	 * Evaluates the columns of the specified dataset definition for the base cohort of the specified
+	 * context once the latest encounters of each encounter type are loaded concurrently, see
+	 * {@link PatientGridUtils#preloadLatestEncounters(PatientDataSetDefinition, EvaluationContextPersistantCache)}
+	 */
+	private static SimpleDataSet evaluateDataSet(PatientDataSetDefinition dataSetDef,
+	        EvaluationContextPersistantCache context) throws EvaluationException {
+		PatientGridUtils.preloadLatestEncounters(dataSetDef, context);
+		return (SimpleDataSet) Context.getService(DataSetDefinitionService.class).evaluate(dataSetDef, context);
+	}
+	
+	/**
+	 * Gets the cohort matching the filters of the specified grid intersected with its static cohort
+	 *
+	 * @param patientGrid the patient grid
+	 * @param clientTimezone the client timezone
+	 * @param context the evaluation context
+	 * @return the cohort along with the date range used to filter it
+	 * @throws EvaluationException
+	 */
+	private static ObjectWithDateRange<Cohort> filterPatients(PatientGrid patientGrid, String clientTimezone,
+	        EvaluationContextPersistantCache context) throws EvaluationException {
 		ObjectWithDateRange<Cohort> cohortWithPeriod = PatientGridFilterUtils.filterPatients(patientGrid, context,
 		    clientTimezone);
 		Cohort cohort = cohortWithPeriod == null ? null : cohortWithPeriod.getObject();
@@ -170,47 +352,297 @@ public class PatientGridServiceImpl extends BaseOpenmrsService implements Patien
 			cohort = new Cohort();
 		}
 		
-		int limit = 100;
-		String rowLimit = Context.getAdministrationService().getGlobalProperty(GP_ROWS_COUNT_LIMIT);
-		if (StringUtils.isNotBlank(rowLimit)) {
-			try {
-				limit = Integer.parseInt(rowLimit);
+		return new ObjectWithDateRange<>(cohort, cohortWithPeriod == null ? null : cohortWithPeriod.getDateRange());
+	}
+	
+	/**
+	 * Sorts the base cohort of the specified context by latest encounter date and keeps at most the
+	 * specified number of patients, when the cohort is truncated the latest encounter dates are first
+	 * fetched for every patient in a single aggregate query so that only the most recently seen
+	 * patients are kept and their columns evaluated. The dates are those of the encounter types of the
+	 * date and age columns or of all the encounter type columns if the grid has none.
+	 *
+	 * @param patientGrid the patient grid
+	 * @param context the evaluation context
+	 * @param dateRange the period used to filter the cohort or null
+	 * @param limit the maximum number of rows, zero or less for no limit
+	 * @throws EvaluationException
+	 */
+	private static void limitCohort(PatientGrid patientGrid, EvaluationContextPersistantCache context,
+	        DateRange dateRange, int limit) throws EvaluationException {
+		if (limit > 0 && limit < context.getBaseCohort().size()) {
+			loadLatestEncounterDates(patientGrid, context, dateRange);
+		}
+		
+		context.limitAndSortCohortBasedOnEncounterDate(limit);
+	}
+	
+	/**
+	 * Loads the latest encounter dates of the patients in the base cohort of the specified context, see
+	 * {@link #limitCohort(PatientGrid, EvaluationContextPersistantCache, DateRange, int)}
+	 */
+	private static void loadLatestEncounterDates(PatientGrid patientGrid, EvaluationContextPersistantCache context,
+	        DateRange dateRange) throws EvaluationException {
+		Set<EncounterType> types = getEncounterTypes(patientGrid, ColumnDatatype.ENC_DATE, ColumnDatatype.ENC_AGE);
+		if (types.isEmpty()) {
+			types = getEncounterTypes(patientGrid, ColumnDatatype.values());
+		}
+		PatientGridUtils.loadLatestEncounterDates(types, context, PatientGridFilterUtils.extractLocations(patientGrid),
+		    dateRange);
+	}
+	
+	private static Set<EncounterType> getEncounterTypes(PatientGrid patientGrid, ColumnDatatype... datatypes) {
+		List<ColumnDatatype> datatypeList = Arrays.asList(datatypes);
+		return patientGrid.getColumns().stream()
+		        .filter(c -> c instanceof BaseEncounterTypePatientGridColumn && datatypeList.contains(c.getDatatype()))
+		        .map(c -> ((BaseEncounterTypePatientGridColumn) c).getEncounterType()).collect(Collectors.toSet());
+	}
+	
+	/**
+	 * Refreshes the rows of the specified patients in a cached report, the filters are only evaluated
+	 * for the specified patients and the latest encounter dates are only loaded for these patients and
+	 * the other patients of the cached report to decide the new rows and their order, the columns are
+	 * only evaluated for the specified patients matching the filters and the rows of the other patients
+	 * are copied from the cached report. The patients beyond the limit of a truncated report are
+	 * unknown, the report can't be refreshed if one of them could enter the rows i.e. when the rows of
+	 * the changed patients move below the last unchanged row. The initial rows count of a truncated
+	 * report assumes the changed patients which were not in its rows were not matching the filters.
+	 *
+	 * @param patientGrid the patient grid
+	 * @param clientTimezone the client timezone
+	 * @param dataSetDef the dataset definition
+	 * @param cached the cached report
+	 * @param patientIds the ids of the patients whose data changed
+	 * @return the refreshed report or null if it can't be refreshed incrementally
+	 * @throws EvaluationException
+	 */
+	protected static ExtendedDataSet refreshRows(PatientGrid patientGrid, String clientTimezone,
+	        PatientDataSetDefinition dataSetDef, ExtendedDataSet cached, Set<Integer> patientIds)
+	        throws EvaluationException {
+		int limit = cached.getRowsCountLimit();
+		EvaluationContextPersistantCache context = new EvaluationContextPersistantCache();
+		context.setBaseCohort(new Cohort(patientIds));
+		ObjectWithDateRange<Cohort> cohortWithPeriod = filterPatients(patientGrid, clientTimezone, context);
+		DateRange dateRange = cohortWithPeriod.getDateRange();
+		if (!Objects.equals(cached.getUsedDateRange(), dateRange == null ? null : dateRange.getDateRangeAsString())) {
+			log.debug("The period of patient grid {} rolled over, it can't be refreshed incrementally", patientGrid);
+			return null;
+		}
+		
+		Map<Integer, String> changedUuids = SharedReportEvaluator.getPatientUuids(context);
+		Map<Object, DataSetRow> cachedRows = new LinkedHashMap<>();
+		for (DataSetRow row : cached.getSimpleDataSet().getRows()) {
+			cachedRows.put(row.getColumnValue(COLUMN_UUID), row);
+		}
+		
+		//The unchanged patients keep their cached rows and their order since their dates are the same
+		Set<Object> unchangedUuids = new LinkedHashSet<>(cachedRows.keySet());
+		unchangedUuids.removeAll(changedUuids.values());
+		Map<String, Integer> unchangedIds = getPatientIds(unchangedUuids, context);
+		Map<Integer, DataSetRow> rows = new HashMap<>();
+		Cohort candidates = new Cohort();
+		Integer lastUnchangedId = null;
+		for (Map.Entry<String, Integer> entry : unchangedIds.entrySet()) {
+			rows.put(entry.getValue(), cachedRows.get(entry.getKey()));
+			candidates.addMembership(new CohortMembership(entry.getValue()));
+			lastUnchangedId = entry.getValue();
+		}
+		
+		Set<Integer> matchingIds = new HashSet<>();
+		int added = 0;
+		int removed = 0;
+		for (Map.Entry<Integer, String> entry : changedUuids.entrySet()) {
+			boolean wasMatching = cachedRows.containsKey(entry.getValue());
+			boolean matching = cohortWithPeriod.getObject().contains(entry.getKey());
+			if (matching) {
+				matchingIds.add(entry.getKey());
+				candidates.addMembership(new CohortMembership(entry.getKey()));
 			}
-			catch (NumberFormatException e) {
-				log.warn("The row limit '{}' defined in the global property '{}' is not supported", rowLimit,
-				    GP_ROWS_COUNT_LIMIT);
-				throw new RuntimeException(e);
+			if (matching && !wasMatching) {
+				added++;
+			} else if (!matching && wasMatching) {
+				removed++;
 			}
 		}
-		int initCohortSize = cohort.getMemberships().size();
-		context.setBaseCohort(cohort);
-		context.limitAndSortCohortBasedOnEncounterDate(limit);
 		
-		SimpleDataSet ds;
-		//if the cohort is empty -> do nothing
-		if (cohort.isEmpty()) {
-			ds = new SimpleDataSet(dataSetDef, context);
+		//Like limitCohort, the dates are only needed when the report is truncated
+		context.setBaseCohort(candidates);
+		if (limit > 0 && (cached.isTruncated() || limit < candidates.size())) {
+			loadLatestEncounterDates(patientGrid, context, dateRange);
+		}
+		context.limitAndSortCohortBasedOnEncounterDate(0);
+		List<CohortMembership> members = new ArrayList<>(context.getBaseCohort().getMemberships());
+		int initCohortSize;
+		if (cached.isTruncated()) {
+			//The patients beyond the limit rank below the last unchanged row, they can't enter the rows above it
+			int lastUnchangedIndex = -1;
+			for (int i = 0; i < members.size() && lastUnchangedId != null; i++) {
+				if (lastUnchangedId.equals(members.get(i).getPatientId())) {
+					lastUnchangedIndex = i;
+				}
+			}
+			if (limit <= 0 || lastUnchangedIndex < limit - 1) {
+				log.debug("The rows of the truncated report of patient grid {} can't be decided", patientGrid);
+				context.clearPersistentCache();
+				return null;
+			}
+			
+			initCohortSize = cached.getInitialRowsCount() + added - removed;
 		} else {
-			ds = (SimpleDataSet) Context.getService(DataSetDefinitionService.class).evaluate(dataSetDef, context);
+			initCohortSize = members.size();
+		}
+		if (limit > 0 && members.size() > limit) {
+			members = members.subList(0, limit);
+		}
+		
+		Cohort changedCohort = new Cohort();
+		for (CohortMembership member : members) {
+			if (matchingIds.contains(member.getPatientId())) {
+				changedCohort.addMembership(new CohortMembership(member.getPatientId(), member.getStartDate()));
+			}
+		}
+		if (!changedCohort.isEmpty()) {
+			context.setBaseCohort(changedCohort);
+			SimpleDataSet changed = evaluateDataSet(dataSetDef, context);
+			Map<Object, DataSetRow> changedRows = new HashMap<>();
+			for (DataSetRow row : changed.getRows()) {
+				changedRows.put(row.getColumnValue(COLUMN_UUID), row);
+			}
+			for (CohortMembership member : changedCohort.getMemberships()) {
+				rows.put(member.getPatientId(), changedRows.get(changedUuids.get(member.getPatientId())));
+			}
 		}
-		ExtendedDataSet extendedDataSet = new ExtendedDataSet(ds,
-		        cohortWithPeriod == null ? null : cohortWithPeriod.getDateRange());
 		
+		SimpleDataSet ds = new SimpleDataSet(dataSetDef, context);
+		for (CohortMembership member : members) {
+			DataSetRow row = rows.get(member.getPatientId());
+			if (row != null) {
+				ds.addRow(row);
+			}
+		}
+		
+		ExtendedDataSet extendedDataSet = new ExtendedDataSet(ds, dateRange);
 		extendedDataSet.setRowsCountLimit(limit);
 		extendedDataSet.setInitialRowsCount(initCohortSize);
-		if (limit < initCohortSize) {
+		if (limit > 0 && limit < initCohortSize) {
 			extendedDataSet.setTruncated(true);
 		}
 		context.clearPersistentCache();
 		return extendedDataSet;
 	}
 	
+	/**
+	 * Gets the ids of the patients with the specified uuids
+	 *
+	 * @param patientUuids the patient uuids
+	 * @param context the evaluation context
+	 * @return a map of patient uuids and ids ordered like the specified uuids
+	 * @throws EvaluationException
+	 */
+	private static Map<String, Integer> getPatientIds(Collection<Object> patientUuids, EvaluationContext context)
+	        throws EvaluationException {
+		Map<String, Integer> patientIds = new HashMap<>();
+		if (!patientUuids.isEmpty()) {
+			HqlQueryBuilder idQuery = new HqlQueryBuilder();
+			idQuery.select("p.uuid", "p.patientId");
+			idQuery.from(Patient.class, "p");
+			idQuery.whereIn("p.uuid", patientUuids);
+			for (Object[] row : Context.getService(EvaluationService.class).evaluateToList(idQuery, context)) {
+				patientIds.put((String) row[0], (Integer) row[1]);
+			}
+		}
+		
+		Map<String, Integer> orderedIds = new LinkedHashMap<>();
+		for (Object patientUuid : patientUuids) {
+			if (patientIds.containsKey(patientUuid)) {
+				orderedIds.put((String) patientUuid, patientIds.get(patientUuid));
+			}
+		}
+		
+		return orderedIds;
+	}
+	
+	/**
+	 * Gets the maximum number of rows of a grid report
+	 *
+	 * @return the rows count limit
+	 */
+	public static int getRowsCountLimit() {
+		int limit = 100;
+		String rowLimit = Context.getAdministrationService().getGlobalProperty(GP_ROWS_COUNT_LIMIT);
+		if (StringUtils.isNotBlank(rowLimit)) {
+			try {
+				limit = Integer.parseInt(rowLimit);
+			}
+			catch (NumberFormatException e) {
+				log.warn("The row limit '{}' defined in the global property '{}' is not supported", rowLimit,
+				    GP_ROWS_COUNT_LIMIT);
+				throw new RuntimeException(e);
+			}
+		}
+		
+		return limit;
+	}
+	
 	/**
 	 * @see PatientGridService#evaluateIgnoreCache(PatientGrid)
 	 */
 	@Override
 	public ExtendedDataSet evaluateIgnoreCache(PatientGrid patientGrid) {
-		return evaluate(patientGrid);
+		return evaluate(patientGrid, true);
+	}
+	
+	/**
+	 * @see PatientGridService#refreshCachedReport(PatientGrid, Set)
+	 */
+	@Override
+	public boolean refreshCachedReport(PatientGrid patientGrid, Set<Integer> patientIds) {
+		User user = Context.getAuthenticatedUser();
+		if (user == null || SharedReportEvaluator.isApplicable(patientGrid)) {
+			return false;
+		}
+		
+		String key = patientGrid.getUuid() + CACHE_KEY_SEPARATOR + user.getUuid();
+		Cache cache = Context.getRegisteredComponent(CACHE_MANAGER_NAME, CacheManager.class)
+		        .getCache(CACHE_NAME_GRID_REPORTS);
+		Cache.ValueWrapper cachedValue = cache.get(key);
+		ExtendedDataSet cached = cachedValue == null ? null : (ExtendedDataSet) cachedValue.get();
+		if (cached == null || cached.isStale() || cached.getPatientLocations() != null) {
+			return false;
+		}
+		
+		log.debug("Refreshing the rows of {} patients in the report of patient grid: {}", patientIds.size(), patientGrid);
+		
+		//A concurrent evaluation of the report could have started before the changes, it is evicted instead
+		if (evaluations.isInFlight(key)) {
+			return false;
+		}
+		
+		AtomicBoolean refreshed = new AtomicBoolean();
+		refreshes.execute(key, () -> {
+			ExtendedDataSet refreshedReport = doRefresh(patientGrid, cached, patientIds);
+			//Empty reports are never cached, see PatientGridService#evaluate
+			if (refreshedReport != null && !refreshedReport.getSimpleDataSet().getRows().isEmpty()) {
+				cache.put(key, refreshedReport);
+				refreshed.set(true);
+			}
+			
+			return refreshedReport;
+		});
+		
+		return refreshed.get();
+	}
+	
+	private ExtendedDataSet doRefresh(PatientGrid patientGrid, ExtendedDataSet cached, Set<Integer> patientIds) {
+		try {
+			final String clientTimezone = PatientGridUtils.getCurrentUserTimeZone();
+			PatientDataSetDefinition dataSetDef = PatientGridUtils.createPatientDataSetDefinition(patientGrid, true,
+			    clientTimezone);
+			return refreshRows(patientGrid, clientTimezone, dataSetDef, cached, patientIds);
+		}
+		catch (EvaluationException e) {
+			throw new APIException("Failed to refresh the report of patient grid: " + patientGrid, e);
+		}
 	}
 	
 }
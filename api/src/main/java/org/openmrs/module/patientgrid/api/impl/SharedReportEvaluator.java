@@ -0,0 +1,422 @@
+package org.openmrs.module.patientgrid.api.impl;
+
+import static org.openmrs.module.patientgrid.PatientGridConstants.CACHE_KEY_SEPARATOR;
+import static org.openmrs.module.patientgrid.PatientGridConstants.CACHE_KEY_SHARED_PREFIX;
+import static org.openmrs.module.patientgrid.PatientGridConstants.CACHE_MANAGER_NAME;
+import static org.openmrs.module.patientgrid.PatientGridConstants.CACHE_NAME_GRID_REPORTS;
+import static org.openmrs.module.patientgrid.PatientGridConstants.COLUMN_UUID;
+import static org.openmrs.module.patientgrid.PatientGridConstants.GP_SHARED_REPORT_MAX_ROWS;
+import static org.openmrs.module.patientgrid.PatientGridConstants.GP_SHARE_REPORTS;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.lang3.StringUtils;
+
+import org.openmrs.CohortMembership;
+import org.openmrs.Location;
+import org.openmrs.Patient;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.datafilter.impl.EntityBasisMap;
+import org.openmrs.module.patientgrid.BaseEncounterTypePatientGridColumn;
+import org.openmrs.module.patientgrid.ExtendedDataSet;
+import org.openmrs.module.patientgrid.PatientGrid;
+import org.openmrs.module.patientgrid.PatientGridActivator;
+import org.openmrs.module.patientgrid.PatientGridColumn;
+import org.openmrs.module.patientgrid.PatientGridUtils;
+import org.openmrs.module.patientgrid.api.PatientGridService;
+import org.openmrs.module.patientgrid.cache.SingleFlight;
+import org.openmrs.module.reporting.dataset.DataSetRow;
+import org.openmrs.module.reporting.dataset.SimpleDataSet;
+import org.openmrs.module.reporting.dataset.definition.PatientDataSetDefinition;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.EvaluationException;
+import org.openmrs.module.reporting.evaluation.querybuilder.HqlQueryBuilder;
+import org.openmrs.module.reporting.evaluation.service.EvaluationService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+
+/**
+ * Evaluates a shared grid once for all its viewers instead of once per user. The shared report is
+ * evaluated in a daemon thread so that it is not filtered by the datafilter module, the ids of the
+ * locations each patient is mapped to are stored along with the rows. The view of each user is then
+ * projected from the shared report by keeping the rows of the patients the user can see, which is
+ * decided by the datafilter module itself with a query run as the user so that its bypass privileges
+ * and configuration apply. Only the rows of the newest patients overall and of each location up to
+ * the rows limit are evaluated, if there are more than allowed by the
+ * {@link org.openmrs.module.patientgrid.PatientGridConstants#GP_SHARED_REPORT_MAX_ROWS} global
+ * property or if a user can see patients whose rows were not evaluated the grid is evaluated per
+ * user instead.
+ */
+public class SharedReportEvaluator {
+	
+	private static final Logger log = LoggerFactory.getLogger(SharedReportEvaluator.class);
+	
+	/**
+	 * Concurrent evaluations of the same shared report are coalesced, they are keyed like the shared
+	 * report cache entries
+	 */
+	private final SingleFlight<String, ExtendedDataSet> evaluations = new SingleFlight<>();
+	
+	protected static final int DEFAULT_MAX_ROWS = 5000;
+	
+	private static final int VISIBILITY_CHUNK_SIZE = 1000;
+	
+	/**
+	 * Shared reports found to exceed the max rows are not evaluated again for this duration
+	 */
+	private static final long OVERSIZED_RETRY_INTERVAL = TimeUnit.HOURS.toMillis(1);
+	
+	/**
+	 * Cache keys of the shared reports exceeding the max rows and the time they were evaluated
+	 */
+	private final ConcurrentMap<String, Long> oversizedReports = new ConcurrentHashMap<>();
+	
+	/**
+	 * Checks if the report of the specified grid can be shared across users, it is the case if sharing
+	 * is enabled via the global property and the grid is a saved shared grid. Grids with a column for
+	 * an encounter type requiring a view privilege are excluded since the rows would then depend on the
+	 * privileges of the user.
+	 *
+	 * @param patientGrid the patient grid
+	 * @return true if the report can be shared otherwise false
+	 */
+	public static boolean isApplicable(PatientGrid patientGrid) {
+		if (patientGrid.getId() == null || !Boolean.TRUE.equals(patientGrid.getShared())
+		        || PatientGridActivator.getDaemonToken() == null) {
+			return false;
+		}
+		
+		String shareReports = Context.getAdministrationService().getGlobalProperty(GP_SHARE_REPORTS);
+		if (!Boolean.parseBoolean(shareReports == null ? null : shareReports.trim())) {
+			return false;
+		}
+		
+		for (PatientGridColumn column : patientGrid.getColumns()) {
+			if (column instanceof BaseEncounterTypePatientGridColumn) {
+				BaseEncounterTypePatientGridColumn encounterTypeColumn = (BaseEncounterTypePatientGridColumn) column;
+				if (encounterTypeColumn.getEncounterType().getViewPrivilege() != null) {
+					log.debug("Not sharing the report of grid {}, the encounter type of column {} requires a privilege",
+					    patientGrid, column.getName());
+					return false;
+				}
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Gets the cache key of the shared report of the specified grid, the report depends on the timezone
+	 * and locale which are hashed to keep the key usable as a file name
+	 *
+	 * @param patientGrid the patient grid
+	 * @param clientTimezone the client timezone
+	 * @param locale the locale
+	 * @return the cache key
+	 */
+	protected static String getCacheKey(PatientGrid patientGrid, String clientTimezone, Locale locale) {
+		String variant = clientTimezone + "|" + locale;
+		return patientGrid.getUuid() + CACHE_KEY_SEPARATOR + CACHE_KEY_SHARED_PREFIX
+		        + UUID.nameUUIDFromBytes(variant.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * Gets the report of the specified grid as seen by the authenticated user, the shared report is
+	 * evaluated if it is not cached yet or if the cache should be ignored.
+	 *
+	 * @param patientGrid the patient grid
+	 * @param ignoreCache specifies if the shared report should be evaluated even if it is cached
+	 * @return the view of the user or null if the shared report has too many rows or lacks rows the
+	 *         user can see and the grid should be evaluated for the user
+	 */
+	public ExtendedDataSet evaluate(PatientGrid patientGrid, boolean ignoreCache) {
+		final String clientTimezone = PatientGridUtils.getCurrentUserTimeZone();
+		final Locale locale = Context.getLocale();
+		final String key = getCacheKey(patientGrid, clientTimezone, locale);
+		final int limit = PatientGridServiceImpl.getRowsCountLimit();
+		Long oversizedAt = oversizedReports.get(key);
+		if (oversizedAt != null) {
+			if (System.currentTimeMillis() - oversizedAt < OVERSIZED_RETRY_INTERVAL) {
+				return null;
+			}
+			oversizedReports.remove(key, oversizedAt);
+		}
+		
+		final Cache cache = Context.getRegisteredComponent(CACHE_MANAGER_NAME, CacheManager.class)
+		        .getCache(CACHE_NAME_GRID_REPORTS);
+		ExtendedDataSet sharedReport = null;
+		if (!ignoreCache) {
+			Cache.ValueWrapper cached = cache.get(key);
+			sharedReport = cached == null ? null : (ExtendedDataSet) cached.get();
+		}
+		//Only the rows visible with the rows limit used at evaluation time are in the shared report
+		if (sharedReport == null || sharedReport.getPatientLocations() == null
+		        || sharedReport.getRowsCountLimit() != limit) {
+			sharedReport = evaluations.execute(key, () -> {
+				ExtendedDataSet report = evaluateAsDaemon(patientGrid.getUuid(), clientTimezone, locale, limit);
+				if (report == null) {
+					log.info("The shared report of patient grid {} has too many rows, evaluating it per user",
+					    patientGrid.getUuid());
+					oversizedReports.put(key, System.currentTimeMillis());
+				} else {
+					cache.put(key, report);
+				}
+				return report;
+			});
+		}
+		if (sharedReport == null) {
+			return null;
+		}
+		
+		ExtendedDataSet view = project(sharedReport,
+		    getVisiblePatientUuids(sharedReport.getPatientLocations().keySet()), limit);
+		if (view == null) {
+			log.debug("The shared report of patient grid {} lacks rows visible to the user, evaluating it per user",
+			    patientGrid.getUuid());
+		}
+		
+		return view;
+	}
+	
+	/**
+	 * Gets the maximum number of rows of a shared report
+	 *
+	 * @return the max rows, zero or less for no limit
+	 */
+	protected static int getMaxRows() {
+		String value = Context.getAdministrationService().getGlobalProperty(GP_SHARED_REPORT_MAX_ROWS);
+		if (StringUtils.isNotBlank(value)) {
+			try {
+				return Integer.parseInt(value.trim());
+			}
+			catch (NumberFormatException e) {
+				log.warn("The max rows '{}' defined in the global property '{}' is not supported, using {}", value,
+				    GP_SHARED_REPORT_MAX_ROWS, DEFAULT_MAX_ROWS);
+			}
+		}
+		
+		return DEFAULT_MAX_ROWS;
+	}
+	
+	private ExtendedDataSet evaluateAsDaemon(String gridUuid, String clientTimezone, Locale locale, int limit) {
+		log.debug("Generating shared report for patient grid: {}", gridUuid);
+		
+		final AtomicReference<ExtendedDataSet> result = new AtomicReference<>();
+		final AtomicReference<RuntimeException> error = new AtomicReference<>();
+		DaemonToken daemonToken = PatientGridActivator.getDaemonToken();
+		Thread thread = Daemon.runInDaemonThread(() -> {
+			try {
+				Context.setLocale(locale);
+				//The grid is reloaded since lazy associations can't be loaded from another session
+				PatientGrid patientGrid = Context.getService(PatientGridService.class).getPatientGridByUuid(gridUuid);
+				PatientDataSetDefinition dataSetDef = PatientGridUtils.createPatientDataSetDefinition(patientGrid, true,
+				    clientTimezone);
+				result.set(PatientGridServiceImpl.createSharedExtendedDataSet(patientGrid, clientTimezone, dataSetDef,
+				    limit, getMaxRows()));
+			}
+			catch (EvaluationException e) {
+				error.set(new APIException("Failed to evaluate patient grid: " + gridUuid, e));
+			}
+			catch (RuntimeException e) {
+				error.set(e);
+			}
+		}, daemonToken);
+		
+		try {
+			thread.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new APIException("Interrupted while evaluating patient grid: " + gridUuid, e);
+		}
+		
+		if (error.get() != null) {
+			throw error.get();
+		}
+		
+		return result.get();
+	}
+	
+	/**
+	 * Gets the ids of the locations each patient in the base cohort of the specified context is mapped
+	 * to
+	 *
+	 * @param context the evaluation context
+	 * @param patientUuids the uuids of the patients in the base cohort, see
+	 *            {@link #getPatientUuids(EvaluationContext)}
+	 * @return a map of patient uuids and location ids ordered like the base cohort
+	 * @throws EvaluationException
+	 */
+	protected static Map<String, List<String>> getPatientLocations(EvaluationContext context,
+	        Map<Integer, String> patientUuids) throws EvaluationException {
+		EvaluationService evaluationService = Context.getService(EvaluationService.class);
+		
+		HqlQueryBuilder basisQuery = new HqlQueryBuilder();
+		basisQuery.select("e.entityIdentifier", "e.basisIdentifier");
+		basisQuery.from(EntityBasisMap.class, "e");
+		basisQuery.whereEqual("e.basisType", Location.class.getName());
+		basisQuery.whereEqual("e.entityType", Patient.class.getName());
+		basisQuery.wherePatientIn("e.entityIdentifier", context);
+		Map<Integer, List<String>> patientIdAndLocationIds = new HashMap<>();
+		for (Object[] row : evaluationService.evaluateToList(basisQuery, context)) {
+			patientIdAndLocationIds.computeIfAbsent(Integer.valueOf(row[0].toString()), k -> new ArrayList<>())
+			        .add(row[1].toString());
+		}
+		
+		Collection<CohortMembership> members = context.getBaseCohort().getMemberships();
+		Map<String, List<String>> patientLocations = new LinkedHashMap<>(members.size() * 2);
+		for (CohortMembership member : members) {
+			String patientUuid = patientUuids.get(member.getPatientId());
+			if (patientUuid != null) {
+				List<String> locationIds = patientIdAndLocationIds.get(member.getPatientId());
+				patientLocations.put(patientUuid, locationIds == null ? Collections.emptyList() : locationIds);
+			}
+		}
+		
+		return patientLocations;
+	}
+	
+	/**
+	 * Gets the patients which can be in the view of a user, a user sees the first patients mapped to the
+	 * locations they have access to up to the rows limit so a patient can only be in a view if it is
+	 * among the first patients of one of its locations. The first patients overall are also included
+	 * for the users having access to all locations.
+	 *
+	 * @param patientLocations the patient uuids and location ids ordered like the cohort
+	 * @param limit the maximum number of rows of a view, zero or less for no limit
+	 * @return the uuids of the patients
+	 */
+	protected static Set<String> getVisiblePatients(Map<String, List<String>> patientLocations, int limit) {
+		if (limit <= 0) {
+			return new HashSet<>(patientLocations.keySet());
+		}
+		
+		Set<String> visiblePatients = new HashSet<>();
+		Map<String, Integer> locationCounts = new HashMap<>();
+		int count = 0;
+		for (Map.Entry<String, List<String>> entry : patientLocations.entrySet()) {
+			boolean visible = count++ < limit;
+			for (String locationId : entry.getValue()) {
+				if (locationCounts.merge(locationId, 1, Integer::sum) <= limit) {
+					visible = true;
+				}
+			}
+			if (visible) {
+				visiblePatients.add(entry.getKey());
+			}
+		}
+		
+		return visiblePatients;
+	}
+	
+	/**
+	 * Gets the uuids of the patients in the base cohort of the specified context
+	 *
+	 * @param context the evaluation context
+	 * @return a map of patient ids and uuids
+	 * @throws EvaluationException
+	 */
+	protected static Map<Integer, String> getPatientUuids(EvaluationContext context) throws EvaluationException {
+		HqlQueryBuilder uuidQuery = new HqlQueryBuilder();
+		uuidQuery.select("p.patientId", "p.uuid");
+		uuidQuery.from(Patient.class, "p");
+		uuidQuery.wherePatientIn("p.patientId", context);
+		Map<Integer, String> patientUuids = new HashMap<>();
+		for (Object[] row : Context.getService(EvaluationService.class).evaluateToList(uuidQuery, context)) {
+			patientUuids.put((Integer) row[0], (String) row[1]);
+		}
+		
+		return patientUuids;
+	}
+	
+	/**
+	 * Gets the patients among the specified ones that the authenticated user can see, the query is run
+	 * in the session of the user so the hibernate filters of the datafilter module decide it exactly
+	 * like for a grid evaluated for the user, including the bypass privileges and the filters disabled
+	 * by configuration.
+	 *
+	 * @param patientUuids the patient uuids
+	 * @return the uuids of the visible patients
+	 */
+	protected static Set<String> getVisiblePatientUuids(Collection<String> patientUuids) {
+		List<String> uuids = new ArrayList<>(patientUuids);
+		Set<String> visiblePatients = new HashSet<>(uuids.size() * 2);
+		EvaluationService evaluationService = Context.getService(EvaluationService.class);
+		for (int i = 0; i < uuids.size(); i += VISIBILITY_CHUNK_SIZE) {
+			HqlQueryBuilder q = new HqlQueryBuilder();
+			q.select("p.uuid");
+			q.from(Patient.class, "p");
+			q.whereIn("p.uuid", uuids.subList(i, Math.min(i + VISIBILITY_CHUNK_SIZE, uuids.size())));
+			visiblePatients.addAll(evaluationService.evaluateToList(q, String.class, new EvaluationContext()));
+		}
+		
+		return visiblePatients;
+	}
+	
+	/**
+	 * Projects the view of a user from the specified shared report, only the rows of the specified
+	 * patients are kept and the rows limit is applied to them in the order of the evaluated cohort so
+	 * that the view matches a report evaluated for the user.
+	 *
+	 * @param sharedReport the shared report
+	 * @param visiblePatients the uuids of the patients the user can see
+	 * @param limit the maximum number of rows, zero or less for no limit
+	 * @return the view of the user or null if the shared report lacks the row of a kept patient, see
+	 *         {@link #getVisiblePatients(Map, int)}
+	 */
+	protected static ExtendedDataSet project(ExtendedDataSet sharedReport, Set<String> visiblePatients, int limit) {
+		List<String> viewPatients = new ArrayList<>();
+		for (String patientUuid : sharedReport.getPatientLocations().keySet()) {
+			if (visiblePatients.contains(patientUuid)) {
+				viewPatients.add(patientUuid);
+			}
+		}
+		
+		int initialRowsCount = viewPatients.size();
+		boolean truncated = limit > 0 && limit < initialRowsCount;
+		Set<String> keptPatients = new HashSet<>(truncated ? viewPatients.subList(0, limit) : viewPatients);
+		SimpleDataSet sharedDataSet = sharedReport.getSimpleDataSet();
+		SimpleDataSet dataSet = new SimpleDataSet(sharedDataSet.getDefinition(), sharedDataSet.getContext());
+		for (DataSetRow row : sharedDataSet.getRows()) {
+			if (keptPatients.contains(row.getColumnValue(COLUMN_UUID))) {
+				dataSet.addRow(row);
+			}
+		}
+		//The visibility rules of the user don't match the locations the rows were evaluated for
+		if (dataSet.getRows().size() < keptPatients.size()) {
+			return null;
+		}
+		
+		ExtendedDataSet view = new ExtendedDataSet();
+		view.setSimpleDataSet(dataSet);
+		view.setUsedDateRange(sharedReport.getUsedDateRange());
+		view.setPeriodOperand(sharedReport.getPeriodOperand());
+		view.setRowsCountLimit(limit);
+		view.setInitialRowsCount(initialRowsCount);
+		view.setTruncated(truncated);
+		view.setSharedView(true);
+		view.setStale(sharedReport.isStale());
+		return view;
+	}
+	
+}
@@ -0,0 +1,204 @@
+package org.openmrs.module.patientgrid.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression codecs that can be applied to cache files, a compressed file starts with a header
+ * made of a marker and the id of the codec used so that compressed and uncompressed files can be
+ * mixed in the cache directory.
+ */
+public enum CacheFileCompression {
+	
+	NONE(0) {
+		
+		@Override
+		protected OutputStream compress(OutputStream out) {
+			return out;
+		}
+		
+		@Override
+		protected InputStream decompress(InputStream in) {
+			return in;
+		}
+	},
+	
+	GZIP(1) {
+		
+		@Override
+		protected OutputStream compress(OutputStream out) throws IOException {
+			return new GZIPOutputStream(out, BUFFER_SIZE);
+		}
+		
+		@Override
+		protected InputStream decompress(InputStream in) throws IOException {
+			return new GZIPInputStream(in, BUFFER_SIZE);
+		}
+	},
+	
+	/**
+	 * Raw deflate at the fastest level, it trades some compression ratio for a lot less CPU time than
+	 * gzip which is the better choice when reports are recomputed and read often
+	 */
+	DEFLATE(2) {
+		
+		@Override
+		protected OutputStream compress(OutputStream out) {
+			final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+			return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+				
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					}
+					finally {
+						deflater.end();
+					}
+				}
+			};
+		}
+		
+		@Override
+		protected InputStream decompress(InputStream in) {
+			final Inflater inflater = new Inflater(true);
+			return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+				
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					}
+					finally {
+						inflater.end();
+					}
+				}
+			};
+		}
+	};
+	
+	/**
+	 * Marks the start of a compressed cache file, it can't be confused with the start of an XML file or
+	 * a file in the {@link ColumnarDataSetSerializer} format
+	 */
+	public static final int MAGIC = 0x5047435A;
+	
+	private static final int HEADER_LENGTH = 5;
+	
+	private static final int BUFFER_SIZE = 4 * 8192;
+	
+	private final int id;
+	
+	CacheFileCompression(int id) {
+		this.id = id;
+	}
+	
+	public int getId() {
+		return id;
+	}
+	
+	protected abstract OutputStream compress(OutputStream out) throws IOException;
+	
+	protected abstract InputStream decompress(InputStream in) throws IOException;
+	
+	/**
+	 * Gets the compression applied to the specified file
+	 *
+	 * @param file the file to check
+	 * @return the compression codec, {@link #NONE} if the file has no compression header
+	 * @throws IOException
+	 */
+	public static CacheFileCompression of(File file) throws IOException {
+		if (file.length() < HEADER_LENGTH) {
+			return NONE;
+		}
+		
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(file.toPath()))) {
+			if (in.readInt() != MAGIC) {
+				return NONE;
+			}
+			
+			return getById(in.readUnsignedByte());
+		}
+	}
+	
+	private static CacheFileCompression getById(int id) throws IOException {
+		for (CacheFileCompression compression : values()) {
+			if (compression.id == id) {
+				return compression;
+			}
+		}
+		
+		throw new IOException("Unknown cache file compression " + id);
+	}
+	
+	/**
+	 * Opens a stream to write to the specified file, the compression header is written first and the
+	 * written bytes are compressed with this codec
+	 *
+	 * @param file the file to write
+	 * @return the output stream
+	 * @throws IOException
+	 */
+	public OutputStream newOutputStream(File file) throws IOException {
+		File parent = file.getParentFile();
+		if (parent != null && !parent.mkdirs() && !parent.isDirectory()) {
+			throw new IOException("Directory '" + parent + "' could not be created");
+		}
+		
+		OutputStream out = new BufferedOutputStream(Files.newOutputStream(file.toPath()), BUFFER_SIZE);
+		if (this == NONE) {
+			return out;
+		}
+		
+		try {
+			DataOutputStream header = new DataOutputStream(out);
+			header.writeInt(MAGIC);
+			header.writeByte(id);
+			return compress(out);
+		}
+		catch (IOException e) {
+			out.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Opens a stream to read the uncompressed contents of the specified file whatever the codec used
+	 * to write it
+	 *
+	 * @param file the file to read
+	 * @return the input stream
+	 * @throws IOException
+	 */
+	public static InputStream newInputStream(File file) throws IOException {
+		CacheFileCompression compression = of(file);
+		InputStream in = new BufferedInputStream(Files.newInputStream(file.toPath()), BUFFER_SIZE);
+		if (compression == NONE) {
+			return in;
+		}
+		
+		try {
+			new DataInputStream(in).readFully(new byte[HEADER_LENGTH]);
+			return new BufferedInputStream(compression.decompress(in), BUFFER_SIZE);
+		}
+		catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+	
+}
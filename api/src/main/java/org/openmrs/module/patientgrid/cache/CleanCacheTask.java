@@ -33,7 +33,10 @@ public class CleanCacheTask extends AbstractTask {
 					}
 					
 				}
-				DiskCache.getInstance().deleteCacheFileOlderThan(maxAge);
+				DiskCache diskCache = DiskCache.getInstance();
+				diskCache.flushAccessTimes();
+				diskCache.deleteCacheFileOlderThan(maxAge);
+				diskCache.deleteLeastRecentlyUsedFiles();
 			}
 			catch (Exception e) {
 				log.error("Error while cleaning disk cache:", e);
@@ -0,0 +1,526 @@
+package org.openmrs.module.patientgrid.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openmrs.module.patientgrid.ExtendedDataSet;
+import org.openmrs.module.patientgrid.xstream.CustomXstreamSerializer;
+import org.openmrs.module.reporting.dataset.DataSetColumn;
+import org.openmrs.module.reporting.dataset.DataSetRow;
+import org.openmrs.module.reporting.dataset.SimpleDataSet;
+import org.openmrs.serialization.SerializationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serializes {@link ExtendedDataSet} instances to a compact binary columnar format, the values of
+ * each column are written together, strings are dictionary encoded i.e. each distinct string is
+ * written once and referenced by its index and dates are written as epoch milliseconds. Cell values
+ * of unsupported types fall back to xstream XML.
+ */
+public class ColumnarDataSetSerializer {
+	
+	private static final Logger LOGGER = LoggerFactory.getLogger(ColumnarDataSetSerializer.class);
+	
+	/**
+	 * Marks the start of a file written in the columnar format, it can't be confused with an XML file
+	 * since these start with a '<' character
+	 */
+	public static final int MAGIC = 0x50474344;
+	
+	/**
+	 * Should be incremented if the layout of the format is changed, files written with another version
+	 * are not restored and the grid report is recomputed.
+	 */
+	public static final int FORMAT_VERSION = 2;
+	
+	private static final int DEFAULT_BUFFER_SIZE = 4 * 8192;
+	
+	private static final byte TAG_ABSENT = 0;
+	
+	private static final byte TAG_NULL = 1;
+	
+	private static final byte TAG_STRING = 2;
+	
+	private static final byte TAG_INTEGER = 3;
+	
+	private static final byte TAG_LONG = 4;
+	
+	private static final byte TAG_DOUBLE = 5;
+	
+	private static final byte TAG_TRUE = 6;
+	
+	private static final byte TAG_FALSE = 7;
+	
+	private static final byte TAG_DATE = 8;
+	
+	private static final byte TAG_MAP = 9;
+	
+	private static final byte TAG_LIST = 10;
+	
+	private static final byte TAG_XML = 11;
+	
+	private final CustomXstreamSerializer xstreamSerializer;
+	
+	public ColumnarDataSetSerializer(CustomXstreamSerializer xstreamSerializer) {
+		this.xstreamSerializer = xstreamSerializer;
+	}
+	
+	/**
+	 * Checks if the specified file was written in the columnar format
+	 *
+	 * @param file the file to check
+	 * @return true if the file starts with the columnar format marker otherwise false
+	 * @throws IOException
+	 */
+	public static boolean isColumnar(File file) throws IOException {
+		if (file.length() < 4) {
+			return false;
+		}
+		
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(file.toPath()))) {
+			return in.readInt() == MAGIC;
+		}
+	}
+	
+	public void write(ExtendedDataSet dataSet, File target) throws IOException {
+		File parent = target.getParentFile();
+		if (parent != null && !parent.mkdirs() && !parent.isDirectory()) {
+			throw new IOException("Directory '" + parent + "' could not be created");
+		}
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(target.toPath()), DEFAULT_BUFFER_SIZE)) {
+			write(dataSet, out);
+		}
+	}
+	
+	public ExtendedDataSet read(File source) throws IOException {
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(source.toPath()), DEFAULT_BUFFER_SIZE)) {
+			return read(in);
+		}
+	}
+	
+	/**
+	 * Writes the specified dataset to the specified stream, the layout is a header with the dataset
+	 * properties, the string dictionary, the column definitions, the values column by column and then
+	 * the patient locations of a shared report.
+	 *
+	 * @param dataSet the dataset to write
+	 * @param out the stream to write to
+	 * @throws IOException
+	 */
+	public void write(ExtendedDataSet dataSet, OutputStream out) throws IOException {
+		SimpleDataSet simpleDataSet = dataSet.getSimpleDataSet();
+		List<DataSetRow> rows = simpleDataSet == null ? new ArrayList<>() : simpleDataSet.getRows();
+		List<DataSetColumn> columns = getColumns(rows);
+		Dictionary dictionary = new Dictionary();
+		//The dictionary must be written before the values referencing it so the values are buffered
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		DataOutputStream body = new DataOutputStream(buffer);
+		writeVarInt(body, columns.size());
+		for (DataSetColumn column : columns) {
+			writeVarInt(body, dictionary.indexOf(column.getName()));
+			writeVarInt(body, dictionary.indexOf(column.getLabel()));
+			writeVarInt(body, dictionary.indexOf(column.getDataType() == null ? null : column.getDataType().getName()));
+		}
+		
+		writeVarInt(body, rows.size());
+		for (DataSetColumn column : columns) {
+			for (DataSetRow row : rows) {
+				Map<DataSetColumn, Object> values = row.getColumnValues();
+				if (values.containsKey(column)) {
+					writeValue(values.get(column), body, dictionary);
+				} else {
+					body.writeByte(TAG_ABSENT);
+				}
+			}
+		}
+		
+		writePatientLocations(dataSet.getPatientLocations(), body, dictionary);
+		body.flush();
+		
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(MAGIC);
+		data.writeShort(FORMAT_VERSION);
+		writeNullableString(data, dataSet.getXstreamVersion());
+		data.writeBoolean(dataSet.isTruncated());
+		data.writeInt(dataSet.getRowsCountLimit());
+		data.writeInt(dataSet.getInitialRowsCount());
+		writeNullableString(data, dataSet.getUsedDateRange());
+		writeNullableString(data, dataSet.getPeriodOperand());
+		data.writeBoolean(simpleDataSet != null);
+		writeVarInt(data, dictionary.strings.size());
+		for (String s : dictionary.strings) {
+			writeString(data, s);
+		}
+		
+		buffer.writeTo(data);
+		data.flush();
+	}
+	
+	/**
+	 * Reads a dataset written with {@link #write(ExtendedDataSet, OutputStream)} from the specified
+	 * stream
+	 *
+	 * @param in the stream to read from
+	 * @return the dataset or null if it was written with another version of the format
+	 * @throws IOException
+	 */
+	public ExtendedDataSet read(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		if (data.readInt() != MAGIC) {
+			throw new IOException("The data is not in the columnar grid report format");
+		}
+		
+		ExtendedDataSet dataSet = readProperties(data);
+		if (dataSet == null) {
+			return null;
+		}
+		
+		boolean hasSimpleDataSet = data.readBoolean();
+		String[] dictionary = new String[readVarInt(data)];
+		for (int i = 0; i < dictionary.length; i++) {
+			dictionary[i] = readString(data);
+		}
+		
+		DataSetColumn[] columns = new DataSetColumn[readVarInt(data)];
+		for (int i = 0; i < columns.length; i++) {
+			String name = lookup(dictionary, readVarInt(data));
+			String label = lookup(dictionary, readVarInt(data));
+			columns[i] = new DataSetColumn(name, label, loadClass(lookup(dictionary, readVarInt(data))));
+		}
+		
+		DataSetRow[] rows = new DataSetRow[readVarInt(data)];
+		for (int i = 0; i < rows.length; i++) {
+			rows[i] = new DataSetRow();
+		}
+		
+		for (DataSetColumn column : columns) {
+			for (DataSetRow row : rows) {
+				byte tag = data.readByte();
+				if (tag != TAG_ABSENT) {
+					row.addColumnValue(column, readValue(tag, data, dictionary));
+				}
+			}
+		}
+		
+		dataSet.setPatientLocations(readPatientLocations(data, dictionary));
+		if (hasSimpleDataSet) {
+			SimpleDataSet simpleDataSet = new SimpleDataSet(null, null);
+			for (DataSetRow row : rows) {
+				simpleDataSet.addRow(row);
+			}
+			
+			dataSet.setSimpleDataSet(simpleDataSet);
+		}
+		
+		return dataSet;
+	}
+	
+	/**
+	 * Writes the location ids of each patient of a shared report, the count is shifted by one so that
+	 * zero stands for null
+	 */
+	private void writePatientLocations(Map<String, List<String>> patientLocations, DataOutputStream out,
+	        Dictionary dictionary) throws IOException {
+		writeVarInt(out, patientLocations == null ? 0 : patientLocations.size() + 1);
+		if (patientLocations == null) {
+			return;
+		}
+		
+		for (Map.Entry<String, List<String>> entry : patientLocations.entrySet()) {
+			writeVarInt(out, dictionary.indexOf(entry.getKey()));
+			writeVarInt(out, entry.getValue().size());
+			for (String locationId : entry.getValue()) {
+				writeVarInt(out, dictionary.indexOf(locationId));
+			}
+		}
+	}
+	
+	private Map<String, List<String>> readPatientLocations(DataInputStream in, String[] dictionary) throws IOException {
+		int size = readVarInt(in) - 1;
+		if (size < 0) {
+			return null;
+		}
+		
+		Map<String, List<String>> patientLocations = new LinkedHashMap<>(size * 2);
+		for (int i = 0; i < size; i++) {
+			String patientUuid = lookup(dictionary, readVarInt(in));
+			int count = readVarInt(in);
+			List<String> locationIds = new ArrayList<>(count);
+			for (int j = 0; j < count; j++) {
+				locationIds.add(lookup(dictionary, readVarInt(in)));
+			}
+			
+			patientLocations.put(patientUuid, locationIds);
+		}
+		
+		return patientLocations;
+	}
+	
+	/**
+	 * Reads only the properties of a dataset from the header at the start of the specified stream, the
+	 * rows are not read which makes it cheap to check if a cached dataset is obsolete.
+	 *
+	 * @param in the stream to read from
+	 * @return a dataset without rows or null if the data is not in this format or was written with
+	 *         another version of the format
+	 * @throws IOException
+	 */
+	public ExtendedDataSet readHeader(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		if (data.readInt() != MAGIC) {
+			return null;
+		}
+		
+		return readProperties(data);
+	}
+	
+	private ExtendedDataSet readProperties(DataInputStream data) throws IOException {
+		int version = data.readUnsignedShort();
+		if (version != FORMAT_VERSION) {
+			LOGGER.debug("The columnar format version is not the current one. Read Version: {}. Current Version {}",
+			    version, FORMAT_VERSION);
+			return null;
+		}
+		
+		ExtendedDataSet dataSet = new ExtendedDataSet();
+		dataSet.setXstreamVersion(readNullableString(data));
+		dataSet.setTruncated(data.readBoolean());
+		dataSet.setRowsCountLimit(data.readInt());
+		dataSet.setInitialRowsCount(data.readInt());
+		dataSet.setUsedDateRange(readNullableString(data));
+		dataSet.setPeriodOperand(readNullableString(data));
+		return dataSet;
+	}
+	
+	private List<DataSetColumn> getColumns(List<DataSetRow> rows) {
+		Set<DataSetColumn> columns = new LinkedHashSet<>();
+		for (DataSetRow row : rows) {
+			columns.addAll(row.getColumnValues().keySet());
+		}
+		
+		return new ArrayList<>(columns);
+	}
+	
+	private void writeValue(Object value, DataOutputStream out, Dictionary dictionary) throws IOException {
+		if (value == null) {
+			out.writeByte(TAG_NULL);
+		} else if (value instanceof String) {
+			out.writeByte(TAG_STRING);
+			writeVarInt(out, dictionary.indexOf((String) value));
+		} else if (value.getClass() == Integer.class) {
+			out.writeByte(TAG_INTEGER);
+			out.writeInt((Integer) value);
+		} else if (value.getClass() == Long.class) {
+			out.writeByte(TAG_LONG);
+			out.writeLong((Long) value);
+		} else if (value.getClass() == Double.class) {
+			out.writeByte(TAG_DOUBLE);
+			out.writeDouble((Double) value);
+		} else if (value instanceof Boolean) {
+			out.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+		} else if (value instanceof Date) {
+			out.writeByte(TAG_DATE);
+			out.writeLong(((Date) value).getTime());
+		} else if (value instanceof Map && hasOnlyStringKeys((Map<?, ?>) value)) {
+			Map<?, ?> map = (Map<?, ?>) value;
+			out.writeByte(TAG_MAP);
+			writeVarInt(out, map.size());
+			for (Map.Entry<?, ?> entry : map.entrySet()) {
+				writeVarInt(out, dictionary.indexOf((String) entry.getKey()));
+				writeValue(entry.getValue(), out, dictionary);
+			}
+		} else if (value instanceof List) {
+			List<?> list = (List<?>) value;
+			out.writeByte(TAG_LIST);
+			writeVarInt(out, list.size());
+			for (Object item : list) {
+				writeValue(item, out, dictionary);
+			}
+		} else {
+			out.writeByte(TAG_XML);
+			try {
+				writeVarInt(out, dictionary.indexOf(xstreamSerializer.serialize(value)));
+			}
+			catch (SerializationException e) {
+				throw new IOException("Failed to serialize value of type " + value.getClass(), e);
+			}
+		}
+	}
+	
+	private Object readValue(byte tag, DataInputStream in, String[] dictionary) throws IOException {
+		switch (tag) {
+			case TAG_NULL:
+				return null;
+			case TAG_STRING:
+				return lookup(dictionary, readVarInt(in));
+			case TAG_INTEGER:
+				return in.readInt();
+			case TAG_LONG:
+				return in.readLong();
+			case TAG_DOUBLE:
+				return in.readDouble();
+			case TAG_TRUE:
+				return Boolean.TRUE;
+			case TAG_FALSE:
+				return Boolean.FALSE;
+			case TAG_DATE:
+				return new Date(in.readLong());
+			case TAG_MAP:
+				int size = readVarInt(in);
+				Map<String, Object> map = new LinkedHashMap<>(size * 2);
+				for (int i = 0; i < size; i++) {
+					String key = lookup(dictionary, readVarInt(in));
+					map.put(key, readValue(in.readByte(), in, dictionary));
+				}
+			
+				return map;
+			case TAG_LIST:
+				int length = readVarInt(in);
+				List<Object> list = new ArrayList<>(length);
+				for (int i = 0; i < length; i++) {
+					list.add(readValue(in.readByte(), in, dictionary));
+				}
+			
+				return list;
+			case TAG_XML:
+				try {
+					return xstreamSerializer.deserialize(lookup(dictionary, readVarInt(in)), Object.class);
+				}
+				catch (SerializationException e) {
+					throw new IOException("Failed to deserialize value", e);
+				}
+			default:
+				throw new IOException("Unknown value tag " + tag);
+		}
+	}
+	
+	private boolean hasOnlyStringKeys(Map<?, ?> map) {
+		for (Object key : map.keySet()) {
+			if (!(key instanceof String)) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	private Class<?> loadClass(String className) {
+		if (className == null) {
+			return null;
+		}
+		
+		try {
+			return Class.forName(className, false, Thread.currentThread().getContextClassLoader());
+		}
+		catch (ClassNotFoundException e) {
+			LOGGER.debug("Column data type {} not found, using {}", className, Object.class.getName());
+			return Object.class;
+		}
+	}
+	
+	/**
+	 * Looks up a string in the dictionary, index zero is reserved for null
+	 */
+	private static String lookup(String[] dictionary, int index) throws IOException {
+		if (index == 0) {
+			return null;
+		}
+		if (index > dictionary.length) {
+			throw new IOException("Invalid dictionary index " + index);
+		}
+		
+		return dictionary[index - 1];
+	}
+	
+	private static void writeNullableString(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null) {
+			writeString(out, s);
+		}
+	}
+	
+	private static String readNullableString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? readString(in) : null;
+	}
+	
+	//DataOutputStream.writeUTF is limited to 64KB strings
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(out, bytes.length);
+		out.write(bytes);
+	}
+	
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[readVarInt(in)];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		
+		out.writeByte(value);
+	}
+	
+	private static int readVarInt(DataInputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			byte b = in.readByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		
+		throw new IOException("Malformed variable length integer");
+	}
+	
+	/**
+	 * Assigns an index to each distinct string in the order they are first encountered, index zero is
+	 * reserved for null
+	 */
+	private static class Dictionary {
+		
+		private final Map<String, Integer> indexes = new HashMap<>();
+		
+		private final List<String> strings = new ArrayList<>();
+		
+		private int indexOf(String s) {
+			if (s == null) {
+				return 0;
+			}
+			
+			Integer index = indexes.get(s);
+			if (index == null) {
+				strings.add(s);
+				index = strings.size();
+				indexes.put(s, index);
+			}
+			
+			return index;
+		}
+		
+	}
+	
+}
@@ -1,17 +1,26 @@
 package org.openmrs.module.patientgrid.cache;
 
+import static org.openmrs.module.patientgrid.PatientGridConstants.CACHE_KEY_SEPARATOR;
 import static org.openmrs.module.patientgrid.PatientGridConstants.DEFAULT_DISK_CACHE_DIR_NAME;
 import static org.openmrs.module.patientgrid.PatientGridConstants.GP_DISK_CACHE_DIR;
+import static org.openmrs.module.patientgrid.PatientGridConstants.GP_MAX_CACHE_SIZE;
 import static org.openmrs.module.patientgrid.PatientGridConstants.MODULE_ID;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.joda.time.DateTime;
-import org.joda.time.Hours;
 import org.openmrs.api.APIException;
 import org.openmrs.api.context.Context;
 import org.openmrs.util.OpenmrsUtil;
@@ -21,27 +30,63 @@ import org.slf4j.LoggerFactory;
 /**
  * Custom cache implementation that uses a directory to store cache entries in files, each entry in
  * the cache is saved to a file where the entry key is the filename and the entry value are the file
- * contents.
+ * contents. Files are spread in sub directories named after a hash of the grid uuid part of the key,
+ * an in-memory index of the entries grouped by grid is kept so that evicting the entries of a grid
+ * or sweeping old entries never requires to list or stat the whole cache directory. Access times
+ * are tracked in the index and only flushed to the files last modified dates periodically, the
+ * total size of the files can be bounded in which case the least recently used files are deleted
+ * first. Deleting a file evicts the matching entry of the {@link MemoryCache}.
  */
 public class DiskCache {
 	
 	private static final Logger log = LoggerFactory.getLogger(DiskCache.class);
 	
+	/**
+	 * Prefix of the temporary files entries are written to before being renamed, it can't match a
+	 * cache key so that temporary files are never read or evicted as entries.
+	 */
+	public static final String TEMP_FILE_PREFIX = ".tmp-";
+	
+	private static final int SHARD_COUNT = 256;
+	
+	/**
+	 * When the max size is exceeded, files are deleted until the total size is below this percentage
+	 * of the max size so that eviction doesn't run again on the next write
+	 */
+	private static final int EVICTION_TARGET_PERCENTAGE = 90;
+	
 	private File cacheDirectory;
 	
+	/**
+	 * Grid uuid to the index entries of the cache keys for the grid
+	 */
+	private volatile ConcurrentMap<String, ConcurrentMap<String, IndexEntry>> index;
+	
+	private final AtomicLong size = new AtomicLong();
+	
+	private Long maxSize;
+	
+	private final Object evictionLock = new Object();
+	
+	private MemoryCache memoryCache;
+	
 	public void deleteCacheFileOlderThan(int maxAgeInHour) {
 		log.debug("start cleaning cache folder and remove files created {}h before", maxAgeInHour);
 		final long maxLastModified = DateTime.now().minusHours(maxAgeInHour).getMillis();
-		Arrays.stream(getCacheDirectory().listFiles()).forEach(file -> {
-			if (file.lastModified() < maxLastModified) {
-				boolean deleted = file.delete();
-				if (!deleted) {
-					log.warn("Impossible to delete the cache file {}", file.getAbsolutePath());
-				} else {
-					log.info("Delete with success the cache file {}", file.getAbsolutePath());
+		for (Map<String, IndexEntry> entries : getIndex().values()) {
+			for (Map.Entry<String, IndexEntry> entry : entries.entrySet()) {
+				if (entry.getValue().getLastAccessed() < maxLastModified) {
+					File file = getFile(entry.getKey());
+					boolean deleted = file.delete() || !file.exists();
+					if (!deleted) {
+						log.warn("Impossible to delete the cache file {}", file.getAbsolutePath());
+					} else {
+						removeFromIndex(entry.getKey());
+						log.info("Delete with success the cache file {}", file.getAbsolutePath());
+					}
 				}
 			}
-		});
+		}
 	}
 	
 	private static class DiskCacheHolder {
@@ -54,6 +99,48 @@ public class DiskCache {
 		return DiskCacheHolder.INSTANCE;
 	}
 	
+	/**
+	 * Gets the maximum total size in bytes of the cache files, a value of zero or less means there is
+	 * no limit
+	 *
+	 * @return the maximum size
+	 */
+	protected long getMaxSize() {
+		if (maxSize == null) {
+			long value = 0;
+			String maxSizeDefinedInGP = Context.getAdministrationService().getGlobalProperty(GP_MAX_CACHE_SIZE);
+			if (StringUtils.isNotBlank(maxSizeDefinedInGP)) {
+				try {
+					value = Long.parseLong(maxSizeDefinedInGP.trim());
+				}
+				catch (NumberFormatException e) {
+					log.warn("The max size '{}' defined in the global property '{}' is not supported, the size is not limited",
+					    maxSizeDefinedInGP, GP_MAX_CACHE_SIZE);
+				}
+			}
+			
+			maxSize = value;
+		}
+		
+		return maxSize;
+	}
+	
+	private MemoryCache getMemoryCache() {
+		if (memoryCache == null) {
+			memoryCache = MemoryCache.getInstance();
+		}
+		
+		return memoryCache;
+	}
+	
+	/**
+	 * @return the total size in bytes of the indexed cache files
+	 */
+	public long getSize() {
+		getIndex();
+		return size.get();
+	}
+	
 	protected File getCacheDirectory() {
 		if (cacheDirectory == null) {
 			log.info("Initializing disk cache");
@@ -78,28 +165,331 @@ public class DiskCache {
 		return cacheDirectory;
 	}
 	
+	/**
+	 * Builds the index of the cache entries if it is not built yet, it is called at startup so that the
+	 * first request does not have to wait for the cache directory to be scanned.
+	 */
+	public void initIndex() {
+		getIndex();
+	}
+	
+	/**
+	 * Gets the index of the cache entries, it is built from the contents of the cache directory the
+	 * first time it is accessed.
+	 *
+	 * @return the index
+	 */
+	protected ConcurrentMap<String, ConcurrentMap<String, IndexEntry>> getIndex() {
+		if (index == null) {
+			synchronized (this) {
+				if (index == null) {
+					index = buildIndex();
+				}
+			}
+		}
+		
+		return index;
+	}
+	
+	/**
+	 * Scans the cache directory to build the index, files written with the flat layout used by
+	 * previous versions are moved to their sub directory and leftover temporary files are deleted.
+	 */
+	private ConcurrentMap<String, ConcurrentMap<String, IndexEntry>> buildIndex() {
+		log.info("Building the grid report cache index");
+		
+		ConcurrentMap<String, ConcurrentMap<String, IndexEntry>> newIndex = new ConcurrentHashMap<>();
+		size.set(0);
+		File[] files = getCacheDirectory().listFiles();
+		if (files == null) {
+			return newIndex;
+		}
+		
+		for (File file : files) {
+			if (file.isDirectory()) {
+				File[] shardFiles = file.listFiles();
+				if (shardFiles != null) {
+					for (File shardFile : shardFiles) {
+						indexFile(shardFile, newIndex);
+					}
+				}
+			} else {
+				if (!file.getName().startsWith(TEMP_FILE_PREFIX)) {
+					File target = getFile(file.getName());
+					try {
+						Files.createDirectories(target.getParentFile().toPath());
+						Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+						file = target;
+					}
+					catch (IOException e) {
+						log.warn("Failed to move the cache file {} to {}", file, target, e);
+						continue;
+					}
+				}
+				
+				indexFile(file, newIndex);
+			}
+		}
+		
+		log.info("Indexed {} grid report cache files", newIndex.values().stream().mapToInt(Map::size).sum());
+		
+		return newIndex;
+	}
+	
+	private void indexFile(File file, ConcurrentMap<String, ConcurrentMap<String, IndexEntry>> index) {
+		if (file.getName().startsWith(TEMP_FILE_PREFIX)) {
+			if (!file.delete()) {
+				log.warn("Impossible to delete the temporary cache file {}", file.getAbsolutePath());
+			}
+			return;
+		}
+		
+		addToIndex(file.getName(), new IndexEntry(file.length(), file.lastModified()), index);
+	}
+	
+	private void addToIndex(String filename, IndexEntry entry,
+	        ConcurrentMap<String, ConcurrentMap<String, IndexEntry>> index) {
+		IndexEntry previous = index.computeIfAbsent(getGridUuid(filename), k -> new ConcurrentHashMap<>()).put(filename,
+		    entry);
+		size.addAndGet(entry.size - (previous == null ? 0 : previous.size));
+	}
+	
+	/**
+	 * Removes the specified cache key from the index, the value held in memory for the key is evicted
+	 * too since it must not outlive its file
+	 */
+	private void removeFromIndex(String filename) {
+		getMemoryCache().evict(filename);
+		Map<String, IndexEntry> entries = getIndex().get(getGridUuid(filename));
+		if (entries != null) {
+			IndexEntry removed = entries.remove(filename);
+			if (removed != null) {
+				size.addAndGet(-removed.size);
+			}
+		}
+	}
+	
+	/**
+	 * Gets the grid uuid part of the specified cache key
+	 *
+	 * @param filename the cache key
+	 * @return the grid uuid
+	 */
+	protected static String getGridUuid(String filename) {
+		int index = filename.indexOf(CACHE_KEY_SEPARATOR);
+		return index < 0 ? filename : filename.substring(0, index);
+	}
+	
+	/**
+	 * Gets the name of the sub directory for the specified cache key, all the entries for a grid are in
+	 * the same sub directory.
+	 *
+	 * @param filename the cache key
+	 * @return the sub directory name
+	 */
+	protected static String getShardName(String filename) {
+		int hash = getGridUuid(filename).hashCode() & (SHARD_COUNT - 1);
+		return String.format("%02x", hash);
+	}
+	
 	private boolean hasFile(String filename) {
-		File file = new File(getCacheDirectory(), filename);
+		File file = getFile(filename);
 		return file.exists() && file.isFile();
 	}
 	
 	public File getFile(String filename) {
-		return new File(getCacheDirectory(), filename);
+		return new File(new File(getCacheDirectory(), getShardName(filename)), filename);
+	}
+	
+	/**
+	 * Adds the file for the specified cache key to the index, it must be called after the file was
+	 * written. If the max size of the cache is exceeded, the least recently used files are deleted.
+	 *
+	 * @param filename the cache key
+	 */
+	public void fileWritten(String filename) {
+		File file = getFile(filename);
+		addToIndex(filename, new IndexEntry(file.length(), file.lastModified()), getIndex());
+		long max = getMaxSize();
+		if (max > 0 && size.get() > max) {
+			deleteLeastRecentlyUsedFiles();
+		}
+	}
+	
+	/**
+	 * Gets a token identifying the current version of the file for the specified cache key, a new token
+	 * is returned each time the file is written so callers can detect that the entry changed.
+	 *
+	 * @param filename the cache key
+	 * @return the version token or null if there is no indexed file for the key
+	 */
+	public Object getVersion(String filename) {
+		Map<String, IndexEntry> entries = getIndex().get(getGridUuid(filename));
+		return entries == null ? null : entries.get(filename);
+	}
+	
+	/**
+	 * Marks the file for the specified cache key as used so that it is not removed by the cleaner task,
+	 * the access time is only kept in memory until {@link #flushAccessTimes()} is called.
+	 *
+	 * @param filename the cache key
+	 */
+	public void fileAccessed(String filename) {
+		Map<String, IndexEntry> entries = getIndex().get(getGridUuid(filename));
+		IndexEntry entry = entries == null ? null : entries.get(filename);
+		if (entry != null) {
+			entry.lastAccessed = System.currentTimeMillis();
+		}
+	}
+	
+	/**
+	 * Gets the keys of the files accessed since the specified time, the most recently used first
+	 *
+	 * @param since the time in milliseconds
+	 * @return the list of cache keys
+	 */
+	public List<String> getFilesAccessedSince(long since) {
+		List<Map.Entry<String, Long>> entries = new ArrayList<>();
+		for (Map<String, IndexEntry> gridEntries : getIndex().values()) {
+			for (Map.Entry<String, IndexEntry> entry : gridEntries.entrySet()) {
+				long lastAccessed = entry.getValue().lastAccessed;
+				if (lastAccessed >= since) {
+					entries.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), lastAccessed));
+				}
+			}
+		}
+		
+		entries.sort(Map.Entry.<String, Long> comparingByValue().reversed());
+		List<String> filenames = new ArrayList<>(entries.size());
+		for (Map.Entry<String, Long> entry : entries) {
+			filenames.add(entry.getKey());
+		}
+		
+		return filenames;
+	}
+	
+	/**
+	 * Sets the last modified date of the files accessed since the last flush to their last access
+	 * time, this way access times survive a restart since the index is rebuilt from the files.
+	 */
+	public void flushAccessTimes() {
+		int count = 0;
+		for (Map<String, IndexEntry> entries : getIndex().values()) {
+			for (Map.Entry<String, IndexEntry> entry : entries.entrySet()) {
+				IndexEntry indexEntry = entry.getValue();
+				long lastAccessed = indexEntry.lastAccessed;
+				if (lastAccessed > indexEntry.flushedLastAccessed) {
+					File file = getFile(entry.getKey());
+					if (file.setLastModified(lastAccessed)) {
+						indexEntry.flushedLastAccessed = lastAccessed;
+						count++;
+					} else {
+						log.warn("unable to update last modified property for file {}", file);
+					}
+				}
+			}
+		}
+		
+		log.debug("Flushed the access time of {} cache files", count);
+	}
+	
+	/**
+	 * Deletes the least recently used files until the total size of the cache files is below the
+	 * maximum size, nothing is done if the cache size is not limited.
+	 */
+	public void deleteLeastRecentlyUsedFiles() {
+		long max = getMaxSize();
+		if (max <= 0 || size.get() <= max) {
+			return;
+		}
+		
+		synchronized (evictionLock) {
+			long target = max * EVICTION_TARGET_PERCENTAGE / 100;
+			//Snapshot the access times since they can change while sorting
+			List<Map.Entry<String, Long>> entries = new ArrayList<>();
+			for (Map<String, IndexEntry> gridEntries : getIndex().values()) {
+				for (Map.Entry<String, IndexEntry> entry : gridEntries.entrySet()) {
+					entries.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue().lastAccessed));
+				}
+			}
+			
+			entries.sort(Map.Entry.comparingByValue());
+			for (Map.Entry<String, Long> entry : entries) {
+				if (size.get() <= target) {
+					break;
+				}
+				
+				log.debug("Deleting least recently used cache file {}", entry.getKey());
+				try {
+					deleteFile(entry.getKey());
+				}
+				catch (APIException e) {
+					log.warn("Impossible to delete the cache file {}", entry.getKey(), e);
+				}
+			}
+		}
 	}
 	
 	public void deleteFile(String filename) {
+		removeFromIndex(filename);
 		if (!hasFile(filename)) {
 			return;
 		}
 		
 		try {
-			FileUtils.forceDelete(new File(getCacheDirectory(), filename));
+			FileUtils.forceDelete(getFile(filename));
 		}
 		catch (IOException e) {
 			throw new APIException("Failed to delete file", e);
 		}
 	}
 	
+	/**
+	 * Gets the keys of the files of all the cache entries of the specified grid
+	 *
+	 * @param gridUuid the grid uuid
+	 * @return the list of cache keys
+	 */
+	public List<String> getGridFiles(String gridUuid) {
+		Map<String, IndexEntry> entries = getIndex().get(gridUuid);
+		return entries == null ? new ArrayList<>() : new ArrayList<>(entries.keySet());
+	}
+	
+	/**
+	 * Deletes the files of all the cache entries of the specified grid
+	 *
+	 * @param gridUuid the grid uuid
+	 */
+	public void deleteGridFiles(String gridUuid) {
+		Map<String, IndexEntry> entries = getIndex().get(gridUuid);
+		if (entries == null) {
+			return;
+		}
+		
+		for (String filename : new ArrayList<>(entries.keySet())) {
+			deleteFile(filename);
+		}
+	}
+	
+	/**
+	 * Deletes the files of all the cache entries with a key starting with the specified prefix, the
+	 * prefix must contain the grid uuid
+	 *
+	 * @param prefix the prefix to match
+	 */
+	public void deleteFilesWithPrefix(String prefix) {
+		Map<String, IndexEntry> entries = getIndex().get(getGridUuid(prefix));
+		if (entries == null) {
+			return;
+		}
+		
+		for (String filename : new ArrayList<>(entries.keySet())) {
+			if (filename.startsWith(prefix)) {
+				deleteFile(filename);
+			}
+		}
+	}
+	
 	public void deleteAllFiles() {
 		try {
 			FileUtils.deleteDirectory(getCacheDirectory());
@@ -107,6 +497,40 @@ public class DiskCache {
 		catch (IOException e) {
 			throw new APIException("Failed to delete directory for the disk cache", e);
 		}
+		finally {
+			index = new ConcurrentHashMap<>();
+			size.set(0);
+		}
+	}
+	
+	/**
+	 * Index entry of a cache file
+	 */
+	protected static class IndexEntry {
+		
+		private final long size;
+		
+		private volatile long lastAccessed;
+		
+		/**
+		 * The last access time written to the file last modified date
+		 */
+		private volatile long flushedLastAccessed;
+		
+		IndexEntry(long size, long lastModified) {
+			this.size = size;
+			this.lastAccessed = lastModified;
+			this.flushedLastAccessed = lastModified;
+		}
+		
+		public long getSize() {
+			return size;
+		}
+		
+		public long getLastAccessed() {
+			return lastAccessed;
+		}
+		
 	}
 	
 }
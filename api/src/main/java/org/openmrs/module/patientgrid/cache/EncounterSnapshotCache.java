@@ -0,0 +1,300 @@
+package org.openmrs.module.patientgrid.cache;
+
+import static org.openmrs.module.patientgrid.PatientGridConstants.GP_ENCOUNTER_SNAPSHOT_MAX_SIZE;
+import static org.openmrs.module.patientgrid.PatientGridConstants.GP_ENCOUNTER_SNAPSHOT_TTL;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.EncounterType;
+import org.openmrs.Location;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.patientgrid.filter.definition.LocationCohortDefinition;
+import org.openmrs.module.patientgrid.period.DateRange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds in memory snapshots of the ids of the latest encounter of each patient by encounter type, a
+ * snapshot is keyed by the encounter type, the resolved period and the location filter and it is
+ * shared by all grid evaluations and users since it is loaded with plain SQL that is not subject to
+ * the data filters. A snapshot expires after a configurable number of seconds and the snapshots of an
+ * encounter type are discarded when an encounter of the type or a patient is changed, the maximum
+ * number of encounter ids held across all snapshots is bounded and the least recently used snapshots
+ * are evicted first.
+ */
+public class EncounterSnapshotCache {
+	
+	private static final Logger log = LoggerFactory.getLogger(EncounterSnapshotCache.class);
+	
+	protected static final long DEFAULT_TTL = 300;
+	
+	protected static final long DEFAULT_MAX_SIZE = 1000000;
+	
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	
+	/**
+	 * Incremented for an encounter type each time its snapshots are discarded, a snapshot loaded while
+	 * its encounter type was changed is not kept since it could predate the change.
+	 */
+	private final Map<Integer, AtomicLong> generations = new ConcurrentHashMap<>();
+	
+	private final AtomicLong globalGeneration = new AtomicLong();
+	
+	private Long ttl;
+	
+	private Long maxSize;
+	
+	private long size;
+	
+	public EncounterSnapshotCache() {
+	}
+	
+	EncounterSnapshotCache(long ttl, long maxSize) {
+		this.ttl = ttl;
+		this.maxSize = maxSize;
+	}
+	
+	private static class EncounterSnapshotCacheHolder {
+		
+		private final static EncounterSnapshotCache INSTANCE = new EncounterSnapshotCache();
+		
+	}
+	
+	public static EncounterSnapshotCache getInstance() {
+		return EncounterSnapshotCacheHolder.INSTANCE;
+	}
+	
+	/**
+	 * Gets the snapshot for the specified encounter type, period and location filter, the specified
+	 * function is called to load it if none exists or it has expired.
+	 *
+	 * @param type the encounter type
+	 * @param periodRange the resolved period or null for all time
+	 * @param locationCohortDefinition the location filter or null for all locations
+	 * @param function the function that loads the encounter ids for the encounter type
+	 * @return an unmodifiable list of encounter ids
+	 */
+	public List<Integer> computeIfAbsent(EncounterType type, DateRange periodRange,
+	        LocationCohortDefinition locationCohortDefinition, Function<EncounterType, List> function) {
+		if (!isEnabled()) {
+			return function.apply(type);
+		}
+		
+		String key = createKey(type, periodRange, locationCohortDefinition);
+		long now = currentTimeMillis();
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				if (now - entry.created < getTtl() * 1000) {
+					return entry.encounterIds;
+				}
+				
+				remove(key);
+			}
+		}
+		
+		long generation = getGeneration(type.getEncounterTypeId());
+		long global = globalGeneration.get();
+		List<Integer> encounterIds = Collections.unmodifiableList(toIds(function.apply(type)));
+		synchronized (this) {
+			if (generation == getGeneration(type.getEncounterTypeId()) && global == globalGeneration.get()
+			        && encounterIds.size() <= getMaxSize()) {
+				remove(key);
+				entries.put(key, new Entry(type.getEncounterTypeId(), encounterIds, now));
+				size += encounterIds.size();
+				evictIfNecessary();
+			}
+		}
+		
+		return encounterIds;
+	}
+	
+	/**
+	 * Gets the snapshot for the specified encounter type, period and location filter without loading
+	 * it
+	 *
+	 * @param type the encounter type
+	 * @param periodRange the resolved period or null for all time
+	 * @param locationCohortDefinition the location filter or null for all locations
+	 * @return an unmodifiable list of encounter ids or null if none exists or it has expired
+	 */
+	public List<Integer> get(EncounterType type, DateRange periodRange,
+	        LocationCohortDefinition locationCohortDefinition) {
+		if (!isEnabled()) {
+			return null;
+		}
+		
+		String key = createKey(type, periodRange, locationCohortDefinition);
+		long now = currentTimeMillis();
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			return entry != null && now - entry.created < getTtl() * 1000 ? entry.encounterIds : null;
+		}
+	}
+	
+	/**
+	 * Discards the snapshots of the specified encounter types
+	 *
+	 * @param encounterTypeIds the encounter type ids
+	 */
+	public void invalidate(Set<Integer> encounterTypeIds) {
+		if (encounterTypeIds.isEmpty()) {
+			return;
+		}
+		
+		synchronized (this) {
+			encounterTypeIds.forEach(id -> generations.computeIfAbsent(id, k -> new AtomicLong()).incrementAndGet());
+			Iterator<Entry> it = entries.values().iterator();
+			while (it.hasNext()) {
+				Entry entry = it.next();
+				if (encounterTypeIds.contains(entry.encounterTypeId)) {
+					size -= entry.encounterIds.size();
+					it.remove();
+				}
+			}
+		}
+		
+		log.debug("Discarded the latest encounter snapshots of encounter types {}", encounterTypeIds);
+	}
+	
+	/**
+	 * Discards all the snapshots
+	 */
+	public synchronized void clear() {
+		globalGeneration.incrementAndGet();
+		entries.clear();
+		size = 0;
+	}
+	
+	/**
+	 * @return the number of encounter ids held across all the snapshots
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+	
+	private void remove(String key) {
+		Entry entry = entries.remove(key);
+		if (entry != null) {
+			size -= entry.encounterIds.size();
+		}
+	}
+	
+	private void evictIfNecessary() {
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (size > getMaxSize() && it.hasNext()) {
+			Map.Entry<String, Entry> eldest = it.next();
+			log.debug("Evicting latest encounter snapshot {} from memory", eldest.getKey());
+			size -= eldest.getValue().encounterIds.size();
+			it.remove();
+		}
+	}
+	
+	private long getGeneration(Integer encounterTypeId) {
+		AtomicLong generation = generations.get(encounterTypeId);
+		return generation == null ? 0 : generation.get();
+	}
+	
+	protected static String createKey(EncounterType type, DateRange periodRange,
+	        LocationCohortDefinition locationCohortDefinition) {
+		StringBuilder key = new StringBuilder(type.getUuid());
+		key.append("|").append(periodRange == null ? "" : periodRange.getDateRangeAsString());
+		key.append("|");
+		if (locationCohortDefinition != null) {
+			key.append(locationCohortDefinition.getCountry() ? "country:" : "");
+			Collection<Location> locations = locationCohortDefinition.getLocations();
+			if (locations != null) {
+				key.append(locations.stream().map(Location::getUuid).sorted().collect(Collectors.joining(",")));
+			}
+		}
+		
+		return key.toString();
+	}
+	
+	private static List<Integer> toIds(List<?> values) {
+		List<Integer> ids = new ArrayList<>(values.size());
+		for (Object value : values) {
+			ids.add(((Number) value).intValue());
+		}
+		
+		return ids;
+	}
+	
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+	
+	/**
+	 * Gets the number of seconds a snapshot is kept, a value of zero or less disables the cache.
+	 *
+	 * @return the time to live in seconds
+	 */
+	protected long getTtl() {
+		if (ttl == null) {
+			ttl = getLongGlobalProperty(GP_ENCOUNTER_SNAPSHOT_TTL, DEFAULT_TTL);
+		}
+		
+		return ttl;
+	}
+	
+	/**
+	 * Gets the maximum number of encounter ids held across all the snapshots
+	 *
+	 * @return the maximum size
+	 */
+	protected long getMaxSize() {
+		if (maxSize == null) {
+			maxSize = getLongGlobalProperty(GP_ENCOUNTER_SNAPSHOT_MAX_SIZE, DEFAULT_MAX_SIZE);
+		}
+		
+		return maxSize;
+	}
+	
+	public boolean isEnabled() {
+		return getTtl() > 0 && getMaxSize() > 0;
+	}
+	
+	private static long getLongGlobalProperty(String name, long defaultValue) {
+		String value = Context.getAdministrationService().getGlobalProperty(name);
+		if (StringUtils.isNotBlank(value)) {
+			try {
+				return Long.parseLong(value.trim());
+			}
+			catch (NumberFormatException e) {
+				log.warn("The value '{}' defined in the global property '{}' is not supported, using {}", value, name,
+				    defaultValue);
+			}
+		}
+		
+		return defaultValue;
+	}
+	
+	private static class Entry {
+		
+		private final Integer encounterTypeId;
+		
+		private final List<Integer> encounterIds;
+		
+		private final long created;
+		
+		private Entry(Integer encounterTypeId, List<Integer> encounterIds, long created) {
+			this.encounterTypeId = encounterTypeId;
+			this.encounterIds = encounterIds;
+			this.created = created;
+		}
+		
+	}
+	
+}
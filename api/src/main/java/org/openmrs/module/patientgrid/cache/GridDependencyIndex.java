@@ -0,0 +1,116 @@
+package org.openmrs.module.patientgrid.cache;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.openmrs.module.patientgrid.BaseEncounterTypePatientGridColumn;
+import org.openmrs.module.patientgrid.ObsPatientGridColumn;
+import org.openmrs.module.patientgrid.PatientGrid;
+import org.openmrs.module.patientgrid.PatientGridColumn;
+
+/**
+ * Maps the data a grid report is computed from to the uuids of the grids depending on it, it is used
+ * to find the grids whose cached reports are affected by a change in the database.
+ * <ul>
+ * <li>Encounters are mapped by encounter type to the grids with a column for the type</li>
+ * <li>Observations are mapped by concept to the grids with an obs column for the concept</li>
+ * <li>Patient demographics are mapped to the grids with a name, gender or age column</li>
+ * <li>Patient locations are mapped to the grids with a location or country column and to the shared
+ * grids since shared reports store the locations of each patient</li>
+ * <li>Voided patients affect all the grids</li>
+ * </ul>
+ */
+public class GridDependencyIndex {
+	
+	private final Map<Integer, Set<String>> encounterTypeGrids = new HashMap<>();
+	
+	private final Map<Integer, Set<String>> conceptGrids = new HashMap<>();
+	
+	private final Set<String> patientGrids = new HashSet<>();
+	
+	private final Set<String> locationGrids = new HashSet<>();
+	
+	private final Set<String> allGrids = new HashSet<>();
+	
+	public GridDependencyIndex(Collection<PatientGrid> patientGrids) {
+		for (PatientGrid patientGrid : patientGrids) {
+			add(patientGrid);
+		}
+	}
+	
+	private void add(PatientGrid patientGrid) {
+		String gridUuid = patientGrid.getUuid();
+		allGrids.add(gridUuid);
+		if (Boolean.TRUE.equals(patientGrid.getShared())) {
+			locationGrids.add(gridUuid);
+		}
+		
+		for (PatientGridColumn column : patientGrid.getColumns()) {
+			if (column instanceof BaseEncounterTypePatientGridColumn) {
+				BaseEncounterTypePatientGridColumn encounterTypeColumn = (BaseEncounterTypePatientGridColumn) column;
+				if (encounterTypeColumn.getEncounterType() != null) {
+					encounterTypeGrids.computeIfAbsent(encounterTypeColumn.getEncounterType().getEncounterTypeId(),
+					    k -> new HashSet<>()).add(gridUuid);
+				}
+			}
+			if (column instanceof ObsPatientGridColumn && ((ObsPatientGridColumn) column).getConcept() != null) {
+				conceptGrids.computeIfAbsent(((ObsPatientGridColumn) column).getConcept().getConceptId(),
+				    k -> new HashSet<>()).add(gridUuid);
+			}
+			
+			switch (column.getDatatype()) {
+				case NAME:
+				case GENDER:
+				case ENC_AGE:
+					patientGrids.add(gridUuid);
+					break;
+				case ENC_LOCATION:
+				case ENC_COUNTRY:
+					locationGrids.add(gridUuid);
+					break;
+				default:
+					break;
+			}
+		}
+	}
+	
+	/**
+	 * @return the uuids of all the grids
+	 */
+	public Set<String> getAllGrids() {
+		return new HashSet<>(allGrids);
+	}
+	
+	/**
+	 * Gets the uuids of the grids affected by the specified changes
+	 *
+	 * @param encounterTypeIds the ids of the types of the changed encounters
+	 * @param conceptIds the ids of the concepts of the changed observations
+	 * @param patientChanged specifies if patient demographics changed
+	 * @param locationChanged specifies if the locations a patient is mapped to changed
+	 * @return the set of grid uuids
+	 */
+	public Set<String> getAffectedGrids(Set<Integer> encounterTypeIds, Set<Integer> conceptIds, boolean patientChanged,
+	        boolean locationChanged) {
+		Set<String> gridUuids = new HashSet<>();
+		for (Integer encounterTypeId : encounterTypeIds) {
+			gridUuids.addAll(encounterTypeGrids.getOrDefault(encounterTypeId, Collections.emptySet()));
+		}
+		for (Integer conceptId : conceptIds) {
+			gridUuids.addAll(conceptGrids.getOrDefault(conceptId, Collections.emptySet()));
+		}
+		if (patientChanged) {
+			gridUuids.addAll(patientGrids);
+		}
+		if (locationChanged) {
+			gridUuids.addAll(locationGrids);
+		}
+		
+		return gridUuids;
+	}
+	
+}
@@ -0,0 +1,245 @@
+package org.openmrs.module.patientgrid.cache;
+
+import static org.openmrs.module.patientgrid.PatientGridConstants.GP_MAX_MEMORY_CACHE_SIZE;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.patientgrid.ExtendedDataSet;
+import org.openmrs.module.reporting.dataset.DataSetRow;
+import org.openmrs.module.reporting.dataset.SimpleDataSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory cache of deserialized grid reports placed in front of the {@link DiskCache}, it is
+ * bounded by the estimated size in bytes of the cached values and the least recently used entries
+ * are evicted first when the bound is exceeded.
+ */
+public class MemoryCache {
+	
+	private static final Logger log = LoggerFactory.getLogger(MemoryCache.class);
+	
+	protected static final long DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+	
+	private static final int OBJECT_OVERHEAD = 16;
+	
+	private static final int REFERENCE_SIZE = 8;
+	
+	private static final int MAP_ENTRY_SIZE = 48;
+	
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	
+	private Long maxSize;
+	
+	private long size;
+	
+	public MemoryCache() {
+	}
+	
+	MemoryCache(long maxSize) {
+		this.maxSize = maxSize;
+	}
+	
+	private static class MemoryCacheHolder {
+		
+		private final static MemoryCache INSTANCE = new MemoryCache();
+		
+	}
+	
+	public static MemoryCache getInstance() {
+		return MemoryCacheHolder.INSTANCE;
+	}
+	
+	/**
+	 * Gets the maximum size in bytes of the values held in memory, a value of zero or less disables the
+	 * memory cache.
+	 *
+	 * @return the maximum size
+	 */
+	protected long getMaxSize() {
+		if (maxSize == null) {
+			long value = DEFAULT_MAX_SIZE;
+			String maxSizeDefinedInGP = Context.getAdministrationService().getGlobalProperty(GP_MAX_MEMORY_CACHE_SIZE);
+			if (StringUtils.isNotBlank(maxSizeDefinedInGP)) {
+				try {
+					value = Long.parseLong(maxSizeDefinedInGP.trim());
+				}
+				catch (NumberFormatException e) {
+					log.warn("The max size '{}' defined in the global property '{}' is not supported, using {}",
+					    maxSizeDefinedInGP, GP_MAX_MEMORY_CACHE_SIZE, DEFAULT_MAX_SIZE);
+				}
+			}
+			
+			maxSize = value;
+		}
+		
+		return maxSize;
+	}
+	
+	public boolean isEnabled() {
+		return getMaxSize() > 0;
+	}
+	
+	/**
+	 * Gets the value cached with the specified key and marks it as the most recently used
+	 *
+	 * @param key the cache key
+	 * @return the cached value or null if none exists
+	 */
+	public synchronized Object get(String key) {
+		Entry entry = entries.get(key);
+		return entry == null ? null : entry.value;
+	}
+	
+	/**
+	 * Adds the specified value to the cache, least recently used entries are evicted if the maximum
+	 * size is exceeded. Values bigger than the maximum size are not cached.
+	 *
+	 * @param key the cache key
+	 * @param value the value to cache
+	 */
+	public void put(String key, Object value) {
+		if (value == null || !isEnabled()) {
+			return;
+		}
+		
+		long estimatedSize = estimateSize(value);
+		synchronized (this) {
+			remove(key);
+			if (estimatedSize > getMaxSize()) {
+				log.debug("Not keeping cache entry {} in memory, its estimated size {} exceeds the maximum size", key,
+				    estimatedSize);
+				return;
+			}
+			
+			entries.put(key, new Entry(value, estimatedSize));
+			size += estimatedSize;
+			Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+			while (size > getMaxSize() && it.hasNext()) {
+				Map.Entry<String, Entry> eldest = it.next();
+				log.debug("Evicting least recently used cache entry {} from memory", eldest.getKey());
+				size -= eldest.getValue().size;
+				it.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Removes the entry with the specified key from the cache
+	 *
+	 * @param key the cache key
+	 */
+	public synchronized void evict(String key) {
+		remove(key);
+	}
+	
+	/**
+	 * Removes all entries with a key starting with the specified prefix from the cache
+	 *
+	 * @param prefix the prefix to match
+	 */
+	public synchronized void evictByPrefix(String prefix) {
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Entry> entry = it.next();
+			if (entry.getKey().startsWith(prefix)) {
+				size -= entry.getValue().size;
+				it.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Removes all entries from the cache
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+	
+	/**
+	 * @return the estimated size in bytes of all the cached values
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+	
+	private void remove(String key) {
+		Entry removed = entries.remove(key);
+		if (removed != null) {
+			size -= removed.size;
+		}
+	}
+	
+	/**
+	 * Roughly estimates the number of bytes the specified value occupies on the heap, it walks the rows
+	 * and cell values of grid reports, other objects are given a fixed size.
+	 *
+	 * @param value the value to measure
+	 * @return the estimated size in bytes
+	 */
+	protected static long estimateSize(Object value) {
+		if (value == null) {
+			return 0;
+		}
+		if (value instanceof ExtendedDataSet) {
+			ExtendedDataSet dataSet = (ExtendedDataSet) value;
+			return OBJECT_OVERHEAD + estimateSize(dataSet.getSimpleDataSet()) + estimateSize(dataSet.getUsedDateRange())
+			        + estimateSize(dataSet.getPeriodOperand()) + estimateSize(dataSet.getPatientLocations());
+		}
+		if (value instanceof SimpleDataSet) {
+			long total = OBJECT_OVERHEAD;
+			for (DataSetRow row : ((SimpleDataSet) value).getRows()) {
+				total += estimateSize(row.getColumnValues());
+			}
+			
+			return total;
+		}
+		if (value instanceof String) {
+			return OBJECT_OVERHEAD + 24 + 2L * ((String) value).length();
+		}
+		if (value instanceof Map) {
+			long total = OBJECT_OVERHEAD + MAP_ENTRY_SIZE;
+			for (Object o : ((Map<?, ?>) value).entrySet()) {
+				Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+				//Columns and obs keys are shared between rows, only the reference is counted
+				total += MAP_ENTRY_SIZE + REFERENCE_SIZE + estimateSize(entry.getValue());
+			}
+			
+			return total;
+		}
+		if (value instanceof Collection) {
+			long total = OBJECT_OVERHEAD + MAP_ENTRY_SIZE;
+			for (Object o : (Collection<?>) value) {
+				total += REFERENCE_SIZE + estimateSize(o);
+			}
+			
+			return total;
+		}
+		if (value instanceof Number || value instanceof Boolean || value instanceof Date) {
+			return OBJECT_OVERHEAD + 8;
+		}
+		
+		return OBJECT_OVERHEAD * 4;
+	}
+	
+	private static class Entry {
+		
+		private final Object value;
+		
+		private final long size;
+		
+		private Entry(Object value, long size) {
+			this.value = value;
+			this.size = size;
+		}
+		
+	}
+	
+}
@@ -1,12 +1,22 @@
 package org.openmrs.module.patientgrid.cache;
 
+import static org.openmrs.module.patientgrid.PatientGridConstants.CACHE_FORMAT_BINARY;
+import static org.openmrs.module.patientgrid.PatientGridConstants.CACHE_FORMAT_XML;
+import static org.openmrs.module.patientgrid.PatientGridConstants.GP_CACHE_COMPRESSION;
+import static org.openmrs.module.patientgrid.PatientGridConstants.GP_CACHE_FORMAT;
+import static org.openmrs.module.patientgrid.PatientGridConstants.GP_SERVE_STALE_REPORTS;
+
 import java.io.*;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPOutputStream;
 
+import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.joda.time.DateTime;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
 import org.openmrs.module.patientgrid.ExtendedDataSet;
 import org.openmrs.module.patientgrid.PatientGridConstants;
 import org.openmrs.module.patientgrid.PatientGridUtils;
@@ -19,16 +29,43 @@ import org.springframework.cache.Cache;
 import org.springframework.cache.support.SimpleValueWrapper;
 
 /**
- * Custom implementation of spring's {@link Cache} abstraction backed by a {@link DiskCache}
+ * Custom implementation of spring's {@link Cache} abstraction backed by a {@link DiskCache}, a
+ * {@link MemoryCache} is placed in front of it to keep the most recently used reports deserialized.
+ * Reports are written to disk in the format defined by the {@link PatientGridConstants#GP_CACHE_FORMAT}
+ * global property and optionally compressed as defined by the
+ * {@link PatientGridConstants#GP_CACHE_COMPRESSION} global property, files in any format or
+ * compression can be read. Obsolete reports can be served stale while they are recomputed in the
+ * background as defined by the {@link PatientGridConstants#GP_SERVE_STALE_REPORTS} global property.
  */
 public class PatientGridCache implements Cache {
 	
 	private static final Logger LOGGER = LoggerFactory.getLogger(PatientGridCache.class);
 	
+	/**
+	 * Separates the key of a report from the suffix of the files holding its encoded representations
+	 */
+	private static final String REPRESENTATION_SEPARATOR = ".";
+	
+	private static final String REPRESENTATION_EXTENSION = ".json";
+	
+	private static final String GZIP_EXTENSION = ".gz";
+	
 	private DiskCache diskCache;
 	
+	private MemoryCache memoryCache;
+	
 	private CustomXstreamSerializer serializer;
 	
+	private ColumnarDataSetSerializer columnarSerializer;
+	
+	private String cacheFormat;
+	
+	private CacheFileCompression compression;
+	
+	private String serveStale;
+	
+	private StaleReportRefresher refresher;
+	
 	private DiskCache getDiskCache() {
 		if (diskCache == null) {
 			diskCache = DiskCache.getInstance();
@@ -37,6 +74,22 @@ public class PatientGridCache implements Cache {
 		return diskCache;
 	}
 	
+	private MemoryCache getMemoryCache() {
+		if (memoryCache == null) {
+			memoryCache = MemoryCache.getInstance();
+		}
+		
+		return memoryCache;
+	}
+	
+	private StaleReportRefresher getRefresher() {
+		if (refresher == null) {
+			refresher = StaleReportRefresher.getInstance();
+		}
+		
+		return refresher;
+	}
+	
 	/**
 	 * @see Cache#getName()
 	 */
@@ -58,15 +111,106 @@ public class PatientGridCache implements Cache {
 	 */
 	@Override
 	public ValueWrapper get(Object key) {
+		String gridUuid = StringUtils.split(key.toString(), PatientGridConstants.CACHE_KEY_SEPARATOR)[0];
+		boolean serveStale = isServeStale(gridUuid);
+		//Reports not held in memory are checked against the file header first to avoid reading all the rows
+		if (!serveStale && getMemoryCache().get(key.toString()) == null) {
+			ExtendedDataSet header = readHeader(getDiskCache().getFile(key.toString()));
+			if (header != null && isObsolete(header)) {
+				return null;
+			}
+		}
+		
 		ValueWrapper ret = null;
 		ExtendedDataSet dataset = get(key, ExtendedDataSet.class);
-		if (dataset != null && !isObsolete(dataset)) {
-			ret = new SimpleValueWrapper(dataset);
+		if (dataset != null) {
+			if (!isObsolete(dataset)) {
+				ret = new SimpleValueWrapper(dataset);
+			} else if (serveStale && dataset.isLastVersion() && refresh(key.toString(), gridUuid)) {
+				LOGGER.debug("Serving stale grid report {} while it is recomputed", key);
+				ret = new SimpleValueWrapper(toStale(dataset));
+			} else {
+				getMemoryCache().evict(key.toString());
+			}
 		}
 		
 		return ret;
 	}
 	
+	/**
+	 * Queues the refresh of the obsolete report cached with the specified key as the authenticated user
+	 *
+	 * @return true if the report is going to be refreshed otherwise false
+	 */
+	private boolean refresh(String key, String gridUuid) {
+		User user = Context.getAuthenticatedUser();
+		if (user == null) {
+			return false;
+		}
+		
+		return getRefresher().refresh(key, gridUuid, user.getSystemId(), Context.getLocale());
+	}
+	
+	/**
+	 * Creates a stale copy of the specified report, the cached instance is left untouched since it is
+	 * shared with the memory cache
+	 */
+	private static ExtendedDataSet toStale(ExtendedDataSet dataSet) {
+		ExtendedDataSet stale = new ExtendedDataSet();
+		stale.setSimpleDataSet(dataSet.getSimpleDataSet());
+		stale.setTruncated(dataSet.isTruncated());
+		stale.setRowsCountLimit(dataSet.getRowsCountLimit());
+		stale.setInitialRowsCount(dataSet.getInitialRowsCount());
+		stale.setUsedDateRange(dataSet.getUsedDateRange());
+		stale.setPeriodOperand(dataSet.getPeriodOperand());
+		stale.setPatientLocations(dataSet.getPatientLocations());
+		stale.setStale(true);
+		return stale;
+	}
+	
+	protected void setServeStale(String serveStale) {
+		this.serveStale = serveStale;
+	}
+	
+	/**
+	 * Checks if the obsolete reports of the specified grid should be served stale while they are
+	 * recomputed, the global property is either true for all grids or a comma separated list of grid
+	 * uuids.
+	 *
+	 * @param gridUuid the grid uuid
+	 * @return true if obsolete reports are served stale otherwise false
+	 */
+	protected boolean isServeStale(String gridUuid) {
+		if (serveStale == null) {
+			String value = Context.getAdministrationService().getGlobalProperty(GP_SERVE_STALE_REPORTS);
+			serveStale = StringUtils.isBlank(value) ? "" : value.trim();
+		}
+		if (serveStale.isEmpty() || "false".equalsIgnoreCase(serveStale)) {
+			return false;
+		}
+		
+		return "true".equalsIgnoreCase(serveStale)
+		        || ArrayUtils.contains(StringUtils.stripAll(StringUtils.split(serveStale, ",")), gridUuid);
+	}
+	
+	/**
+	 * Checks if a report is cached with the specified key and is obsolete, only the header of the cache
+	 * file is read when the report is not held in memory and the file is in the columnar format.
+	 *
+	 * @param key the cache key
+	 * @return true if the cached report is obsolete otherwise false
+	 */
+	public boolean hasObsoleteEntry(String key) {
+		Object cached = getMemoryCache().get(key);
+		ExtendedDataSet dataSet = cached instanceof ExtendedDataSet ? (ExtendedDataSet) cached
+		        : readHeader(getDiskCache().getFile(key));
+		if (dataSet == null) {
+			dataSet = get(key, ExtendedDataSet.class);
+		}
+		
+		return dataSet != null && isObsolete(dataSet);
+	}
+	
 	boolean isObsolete(ExtendedDataSet dataSet) {
 		if (!dataSet.isLastVersion()) {
 			LOGGER.debug("the xml version is not the last one. Force recompute. Read Version: {}. Current Version {]",
@@ -104,23 +248,143 @@ public class PatientGridCache implements Cache {
 		return serializer;
 	}
 	
+	protected ColumnarDataSetSerializer getColumnarSerializer() {
+		if (columnarSerializer == null) {
+			columnarSerializer = new ColumnarDataSetSerializer(getSerializer());
+		}
+		return columnarSerializer;
+	}
+	
+	protected void setCacheFormat(String cacheFormat) {
+		this.cacheFormat = cacheFormat;
+	}
+	
+	protected String getCacheFormat() {
+		if (cacheFormat == null) {
+			String format = Context.getAdministrationService().getGlobalProperty(GP_CACHE_FORMAT);
+			if (StringUtils.isBlank(format) || CACHE_FORMAT_BINARY.equalsIgnoreCase(format.trim())) {
+				cacheFormat = CACHE_FORMAT_BINARY;
+			} else if (CACHE_FORMAT_XML.equalsIgnoreCase(format.trim())) {
+				cacheFormat = CACHE_FORMAT_XML;
+			} else {
+				LOGGER.warn("The cache format '{}' defined in the global property '{}' is not supported, using {}", format,
+				    GP_CACHE_FORMAT, CACHE_FORMAT_BINARY);
+				cacheFormat = CACHE_FORMAT_BINARY;
+			}
+		}
+		return cacheFormat;
+	}
+	
+	protected void setCompression(CacheFileCompression compression) {
+		this.compression = compression;
+	}
+	
+	protected CacheFileCompression getCompression() {
+		if (compression == null) {
+			compression = CacheFileCompression.NONE;
+			String codec = Context.getAdministrationService().getGlobalProperty(GP_CACHE_COMPRESSION);
+			if (StringUtils.isNotBlank(codec)) {
+				try {
+					compression = CacheFileCompression.valueOf(codec.trim().toUpperCase());
+				}
+				catch (IllegalArgumentException e) {
+					LOGGER.warn("The compression '{}' defined in the global property '{}' is not supported, using {}",
+					    codec, GP_CACHE_COMPRESSION, CacheFileCompression.NONE);
+				}
+			}
+		}
+		return compression;
+	}
+	
+	private Object readFile(File file) throws IOException {
+		if (CacheFileCompression.of(file) == CacheFileCompression.NONE) {
+			if (ColumnarDataSetSerializer.isColumnar(file)) {
+				return getColumnarSerializer().read(file);
+			}
+			
+			return getSerializer().fromXML(file);
+		}
+		
+		try (InputStream in = CacheFileCompression.newInputStream(file)) {
+			in.mark(4);
+			boolean columnar = new DataInputStream(in).readInt() == ColumnarDataSetSerializer.MAGIC;
+			in.reset();
+			if (columnar) {
+				return getColumnarSerializer().read(in);
+			}
+			
+			return getSerializer().readXML(in);
+		}
+	}
+	
+	/**
+	 * Reads the properties of the report in the specified file without its rows, only files written in
+	 * the columnar format have a header that can be read on its own.
+	 *
+	 * @param file the cache file
+	 * @return a report without rows or null if the file has no readable header
+	 */
+	private ExtendedDataSet readHeader(File file) {
+		if (file == null || !file.exists()) {
+			return null;
+		}
+		
+		try (InputStream in = CacheFileCompression.newInputStream(file)) {
+			return getColumnarSerializer().readHeader(in);
+		}
+		catch (IOException e) {
+			LOGGER.debug("Failed to read the header of the cache file {}", file, e);
+			return null;
+		}
+	}
+	
+	private void writeFile(Object value, File file) throws IOException {
+		boolean columnar = value instanceof ExtendedDataSet && CACHE_FORMAT_BINARY.equals(getCacheFormat());
+		CacheFileCompression fileCompression = getCompression();
+		if (fileCompression == CacheFileCompression.NONE) {
+			if (columnar) {
+				getColumnarSerializer().write((ExtendedDataSet) value, file);
+			} else {
+				getSerializer().toXML(value, file);
+			}
+			return;
+		}
+		
+		try (OutputStream out = fileCompression.newOutputStream(file)) {
+			if (columnar) {
+				getColumnarSerializer().write((ExtendedDataSet) value, out);
+			} else {
+				getSerializer().writeXML(value, out);
+			}
+		}
+	}
+	
 	/**
 	 * @see Cache#get(Object, Class)
 	 */
 	@Override
 	public <T> T get(Object key, Class<T> type) {
+		//The disk cache evicts the memory entry when it deletes the file so hot reports skip the disk
+		Object cached = getMemoryCache().get(key.toString());
+		if (cached != null) {
+			//to show that the file has been used and should not be clean by cleaner task.
+			getDiskCache().fileAccessed(key.toString());
+			return cached.getClass().equals(type) ? (T) cached : null;
+		}
+		
 		File targetFile = getDiskCache().getFile(key.toString());
 		if (targetFile == null || !targetFile.exists()) {
+			if (targetFile != null) {
+				getDiskCache().deleteFile(key.toString());
+				deleteRepresentations(key.toString());
+			}
 			return null;
 		}
-		//to show that the file has been used and should not be clean by cleaner task.
-		boolean lastModified = targetFile.setLastModified(System.currentTimeMillis());
-		if (!lastModified) {
-			LOGGER.warn("unable to update last modified property for file {}", targetFile);
-		}
+		getDiskCache().fileAccessed(key.toString());
+		
 		T value = null;
 		try {
-			value = (T) getSerializer().fromXML(targetFile);
+			value = (T) readFile(targetFile);
 		}
 		catch (IOException e) {
 			LOGGER.warn("Failed to deserialize cached grid report", e);
@@ -130,6 +394,8 @@ public class PatientGridCache implements Cache {
 			return null;
 		}
 		
+		getMemoryCache().put(key.toString(), value);
+		
 		return value;
 	}
 	
@@ -142,16 +408,136 @@ public class PatientGridCache implements Cache {
 			return;
 		}
 		File targetFile = getDiskCache().getFile(key.toString());
+		//Coalesced evaluations return the same instance to all callers, it only needs to be written once
+		if (value == getMemoryCache().get(key.toString()) && targetFile.exists()) {
+			return;
+		}
 		
 		try {
-			getSerializer().toXML(value, targetFile);
-			
+			writeFileAtomically(targetFile, file -> writeFile(value, file));
+			getDiskCache().fileWritten(key.toString());
+			//Deleted after the new version is indexed, see putRepresentation
+			deleteRepresentations(key.toString());
+			getMemoryCache().put(key.toString(), value);
 		}
 		catch (IOException e) {
 			LOGGER.warn("Failed to serialize grid report", e);
+			getMemoryCache().evict(key.toString());
+		}
+	}
+	
+	/**
+	 * Writes the specified value to a temporary file in the cache directory which is then renamed to
+	 * the target file, this way concurrent readers never see a partially written file and a crash
+	 * during the write leaves the previous entry untouched.
+	 *
+	 * @param targetFile the file of the cache entry
+	 * @param writer writes the contents of the file
+	 * @throws IOException
+	 */
+	private void writeFileAtomically(File targetFile, ContentWriter writer) throws IOException {
+		File dir = targetFile.getParentFile();
+		if (!dir.mkdirs() && !dir.isDirectory()) {
+			throw new IOException("Directory '" + dir + "' could not be created");
+		}
+		
+		File tempFile = File.createTempFile(DiskCache.TEMP_FILE_PREFIX, null, dir);
+		try {
+			writer.write(tempFile);
+			try {
+				Files.move(tempFile.toPath(), targetFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+				    StandardCopyOption.REPLACE_EXISTING);
+			}
+			catch (AtomicMoveNotSupportedException e) {
+				LOGGER.debug("Atomic move not supported, falling back to a plain move", e);
+				Files.move(tempFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		finally {
+			Files.deleteIfExists(tempFile.toPath());
 		}
 	}
 	
+	/**
+	 * Gets a token identifying the current version of the report cached with the specified key, it
+	 * changes each time the report is written.
+	 *
+	 * @param key the cache key
+	 * @return the version token or null if no report is cached with the key
+	 */
+	public Object getVersion(Object key) {
+		return getDiskCache().getVersion(key.toString());
+	}
+	
+	private static String getRepresentationKey(String key, String variant, boolean gzip) {
+		return key + REPRESENTATION_SEPARATOR + variant + REPRESENTATION_EXTENSION + (gzip ? GZIP_EXTENSION : "");
+	}
+	
+	/**
+	 * Gets the file holding the encoded representation of the report cached with the specified key,
+	 * the file is only returned if the report itself is cached and is neither obsolete nor stale.
+	 *
+	 * @param key the cache key of the report
+	 * @param variant identifies the variant of the representation e.g. the base URI of its links
+	 * @param gzip specifies if the gzip compressed representation is wanted
+	 * @return the file or null if there is none or if it is stale
+	 */
+	public File getRepresentationFile(Object key, String variant, boolean gzip) {
+		String representationKey = getRepresentationKey(key.toString(), variant, gzip);
+		File file = getDiskCache().getFile(representationKey);
+		if (!file.exists()) {
+			return null;
+		}
+		
+		ValueWrapper report = get(key);
+		if (report == null || ((ExtendedDataSet) report.get()).isStale()) {
+			return null;
+		}
+		
+		getDiskCache().fileAccessed(representationKey);
+		return file;
+	}
+	
+	/**
+	 * Caches the encoded representation of the report cached with the specified key, it is discarded if
+	 * the report was written again since the specified version was read so that a representation is
+	 * never paired with another version of the report.
+	 *
+	 * @param key the cache key of the report
+	 * @param version the version of the report the representation was encoded from, see
+	 *            {@link #getVersion(Object)}
+	 * @param variant identifies the variant of the representation e.g. the base URI of its links
+	 * @param gzip specifies if the representation should be gzip compressed
+	 * @param body the encoded representation
+	 */
+	public void putRepresentation(Object key, Object version, String variant, boolean gzip, byte[] body) {
+		if (version == null) {
+			return;
+		}
+		
+		String representationKey = getRepresentationKey(key.toString(), variant, gzip);
+		try {
+			writeFileAtomically(getDiskCache().getFile(representationKey), file -> {
+				try (OutputStream out = gzip ? new GZIPOutputStream(new FileOutputStream(file))
+				        : new FileOutputStream(file)) {
+					out.write(body);
+				}
+			});
+			getDiskCache().fileWritten(representationKey);
+			if (version != getVersion(key)) {
+				LOGGER.debug("Discarding representation {}, the report was written again", representationKey);
+				getDiskCache().deleteFile(representationKey);
+			}
+		}
+		catch (IOException e) {
+			LOGGER.warn("Failed to write grid report representation", e);
+		}
+	}
+	
+	private void deleteRepresentations(String key) {
+		getDiskCache().deleteFilesWithPrefix(key + REPRESENTATION_SEPARATOR);
+	}
+	
 	/**
 	 * @see Cache#putIfAbsent(Object, Object)
 	 */
@@ -171,14 +557,15 @@ public class PatientGridCache implements Cache {
 	 */
 	@Override
 	public void evict(Object key) {
-		List<String> filenames = Collections.singletonList(key.toString());
 		//If key is patient grid uuid ONLY then delete all reports for the grid for all users
 		if (StringUtils.split(key.toString(), PatientGridConstants.CACHE_KEY_SEPARATOR).length == 1) {
-			String[] files = getDiskCache().getCacheDirectory().list((dir, name) -> name.startsWith(key.toString()));
-			filenames = Arrays.asList(files);
+			getMemoryCache().evictByPrefix(key.toString());
+			getDiskCache().deleteGridFiles(key.toString());
+		} else {
+			getMemoryCache().evict(key.toString());
+			getDiskCache().deleteFile(key.toString());
+			deleteRepresentations(key.toString());
 		}
-		
-		filenames.stream().forEach(filename -> getDiskCache().deleteFile(filename));
 	}
 	
 	/**
@@ -186,7 +573,14 @@ public class PatientGridCache implements Cache {
 	 */
 	@Override
 	public void clear() {
+		getMemoryCache().clear();
 		getDiskCache().deleteAllFiles();
 	}
 	
+	private interface ContentWriter {
+		
+		void write(File file) throws IOException;
+		
+	}
+	
 }
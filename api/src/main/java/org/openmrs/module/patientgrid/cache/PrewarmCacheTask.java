@@ -0,0 +1,207 @@
+package org.openmrs.module.patientgrid.cache;
+
+import static org.openmrs.module.patientgrid.PatientGridConstants.CACHE_KEY_SEPARATOR;
+import static org.openmrs.module.patientgrid.PatientGridConstants.CACHE_KEY_SHARED_PREFIX;
+import static org.openmrs.module.patientgrid.PatientGridConstants.CACHE_MANAGER_NAME;
+import static org.openmrs.module.patientgrid.PatientGridConstants.CACHE_NAME_GRID_REPORTS;
+import static org.openmrs.module.patientgrid.PatientGridConstants.GP_PREWARM_THREADS;
+import static org.openmrs.module.patientgrid.PatientGridConstants.GP_PREWARM_WINDOW;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.patientgrid.PatientGrid;
+import org.openmrs.module.patientgrid.PatientGridActivator;
+import org.openmrs.module.patientgrid.PatientGridUtils;
+import org.openmrs.module.patientgrid.api.PatientGridService;
+import org.openmrs.scheduler.tasks.AbstractTask;
+import org.openmrs.util.LocaleUtility;
+import org.openmrs.util.OpenmrsConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.cache.CacheManager;
+
+/**
+ * Recomputes in the background the recently used grid reports which became obsolete because their
+ * relative period rolled over at the user's local midnight, this way the first user of the day is
+ * served from a warm cache. Only the reports of users whose local time is within the configured
+ * window after midnight are recomputed, the reports are evaluated as their user so the data access
+ * rules are applied as for an interactive request.
+ */
+public class PrewarmCacheTask extends AbstractTask {
+	
+	private final Logger log = LoggerFactory.getLogger(PrewarmCacheTask.class);
+	
+	protected static final int DEFAULT_THREADS = 2;
+	
+	protected static final int DEFAULT_WINDOW = 120;
+	
+	/**
+	 * Reports not accessed within this number of hours are not worth recomputing
+	 */
+	private static final int RECENTLY_USED_HOURS = 72;
+	
+	@Override
+	public void execute() {
+		if (!isExecuting) {
+			log.debug("Starting pre-warming patient grid report cache...");
+			
+			startExecuting();
+			try {
+				int threads = getIntGlobalProperty(GP_PREWARM_THREADS, DEFAULT_THREADS);
+				int window = getIntGlobalProperty(GP_PREWARM_WINDOW, DEFAULT_WINDOW);
+				DaemonToken daemonToken = PatientGridActivator.getDaemonToken();
+				if (threads > 0 && window > 0 && daemonToken != null) {
+					prewarm(threads, window, daemonToken);
+				}
+			}
+			catch (Exception e) {
+				log.error("Error while pre-warming patient grid report cache:", e);
+			}
+			finally {
+				stopExecuting();
+			}
+		}
+	}
+	
+	private void prewarm(int threads, int window, DaemonToken daemonToken) throws InterruptedException {
+		long since = DateTime.now().minusHours(RECENTLY_USED_HOURS).getMillis();
+		List<String> keys = DiskCache.getInstance().getFilesAccessedSince(since);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		int count = 0;
+		try {
+			for (String key : keys) {
+				String[] parts = StringUtils.split(key, CACHE_KEY_SEPARATOR);
+				//Skip shared reports and representations, they are rebuilt on the next request
+				if (parts.length != 2 || key.contains(".") || parts[1].startsWith(CACHE_KEY_SHARED_PREFIX)) {
+					continue;
+				}
+				
+				User user = Context.getUserService().getUserByUuid(parts[1]);
+				if (user == null || !isInWindow(PatientGridUtils.getUserTimeZone(user), window, DateTime.now())) {
+					continue;
+				}
+				
+				final String systemId = user.getSystemId();
+				final Locale locale = getLocale(user);
+				executor.submit(() -> prewarm(key, parts[0], systemId, locale, daemonToken));
+				count++;
+			}
+		}
+		finally {
+			executor.shutdown();
+			if (!executor.awaitTermination(window, TimeUnit.MINUTES)) {
+				log.warn("Pre-warming patient grid report cache did not complete within {} minutes", window);
+				executor.shutdownNow();
+			}
+		}
+		
+		log.debug("Submitted {} grid reports to pre-warm", count);
+	}
+	
+	/**
+	 * Recomputes the specified report as its user with the specified locale in a daemon thread if it
+	 * is obsolete, the report replaces the one the user reads so it must be localized the same way
+	 */
+	private void prewarm(String key, String gridUuid, String systemId, Locale locale, DaemonToken daemonToken) {
+		Thread thread = Daemon.runInDaemonThread(() -> {
+			try {
+				Context.becomeUser(systemId);
+				Context.setLocale(locale);
+				PatientGridCache cache = (PatientGridCache) Context
+				        .getRegisteredComponent(CACHE_MANAGER_NAME, CacheManager.class).getCache(CACHE_NAME_GRID_REPORTS);
+				if (!cache.hasObsoleteEntry(key)) {
+					return;
+				}
+				
+				PatientGridService service = Context.getService(PatientGridService.class);
+				PatientGrid patientGrid = service.getPatientGridByUuid(gridUuid);
+				if (patientGrid != null && !Boolean.TRUE.equals(patientGrid.getRetired())) {
+					log.debug("Pre-warming grid report {}", key);
+					service.evaluateIgnoreCache(patientGrid);
+				}
+			}
+			catch (Exception e) {
+				log.warn("Failed to pre-warm grid report {}", key, e);
+			}
+		}, daemonToken);
+		
+		try {
+			thread.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Gets the default locale of the specified user, the system default locale is returned if the user
+	 * has none or an invalid one
+	 *
+	 * @param user the user
+	 * @return the locale
+	 */
+	protected static Locale getLocale(User user) {
+		String locale = user.getUserProperty(OpenmrsConstants.USER_PROPERTY_DEFAULT_LOCALE);
+		if (StringUtils.isNotBlank(locale)) {
+			Locale userLocale = LocaleUtility.fromSpecification(locale.trim());
+			if (userLocale != null) {
+				return userLocale;
+			}
+		}
+		
+		return LocaleUtility.getDefaultLocale();
+	}
+	
+	/**
+	 * Checks if the specified time is within the specified number of minutes after midnight in the
+	 * specified timezone
+	 *
+	 * @param timezone the timezone id
+	 * @param window the number of minutes after midnight
+	 * @param now the time to check
+	 * @return true if the time is in the window otherwise false
+	 */
+	protected static boolean isInWindow(String timezone, int window, DateTime now) {
+		DateTimeZone zone;
+		try {
+			zone = DateTimeZone.forID(timezone);
+		}
+		catch (IllegalArgumentException e) {
+			zone = DateTimeZone.getDefault();
+		}
+		
+		return now.withZone(zone).getMinuteOfDay() < window;
+	}
+	
+	private int getIntGlobalProperty(String name, int defaultValue) {
+		String value = Context.getAdministrationService().getGlobalProperty(name);
+		if (StringUtils.isNotBlank(value)) {
+			try {
+				return Integer.parseInt(value.trim());
+			}
+			catch (NumberFormatException e) {
+				log.warn("The value '{}' defined in the global property '{}' is not supported, using {}", value, name,
+				    defaultValue);
+			}
+		}
+		
+		return defaultValue;
+	}
+	
+	@Override
+	public void shutdown() {
+		log.debug("stop pre-warming patient grid report cache");
+		this.stopExecuting();
+	}
+}
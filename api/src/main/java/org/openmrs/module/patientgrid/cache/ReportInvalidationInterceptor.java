@@ -0,0 +1,407 @@
+package org.openmrs.module.patientgrid.cache;
+
+import static org.openmrs.module.patientgrid.PatientGridConstants.CACHE_MANAGER_NAME;
+import static org.openmrs.module.patientgrid.PatientGridConstants.CACHE_KEY_SEPARATOR;
+import static org.openmrs.module.patientgrid.PatientGridConstants.CACHE_KEY_SHARED_PREFIX;
+import static org.openmrs.module.patientgrid.PatientGridConstants.CACHE_NAME_GRID_REPORTS;
+import static org.openmrs.module.patientgrid.PatientGridConstants.GP_MAX_INCREMENTAL_REFRESH_PATIENTS;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.Hibernate;
+import org.hibernate.Transaction;
+import org.hibernate.resource.transaction.spi.TransactionStatus;
+import org.hibernate.type.Type;
+import org.openmrs.Encounter;
+import org.openmrs.Obs;
+import org.openmrs.Patient;
+import org.openmrs.Person;
+import org.openmrs.PersonName;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.datafilter.impl.EntityBasisMap;
+import org.openmrs.module.patientgrid.PatientGrid;
+import org.openmrs.module.patientgrid.PatientGridActivator;
+import org.openmrs.module.patientgrid.PatientGridColumn;
+import org.openmrs.module.patientgrid.PatientGridColumnFilter;
+import org.openmrs.module.patientgrid.api.PatientGridService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.stereotype.Component;
+
+/**
+ * Hibernate interceptor which evicts the cached reports of the grids affected by the encounters,
+ * observations, patients and patient locations saved or deleted in a transaction. Changes are
+ * collected while the session is flushed and once the transaction is committed they are mapped to
+ * the affected grids via a {@link GridDependencyIndex} in a background thread, the index is rebuilt
+ * after a grid is changed. Voiding or deleting a patient affects every grid. The latest encounter
+ * snapshots of the changed encounter types are discarded from the {@link EncounterSnapshotCache},
+ * all snapshots are discarded when a patient is voided since voided patients are excluded from
+ * them. When few patients are affected, the rows of these patients are refreshed in the cached
+ * reports of each user instead, see {@link PatientGridService#refreshCachedReport(PatientGrid, Set)}
+ */
+@Component("patientGridReportInvalidationInterceptor")
+public class ReportInvalidationInterceptor extends EmptyInterceptor {
+	
+	private static final Logger log = LoggerFactory.getLogger(ReportInvalidationInterceptor.class);
+	
+	private static final ThreadLocal<Changes> CHANGES = new ThreadLocal<>();
+	
+	private volatile GridDependencyIndex index;
+	
+	private ExecutorService executor;
+	
+	private EncounterSnapshotCache snapshotCache;
+	
+	protected static final int DEFAULT_MAX_INCREMENTAL_REFRESH_PATIENTS = 50;
+	
+	/**
+	 * @see EmptyInterceptor#onSave(Object, Serializable, Object[], String[], Type[])
+	 */
+	@Override
+	public boolean onSave(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+		record(entity);
+		return false;
+	}
+	
+	/**
+	 * @see EmptyInterceptor#onFlushDirty(Object, Serializable, Object[], Object[], String[], Type[])
+	 */
+	@Override
+	public boolean onFlushDirty(Object entity, Serializable id, Object[] currentState, Object[] previousState,
+	        String[] propertyNames, Type[] types) {
+		record(entity);
+		if (entity instanceof Person && isPatient((Person) entity)
+		        && isVoidedChanged(currentState, previousState, propertyNames)) {
+			getChanges().patientVoided = true;
+		}
+		return false;
+	}
+	
+	/**
+	 * @see EmptyInterceptor#onDelete(Object, Serializable, Object[], String[], Type[])
+	 */
+	@Override
+	public void onDelete(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+		record(entity);
+		if (entity instanceof Patient) {
+			getChanges().patientVoided = true;
+		}
+	}
+	
+	/**
+	 * Checks if the voided property of a person or patient changed, a patient updated without its
+	 * previous state is considered changed if it is voided
+	 */
+	private static boolean isVoidedChanged(Object[] currentState, Object[] previousState, String[] propertyNames) {
+		for (int i = 0; i < propertyNames.length; i++) {
+			if ("voided".equals(propertyNames[i]) || "personVoided".equals(propertyNames[i])) {
+				if (previousState == null ? Boolean.TRUE.equals(currentState[i])
+				        : !Objects.equals(currentState[i], previousState[i])) {
+					return true;
+				}
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Checks if the specified person is a patient, the users and providers who are not patients don't
+	 * affect the grid reports
+	 */
+	private static boolean isPatient(Person person) {
+		return person instanceof Patient || person.getIsPatient();
+	}
+	
+	/**
+	 * Records the specified entity if it is one the grid reports depend on, only ids are read since
+	 * associations should not be initialized while the session is flushed.
+	 *
+	 * @param entity the saved or deleted entity
+	 */
+	protected void record(Object entity) {
+		if (entity instanceof Encounter) {
+			Encounter encounter = (Encounter) entity;
+			if (encounter.getEncounterType() != null) {
+				getChanges().encounterTypeIds.add(encounter.getEncounterType().getEncounterTypeId());
+			}
+			if (encounter.getPatient() != null) {
+				getChanges().addPatientId(encounter.getPatient().getPatientId());
+			}
+		} else if (entity instanceof Obs) {
+			Obs obs = (Obs) entity;
+			if (obs.getConcept() != null) {
+				getChanges().conceptIds.add(obs.getConcept().getConceptId());
+			}
+			getChanges().addPatientId(obs.getPersonId());
+		} else if (entity instanceof Person) {
+			if (isPatient((Person) entity)) {
+				getChanges().patientChanged = true;
+				getChanges().addPatientId(((Person) entity).getPersonId());
+			}
+		} else if (entity instanceof PersonName) {
+			//The person is not loaded while flushing to check if it is a patient, it is then assumed to be one
+			Person person = ((PersonName) entity).getPerson();
+			if (person != null && (!Hibernate.isInitialized(person) || isPatient(person))) {
+				getChanges().patientChanged = true;
+				getChanges().addPatientId(person.getPersonId());
+			}
+		} else if (entity instanceof EntityBasisMap) {
+			EntityBasisMap basisMap = (EntityBasisMap) entity;
+			if (Patient.class.getName().equals(basisMap.getEntityType())) {
+				getChanges().locationChanged = true;
+				if (StringUtils.isNumeric(basisMap.getEntityIdentifier())) {
+					getChanges().addPatientId(Integer.valueOf(basisMap.getEntityIdentifier()));
+				}
+			}
+		} else if (entity instanceof PatientGrid || entity instanceof PatientGridColumn
+		        || entity instanceof PatientGridColumnFilter) {
+			getChanges().gridChanged = true;
+		}
+	}
+	
+	private Changes getChanges() {
+		Changes changes = CHANGES.get();
+		if (changes == null) {
+			changes = new Changes();
+			CHANGES.set(changes);
+		}
+		
+		return changes;
+	}
+	
+	/**
+	 * @see EmptyInterceptor#afterTransactionCompletion(Transaction)
+	 */
+	@Override
+	public void afterTransactionCompletion(Transaction tx) {
+		Changes changes = CHANGES.get();
+		CHANGES.remove();
+		if (changes == null) {
+			return;
+		}
+		
+		//Snapshots loaded in a rolled back transaction could include the discarded changes
+		if (changes.patientVoided) {
+			//Voided patients are excluded from the snapshots
+			getSnapshotCache().clear();
+		} else if (!changes.encounterTypeIds.isEmpty()) {
+			getSnapshotCache().invalidate(changes.encounterTypeIds);
+		}
+		if (tx.getStatus() != TransactionStatus.COMMITTED) {
+			return;
+		}
+		
+		if (changes.gridChanged) {
+			index = null;
+		}
+		if (changes.affectsReports()) {
+			submit(changes);
+		}
+	}
+	
+	private EncounterSnapshotCache getSnapshotCache() {
+		if (snapshotCache == null) {
+			snapshotCache = EncounterSnapshotCache.getInstance();
+		}
+		
+		return snapshotCache;
+	}
+	
+	/**
+	 * Submits the eviction of the reports affected by the specified committed changes to the background
+	 * thread
+	 *
+	 * @param changes the changes
+	 */
+	protected void submit(Changes changes) {
+		DaemonToken daemonToken = PatientGridActivator.getDaemonToken();
+		if (daemonToken == null) {
+			return;
+		}
+		
+		try {
+			getExecutor().execute(() -> {
+				Thread thread = Daemon.runInDaemonThread(() -> evict(changes), daemonToken);
+				try {
+					thread.join();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			log.debug("Failed to submit the eviction of the affected grid reports", e);
+		}
+	}
+	
+	/**
+	 * Gets the uuids of the grids affected by the specified changes
+	 *
+	 * @param changes the changes
+	 * @return the set of grid uuids
+	 */
+	protected Set<String> getAffectedGrids(Changes changes) {
+		GridDependencyIndex dependencyIndex = index;
+		if (dependencyIndex == null) {
+			dependencyIndex = new GridDependencyIndex(Context.getService(PatientGridService.class).getPatientGrids(false));
+			index = dependencyIndex;
+		}
+		if (changes.patientVoided) {
+			return dependencyIndex.getAllGrids();
+		}
+		
+		return dependencyIndex.getAffectedGrids(changes.encounterTypeIds, changes.conceptIds, changes.patientChanged,
+		    changes.locationChanged);
+	}
+	
+	private void evict(Changes changes) {
+		try {
+			Set<String> gridUuids = getAffectedGrids(changes);
+			if (gridUuids.isEmpty()) {
+				return;
+			}
+			
+			Cache cache = Context.getRegisteredComponent(CACHE_MANAGER_NAME, CacheManager.class)
+			        .getCache(CACHE_NAME_GRID_REPORTS);
+			int maxPatients = getMaxIncrementalRefreshPatients();
+			//The rows of a voided patient are removed by evaluating the reports again
+			boolean incremental = !changes.patientVoided && !changes.patientIds.isEmpty()
+			        && changes.patientIds.size() <= maxPatients;
+			for (String gridUuid : gridUuids) {
+				if (incremental) {
+					refreshRows(gridUuid, changes.patientIds, cache);
+				} else {
+					log.debug("Evicting the cached reports of grid {} after a change in its data", gridUuid);
+					cache.evict(gridUuid);
+				}
+			}
+		}
+		catch (Exception e) {
+			log.warn("Failed to evict the affected grid reports", e);
+		}
+	}
+	
+	/**
+	 * Refreshes the rows of the specified patients in the cached reports of the specified grid, each
+	 * report is refreshed as its user and it is evicted if it can't be refreshed incrementally. Shared
+	 * reports are evicted.
+	 */
+	private void refreshRows(String gridUuid, Set<Integer> patientIds, Cache cache) {
+		for (String key : DiskCache.getInstance().getGridFiles(gridUuid)) {
+			//Representations are deleted when their report is written or evicted
+			String[] parts = StringUtils.split(key, CACHE_KEY_SEPARATOR);
+			if (parts.length != 2 || key.contains(".")) {
+				continue;
+			}
+			
+			User user = parts[1].startsWith(CACHE_KEY_SHARED_PREFIX) ? null
+			        : Context.getUserService().getUserByUuid(parts[1]);
+			if (user == null || !refreshRowsAsUser(gridUuid, patientIds, user.getSystemId())) {
+				log.debug("Evicting the cached report {} after a change in its data", key);
+				cache.evict(key);
+			}
+		}
+	}
+	
+	private boolean refreshRowsAsUser(String gridUuid, Set<Integer> patientIds, String systemId) {
+		final AtomicBoolean refreshed = new AtomicBoolean();
+		Thread thread = Daemon.runInDaemonThread(() -> {
+			try {
+				Context.becomeUser(systemId);
+				PatientGridService service = Context.getService(PatientGridService.class);
+				PatientGrid patientGrid = service.getPatientGridByUuid(gridUuid);
+				if (patientGrid != null) {
+					refreshed.set(service.refreshCachedReport(patientGrid, patientIds));
+				}
+			}
+			catch (Exception e) {
+				log.warn("Failed to refresh the rows of the report of grid {} for user {}", gridUuid, systemId, e);
+			}
+		}, PatientGridActivator.getDaemonToken());
+		
+		try {
+			thread.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		return refreshed.get();
+	}
+	
+	private int getMaxIncrementalRefreshPatients() {
+		String value = Context.getAdministrationService().getGlobalProperty(GP_MAX_INCREMENTAL_REFRESH_PATIENTS);
+		if (StringUtils.isNotBlank(value)) {
+			try {
+				return Integer.parseInt(value.trim());
+			}
+			catch (NumberFormatException e) {
+				log.warn("The value '{}' defined in the global property '{}' is not supported, using {}", value,
+				    GP_MAX_INCREMENTAL_REFRESH_PATIENTS, DEFAULT_MAX_INCREMENTAL_REFRESH_PATIENTS);
+			}
+		}
+		
+		return DEFAULT_MAX_INCREMENTAL_REFRESH_PATIENTS;
+	}
+	
+	private synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newSingleThreadExecutor(r -> {
+				Thread thread = new Thread(r, "patientgrid-report-invalidation");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		
+		return executor;
+	}
+	
+	/**
+	 * The changes made in a transaction which grid reports may depend on
+	 */
+	protected static class Changes {
+		
+		private final Set<Integer> encounterTypeIds = new HashSet<>();
+		
+		private final Set<Integer> conceptIds = new HashSet<>();
+		
+		private final Set<Integer> patientIds = new HashSet<>();
+		
+		private boolean patientChanged;
+		
+		private boolean patientVoided;
+		
+		private boolean locationChanged;
+		
+		private boolean gridChanged;
+		
+		private void addPatientId(Integer patientId) {
+			if (patientId != null) {
+				patientIds.add(patientId);
+			}
+		}
+		
+		private boolean affectsReports() {
+			return !encounterTypeIds.isEmpty() || !conceptIds.isEmpty() || patientChanged || patientVoided
+			        || locationChanged;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,95 @@
+package org.openmrs.module.patientgrid.cache;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+import org.openmrs.api.APIException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces concurrent calls for the same key, the first caller computes the value while the other
+ * callers for the same key wait for it and get the same result or exception. Once the computation is
+ * done, the next call for the key computes the value again i.e. results are not cached.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class SingleFlight<K, V> {
+	
+	private static final Logger LOGGER = LoggerFactory.getLogger(SingleFlight.class);
+	
+	private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+	
+	/**
+	 * Computes the value for the specified key or waits for the in-flight computation for the same key
+	 * to complete
+	 *
+	 * @param key the key
+	 * @param supplier computes the value
+	 * @return the computed value
+	 */
+	public V execute(K key, Supplier<V> supplier) {
+		CompletableFuture<V> future = new CompletableFuture<>();
+		CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+		if (existing != null) {
+			LOGGER.debug("Waiting for the in-flight computation for {}", key);
+			return await(existing);
+		}
+		
+		try {
+			V value = supplier.get();
+			future.complete(value);
+			return value;
+		}
+		catch (RuntimeException | Error e) {
+			future.completeExceptionally(e);
+			throw e;
+		}
+		finally {
+			inFlight.remove(key, future);
+		}
+	}
+	
+	/**
+	 * Checks if a computation is in progress for the specified key
+	 *
+	 * @param key the key
+	 * @return true if a computation is in progress otherwise false
+	 */
+	public boolean isInFlight(K key) {
+		return inFlight.containsKey(key);
+	}
+	
+	/**
+	 * @return the number of computations in progress
+	 */
+	public int getInFlightCount() {
+		return inFlight.size();
+	}
+	
+	private V await(CompletableFuture<V> future) {
+		try {
+			return future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new APIException("Interrupted while waiting for an in-flight computation", e);
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			
+			throw new APIException("The in-flight computation failed", cause);
+		}
+	}
+	
+}
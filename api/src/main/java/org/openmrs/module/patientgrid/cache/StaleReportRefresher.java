@@ -0,0 +1,137 @@
+package org.openmrs.module.patientgrid.cache;
+
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.patientgrid.PatientGrid;
+import org.openmrs.module.patientgrid.PatientGridActivator;
+import org.openmrs.module.patientgrid.api.PatientGridService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Recomputes in the background the obsolete grid reports served stale from the cache. Refreshes are
+ * run one at a time to smooth the load on the database and a report already queued for refresh is
+ * not queued again, each report is evaluated as the user who requested it in a daemon thread.
+ */
+public class StaleReportRefresher {
+	
+	private static final Logger log = LoggerFactory.getLogger(StaleReportRefresher.class);
+	
+	/**
+	 * The cache keys of the reports queued or being refreshed
+	 */
+	private final Set<String> pending = ConcurrentHashMap.newKeySet();
+	
+	private ExecutorService executor;
+	
+	private static class StaleReportRefresherHolder {
+		
+		private final static StaleReportRefresher INSTANCE = new StaleReportRefresher();
+		
+	}
+	
+	public static StaleReportRefresher getInstance() {
+		return StaleReportRefresherHolder.INSTANCE;
+	}
+	
+	/**
+	 * Queues the refresh of the report cached with the specified key unless it is already queued
+	 *
+	 * @param key the cache key of the report
+	 * @param gridUuid the uuid of the patient grid
+	 * @param systemId the system id of the user to evaluate the report as
+	 * @param locale the locale to evaluate the report with
+	 * @return true if the refresh was queued or is already queued otherwise false
+	 */
+	public boolean refresh(String key, String gridUuid, String systemId, Locale locale) {
+		DaemonToken daemonToken = PatientGridActivator.getDaemonToken();
+		if (daemonToken == null) {
+			return false;
+		}
+		if (!pending.add(key)) {
+			return true;
+		}
+		
+		try {
+			getExecutor().execute(() -> {
+				try {
+					evaluate(key, gridUuid, systemId, locale, daemonToken);
+				}
+				finally {
+					pending.remove(key);
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			pending.remove(key);
+			log.debug("Failed to queue the refresh of grid report {}", key, e);
+			return false;
+		}
+		
+		return true;
+	}
+	
+	private void evaluate(String key, String gridUuid, String systemId, Locale locale, DaemonToken daemonToken) {
+		Thread thread = Daemon.runInDaemonThread(() -> {
+			try {
+				Context.becomeUser(systemId);
+				Context.setLocale(locale);
+				PatientGridService service = Context.getService(PatientGridService.class);
+				PatientGrid patientGrid = service.getPatientGridByUuid(gridUuid);
+				if (patientGrid != null) {
+					log.debug("Refreshing stale grid report {}", key);
+					service.evaluateIgnoreCache(patientGrid);
+				}
+			}
+			catch (Exception e) {
+				log.warn("Failed to refresh stale grid report {}", key, e);
+			}
+		}, daemonToken);
+		
+		try {
+			thread.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private synchronized ExecutorService getExecutor() {
+		if (executor == null || executor.isShutdown()) {
+			executor = Executors.newSingleThreadExecutor(r -> {
+				Thread thread = new Thread(r, "patientgrid-stale-report-refresher");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		
+		return executor;
+	}
+	
+	/**
+	 * @return the number of reports queued or being refreshed
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+	
+	/**
+	 * Stops refreshing reports, the queued refreshes are discarded
+	 */
+	public synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+		pending.clear();
+	}
+	
+}
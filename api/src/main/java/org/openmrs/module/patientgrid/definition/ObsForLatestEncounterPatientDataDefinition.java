@@ -9,11 +9,16 @@ import org.openmrs.module.reporting.data.BaseDataDefinition;
 import org.openmrs.module.reporting.data.patient.definition.PatientDataDefinition;
 import org.openmrs.module.reporting.definition.configuration.ConfigurationProperty;
 
+import java.util.List;
+
 public class ObsForLatestEncounterPatientDataDefinition extends BaseDataDefinition implements PatientDataDefinition {
 	
 	@ConfigurationProperty
 	private Concept concept;
 	
+	@ConfigurationProperty
+	private List<Concept> concepts;
+	
 	@ConfigurationProperty
 	private EncounterType encounterType;
 	
@@ -54,6 +59,25 @@ public class ObsForLatestEncounterPatientDataDefinition extends BaseDataDefiniti
 		this.concept = concept;
 	}
 	
+	/**
+	 * Gets the concepts of all the obs columns of the grid for the same encounter type, their obs are
+	 * loaded together with the obs for the concept of this definition
+	 *
+	 * @return the concepts
+	 */
+	public List<Concept> getConcepts() {
+		return concepts;
+	}
+	
+	/**
+	 * Sets the concepts
+	 *
+	 * @param concepts the concepts to set
+	 */
+	public void setConcepts(List<Concept> concepts) {
+		this.concepts = concepts;
+	}
+	
 	/**
 	 * Gets the encounterType
 	 *
@@ -1,11 +1,13 @@
 package org.openmrs.module.patientgrid.download;
 
+import org.hibernate.SessionFactory;
 import org.openmrs.Cohort;
 import org.openmrs.Encounter;
 import org.openmrs.Obs;
 import org.openmrs.annotation.Handler;
 import org.openmrs.module.patientgrid.EncounterDatePatientGridColumn;
 import org.openmrs.module.patientgrid.EvaluationContextPersistantCache;
+import org.openmrs.module.patientgrid.ObsIndex;
 import org.openmrs.module.patientgrid.ObsPatientGridColumn;
 import org.openmrs.module.patientgrid.PatientGridUtils;
 import org.openmrs.module.reporting.data.DataUtil;
@@ -14,6 +16,7 @@ import org.openmrs.module.reporting.data.patient.definition.PatientDataDefinitio
 import org.openmrs.module.reporting.data.patient.evaluator.PatientDataEvaluator;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
+import org.springframework.beans.factory.annotation.Autowired;
 
 import java.util.*;
 import java.util.stream.Collectors;
@@ -23,6 +26,13 @@ import static org.openmrs.module.patientgrid.PatientGridConstants.OBS_CONVERTER;
 @Handler(supports = AllEncountersPatientDataDefinition.class, order = 50)
 public class AllEncountersPatientDataEvaluator implements PatientDataEvaluator {
 	
+	private SessionFactory sf;
+	
+	@Autowired
+	public AllEncountersPatientDataEvaluator(SessionFactory sf) {
+		this.sf = sf;
+	}
+	
 	@Override
 	public EvaluatedPatientData evaluate(PatientDataDefinition definition, EvaluationContext context)
 	        throws EvaluationException {
@@ -36,6 +46,11 @@ public class AllEncountersPatientDataEvaluator implements PatientDataEvaluator {
 		Set<ObsPatientGridColumn> obsColumns = def.getPatientGrid().getObsColumns();
 		
 		Set<Integer> patients = baseCohort == null ? patientIdAndEncs.keySet() : baseCohort.getMemberIds();
+		ObsIndex obsIndex = new ObsIndex(
+		        obsColumns.stream().map(ObsPatientGridColumn::getConcept).collect(Collectors.toSet()));
+		obsIndex.load(sf, patients.stream().filter(patientIdAndEncs::containsKey)
+		        .flatMap(patientId -> ((List<Encounter>) patientIdAndEncs.get(patientId)).stream())
+		        .map(Encounter::getEncounterId).collect(Collectors.toList()));
 		Map<Integer, Object> patientIdAndEncList = patients.stream()
 		        .collect(Collectors.toMap(patientId -> patientId, patientId -> {
 			        List<Map<String, Object>> encounters = new ArrayList(patientIdAndEncs.size());
@@ -43,7 +58,7 @@ public class AllEncountersPatientDataEvaluator implements PatientDataEvaluator {
 			        patientEncs.stream().forEach(encounter -> {
 				        Map<String, Object> columnUuidAndObsMap = new HashMap(obsColumns.size());
 				        obsColumns.stream().forEach(column -> {
-					        Obs obs = PatientGridUtils.getObsByConcept(encounter, column.getConcept());
+					        Obs obs = obsIndex.get(encounter.getEncounterId(), column.getConcept());
 					        if (obs != null) {
 						        columnUuidAndObsMap.put(column.getUuid(), DataUtil.convertData(obs, OBS_CONVERTER));
 					        }
@@ -1,12 +1,15 @@
 package org.openmrs.module.patientgrid.evaluator;
 
 import org.openmrs.Cohort;
-import org.openmrs.Encounter;
+import org.openmrs.EncounterType;
 import org.openmrs.annotation.Handler;
+import org.openmrs.module.patientgrid.EncounterRecord;
 import org.openmrs.module.patientgrid.EvaluationContextPersistantCache;
+import org.openmrs.module.patientgrid.IntObjectMap;
 import org.openmrs.module.patientgrid.definition.AgeAtLatestEncounterPatientDataDefinition;
-import org.openmrs.module.patientgrid.function.MostRecentEncounterPerPatientByTypeFunction;
+import org.openmrs.module.patientgrid.function.MostRecentEncounterRecordPerPatientByTypeFunction;
 import org.openmrs.module.patientgrid.function.PatientAgePerEncounterIdByTypeFunction;
+import org.openmrs.module.reporting.common.Age;
 import org.openmrs.module.reporting.data.patient.EvaluatedPatientData;
 import org.openmrs.module.reporting.data.patient.definition.PatientDataDefinition;
 import org.openmrs.module.reporting.data.patient.evaluator.PatientDataEvaluator;
@@ -18,7 +21,7 @@ import org.slf4j.LoggerFactory;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.function.Function;
 
 @Handler(supports = AgeAtLatestEncounterPatientDataDefinition.class, order = 50)
 public class AgeAtLatestEncounterPatientDataEvaluator implements PatientDataEvaluator {
@@ -35,31 +38,35 @@ public class AgeAtLatestEncounterPatientDataEvaluator implements PatientDataEval
 		AgeAtLatestEncounterPatientDataDefinition def = (AgeAtLatestEncounterPatientDataDefinition) definition;
 		EvaluationContextPersistantCache contextPersistantCache = (EvaluationContextPersistantCache) context;
 		
-		MostRecentEncounterPerPatientByTypeFunction encounterFct = new MostRecentEncounterPerPatientByTypeFunction(
-		        contextPersistantCache, def.getPeriodRange(), def.getLocationCohortDefinition());
-		//will retrieve the map patientid-> Ecounter if not in cache
-		Map<Integer, Object> patientIdAndEnc = contextPersistantCache.computeMapIfAbsent(def.getEncounterType(),
+		Function<EncounterType, IntObjectMap<EncounterRecord>> encounterFct;
+		encounterFct = new MostRecentEncounterRecordPerPatientByTypeFunction(contextPersistantCache, def.getPeriodRange(),
+		        def.getLocationCohortDefinition());
+		//will retrieve the map patientid-> EncounterRecord if not in cache
+		IntObjectMap<EncounterRecord> patientIdAndEnc = contextPersistantCache.computeIfAbsent(def.getEncounterType(),
 		    encounterFct);
 		//if a baseCohort is present, we filter on it:
 		if (baseCohort != null) {
 			Set<Integer> patientIds = baseCohort.getMemberIds();
-			patientIdAndEnc = patientIdAndEnc.entrySet().stream().filter(entry -> patientIds.contains(entry.getKey()))
-			        .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+			IntObjectMap<EncounterRecord> cohortIdAndEnc = new IntObjectMap<>(Math.min(patientIds.size(),
+			    patientIdAndEnc.size()));
+			patientIdAndEnc.forEach((patientId, record) -> {
+				if (patientIds.contains(patientId)) {
+					cohortIdAndEnc.put(patientId, record);
+				}
+			});
+			patientIdAndEnc = cohortIdAndEnc;
 		}
 		
 		PatientAgePerEncounterIdByTypeFunction agePerEncounterIdFct = new PatientAgePerEncounterIdByTypeFunction(context,
 		        patientIdAndEnc);
 		//will retrieve the map encounter id -> age if not in cache
-		Map<Integer, Object> encIdAndAge = contextPersistantCache.computeMapIfAbsent(def.getEncounterType(),
+		IntObjectMap<Age> encIdAndAge = contextPersistantCache.computeIfAbsent(def.getEncounterType(),
 		    agePerEncounterIdFct);
 		
 		//transform these 2 maps in patient id -> age
-		Map<Integer, Object> patientIdAndAge = new HashMap<>();
-		patientIdAndEnc.entrySet().forEach(e -> {
-			Integer patientId = e.getKey();
-			Encounter en = (Encounter) e.getValue();
-			patientIdAndAge.put(patientId, encIdAndAge.get(en.getId()));
-		});
+		Map<Integer, Object> patientIdAndAge = new HashMap<>(patientIdAndEnc.size() * 2);
+		patientIdAndEnc.forEach(
+		    (patientId, record) -> patientIdAndAge.put(patientId, encIdAndAge.get(record.getEncounterId())));
 		EvaluatedPatientData result = new EvaluatedPatientData(definition, context);
 		result.setData(patientIdAndAge);
 		
@@ -1,12 +1,13 @@
 package org.openmrs.module.patientgrid.evaluator;
 
 import org.openmrs.Cohort;
-import org.openmrs.Encounter;
 import org.openmrs.annotation.Handler;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.patientgrid.EncounterRecord;
 import org.openmrs.module.patientgrid.EvaluationContextPersistantCache;
+import org.openmrs.module.patientgrid.IntObjectMap;
 import org.openmrs.module.patientgrid.definition.DateForLatestEncounterPatientDataDefinition;
-import org.openmrs.module.patientgrid.function.MostRecentEncounterPerPatientByTypeFunction;
+import org.openmrs.module.patientgrid.function.MostRecentEncounterRecordPerPatientByTypeFunction;
 import org.openmrs.module.reporting.data.encounter.definition.EncounterDatetimeDataDefinition;
 import org.openmrs.module.reporting.data.encounter.service.EncounterDataService;
 import org.openmrs.module.reporting.data.patient.EvaluatedPatientData;
@@ -19,12 +20,12 @@ import org.openmrs.module.reporting.query.encounter.EncounterIdSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.sql.Timestamp;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 
 @Handler(supports = DateForLatestEncounterPatientDataDefinition.class, order = 50)
 public class DateForLatestEncounterPatientDataEvaluator implements PatientDataEvaluator {
@@ -39,13 +40,17 @@ public class DateForLatestEncounterPatientDataEvaluator implements PatientDataEv
 		final Set<Integer> patientIds = baseCohort == null ? null : baseCohort.getMemberIds();
 		DateForLatestEncounterPatientDataDefinition def = (DateForLatestEncounterPatientDataDefinition) definition;
 		EvaluationContextPersistantCache contextPersistantCache = (EvaluationContextPersistantCache) context;
-		Map<Integer, Object> patientIdAndEnc = contextPersistantCache.computeMapIfAbsent(def.getEncounterType(),
-		    new MostRecentEncounterPerPatientByTypeFunction(contextPersistantCache, def.getPeriodRange(),
+		IntObjectMap<EncounterRecord> patientIdAndEnc = contextPersistantCache.computeIfAbsent(def.getEncounterType(),
+		    new MostRecentEncounterRecordPerPatientByTypeFunction(contextPersistantCache, def.getPeriodRange(),
 		            def.getLocationCohortDefinition()));
 		
-		Map<Integer, Object> patientIdAndEncDate = patientIdAndEnc.entrySet().stream()
-		        .filter(entry -> patientIds == null || patientIds.contains(entry.getKey())).collect(Collectors
-		                .toMap(entry -> entry.getKey(), entry -> ((Encounter) entry.getValue()).getEncounterDatetime()));
+		//Hibernate loads the encounter datetime as a timestamp, the values of the column are kept as such
+		Map<Integer, Object> patientIdAndEncDate = new HashMap<>();
+		patientIdAndEnc.forEach((patientId, record) -> {
+			if (patientIds == null || patientIds.contains(patientId)) {
+				patientIdAndEncDate.put(patientId, new Timestamp(record.getEncounterDatetime()));
+			}
+		});
 		
 		EvaluatedPatientData result = new EvaluatedPatientData(definition, context);
 		result.setData(patientIdAndEncDate);
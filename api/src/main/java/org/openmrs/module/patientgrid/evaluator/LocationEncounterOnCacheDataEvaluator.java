@@ -1,11 +1,13 @@
 package org.openmrs.module.patientgrid.evaluator;
 
-import org.apache.commons.collections.CollectionUtils;
 import org.openmrs.*;
 import org.openmrs.annotation.Handler;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.patientgrid.EncounterRecord;
 import org.openmrs.module.patientgrid.EvaluationContextPersistantCache;
+import org.openmrs.module.patientgrid.IntObjectMap;
 import org.openmrs.module.patientgrid.definition.LocationEncounterDataDefinition;
-import org.openmrs.module.patientgrid.function.MostRecentEncounterPerPatientByTypeFunction;
+import org.openmrs.module.patientgrid.function.MostRecentEncounterRecordPerPatientByTypeFunction;
 import org.openmrs.module.reporting.data.patient.EvaluatedPatientData;
 import org.openmrs.module.reporting.data.patient.definition.PatientDataDefinition;
 import org.openmrs.module.reporting.data.patient.evaluator.PatientDataEvaluator;
@@ -33,11 +35,13 @@ public class LocationEncounterOnCacheDataEvaluator implements PatientDataEvaluat
 		Cohort baseCohort = context.getBaseCohort();
 		Map<Integer, Object> patientIdAndLocationMap = new HashMap(baseCohort.size());
 		EvaluationContextPersistantCache contextPersistantCache = (EvaluationContextPersistantCache) context;
-		List<Map> allCacheData = contextPersistantCache.getAllCacheData(MostRecentEncounterPerPatientByTypeFunction.class);
+		List<IntObjectMap<EncounterRecord>> allCacheData = contextPersistantCache
+		        .getAllCacheData(MostRecentEncounterRecordPerPatientByTypeFunction.class);
+		Map<Integer, Location> locations = new HashMap<>();
 		for (CohortMembership member : baseCohort.getMemberships()) {
 			Integer patientId = member.getPatientId();
 			if (!patientIdAndLocationMap.containsKey(patientId)) {
-				Location location = findLocation(allCacheData, patientId);
+				Location location = findLocation(allCacheData, patientId, locations);
 				if (location == null) {
 					LOGGER.warn("No location found for patient {} in the cache", patientId);
 				} else {
@@ -50,26 +54,22 @@ public class LocationEncounterOnCacheDataEvaluator implements PatientDataEvaluat
 		return data;
 	}
 	
-	private Location findLocation(List<Map> allCacheData, Integer patientId) {
-		Encounter encounter = null;
-		for (Map map : allCacheData) {
-			Object o = map.get(patientId);
-			Encounter currentEncounter = null;
-			if (o instanceof Encounter) {
-				currentEncounter = (Encounter) o;
-			} else {
-				List encounterList = (List) o;
-				if (CollectionUtils.isNotEmpty(encounterList)) {
-					currentEncounter = (Encounter) encounterList.get(0);
-				}
-			}
+	private Location findLocation(List<IntObjectMap<EncounterRecord>> allCacheData, Integer patientId,
+	        Map<Integer, Location> locations) {
+		EncounterRecord encounter = null;
+		for (IntObjectMap<EncounterRecord> map : allCacheData) {
+			EncounterRecord currentEncounter = map.get(patientId);
 			if (currentEncounter != null) {
-				if (encounter == null || currentEncounter.getEncounterDatetime().after(encounter.getEncounterDatetime())) {
+				if (encounter == null || currentEncounter.getEncounterDatetime() > encounter.getEncounterDatetime()) {
 					encounter = currentEncounter;
 				}
 			}
 		}
-		return encounter == null ? null : encounter.getLocation();
+		if (encounter == null || encounter.getLocationId() == null) {
+			return null;
+		}
+		
+		return locations.computeIfAbsent(encounter.getLocationId(), id -> Context.getLocationService().getLocation(id));
 	}
 	
 }
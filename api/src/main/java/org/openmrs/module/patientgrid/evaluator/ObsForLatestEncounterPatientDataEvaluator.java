@@ -1,26 +1,39 @@
 package org.openmrs.module.patientgrid.evaluator;
 
+import org.hibernate.SessionFactory;
 import org.openmrs.*;
 import org.openmrs.annotation.Handler;
+import org.openmrs.module.patientgrid.EncounterRecord;
 import org.openmrs.module.patientgrid.EvaluationContextPersistantCache;
-import org.openmrs.module.patientgrid.PatientGridUtils;
+import org.openmrs.module.patientgrid.IntObjectMap;
+import org.openmrs.module.patientgrid.ObsIndex;
 import org.openmrs.module.patientgrid.definition.ObsForLatestEncounterPatientDataDefinition;
-import org.openmrs.module.patientgrid.function.MostRecentEncounterPerPatientByTypeFunction;
+import org.openmrs.module.patientgrid.function.MostRecentEncounterRecordPerPatientByTypeFunction;
+import org.openmrs.module.patientgrid.function.ObsIndexByTypeFunction;
 import org.openmrs.module.reporting.data.patient.EvaluatedPatientData;
 import org.openmrs.module.reporting.data.patient.definition.PatientDataDefinition;
 import org.openmrs.module.reporting.data.patient.evaluator.PatientDataEvaluator;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import static java.util.Collections.singletonList;
+
 @Handler(supports = ObsForLatestEncounterPatientDataDefinition.class, order = 50)
 public class ObsForLatestEncounterPatientDataEvaluator implements PatientDataEvaluator {
 	
+	private SessionFactory sf;
+	
+	@Autowired
+	public ObsForLatestEncounterPatientDataEvaluator(SessionFactory sf) {
+		this.sf = sf;
+	}
+	
 	@Override
 	public EvaluatedPatientData evaluate(PatientDataDefinition definition, EvaluationContext context)
 	        throws EvaluationException {
@@ -30,19 +43,32 @@ public class ObsForLatestEncounterPatientDataEvaluator implements PatientDataEva
 		}
 		ObsForLatestEncounterPatientDataDefinition def = (ObsForLatestEncounterPatientDataDefinition) definition;
 		EvaluationContextPersistantCache contextPersistantCache = (EvaluationContextPersistantCache) context;
-		Map<Integer, Object> patientIdAndEnc = contextPersistantCache.computeMapIfAbsent(def.getEncounterType(),
-		    new MostRecentEncounterPerPatientByTypeFunction(contextPersistantCache, def.getPeriodRange(),
-		            def.getLocationCohortDefinition()));
+		IntObjectMap<EncounterRecord> patientIdAndRecord = contextPersistantCache.computeIfAbsent(
+		    def.getEncounterType(), new MostRecentEncounterRecordPerPatientByTypeFunction(contextPersistantCache,
+		            def.getPeriodRange(), def.getLocationCohortDefinition()));
+		//The obs of all the obs columns for the encounter type are loaded at once when the first column is evaluated
+		List<Concept> concepts = def.getConcepts() == null ? singletonList(def.getConcept()) : def.getConcepts();
+		ObsIndex obsIndex = contextPersistantCache.computeIfAbsent(def.getEncounterType(),
+		    new ObsIndexByTypeFunction(sf, patientIdAndRecord, concepts));
+		if (!obsIndex.covers(def.getConcept())) {
+			obsIndex = new ObsIndexByTypeFunction(sf, patientIdAndRecord, singletonList(def.getConcept()))
+			        .apply(def.getEncounterType());
+		}
+		obsIndex.resolve(sf);
 		
-		Map<Integer, Object> patientIdAndObs = new HashMap(patientIdAndEnc.size());
-		Set<Integer> patients = baseCohort == null ? patientIdAndEnc.keySet() : baseCohort.getMemberIds();
-		for (Integer patientId : patients) {
-			Encounter e = (Encounter) patientIdAndEnc.get(patientId);
-			Obs obs = PatientGridUtils.getObsByConcept(e, def.getConcept());
+		Map<Integer, Object> patientIdAndObs = new HashMap(patientIdAndRecord.size());
+		Set<Integer> patients = baseCohort == null ? null : baseCohort.getMemberIds();
+		ObsIndex index = obsIndex;
+		patientIdAndRecord.forEach((patientId, record) -> {
+			if (patients != null && !patients.contains(patientId)) {
+				return;
+			}
+			
+			Obs obs = index.get(record.getEncounterId(), def.getConcept());
 			if (obs != null) {
 				patientIdAndObs.put(patientId, obs);
 			}
-		}
+		});
 		
 		EvaluatedPatientData result = new EvaluatedPatientData(definition, context);
 		result.setData(patientIdAndObs);
@@ -0,0 +1,264 @@
+package org.openmrs.module.patientgrid.filter;
+
+import static org.openmrs.module.patientgrid.PatientGridConstants.GP_FILTER_THREADS;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.Cohort;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.patientgrid.EvaluationContextPersistantCache;
+import org.openmrs.module.patientgrid.PatientGridActivator;
+import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.CompositionCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.service.CohortDefinitionService;
+import org.openmrs.module.reporting.evaluation.EvaluationException;
+import org.openmrs.module.reporting.evaluation.parameter.Mapped;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Evaluates concurrently the filters of a grid combined with AND in a
+ * {@link CompositionCohortDefinition} and intersects the matching cohorts. The filters are evaluated
+ * on a bounded module executor, each one in a daemon thread with its own read only session as the
+ * user evaluating the grid so that the data filters still apply. The age range filters load the
+ * latest encounter records of their encounter type which are reused by the columns through the
+ * persistent cache shared by the child contexts. Other independent tasks e.g. the loads of the
+ * latest encounters of each encounter type of the columns can be run the same way, see
+ * {@link #invokeAll(List)}
+ */
+public class ParallelCohortEvaluator {
+	
+	private static final Logger log = LoggerFactory.getLogger(ParallelCohortEvaluator.class);
+	
+	protected static final int DEFAULT_THREADS = 4;
+	
+	private ThreadPoolExecutor executor;
+	
+	private static class ParallelCohortEvaluatorHolder {
+		
+		private final static ParallelCohortEvaluator INSTANCE = new ParallelCohortEvaluator();
+		
+	}
+	
+	public static ParallelCohortEvaluator getInstance() {
+		return ParallelCohortEvaluatorHolder.INSTANCE;
+	}
+	
+	/**
+	 * Checks if the specified cohort definition can be evaluated concurrently
+	 *
+	 * @param cohortDefinition the cohort definition to check
+	 * @return true if the definition is a composition and concurrency is enabled otherwise false
+	 */
+	public boolean isApplicable(CohortDefinition cohortDefinition) {
+		return cohortDefinition instanceof CompositionCohortDefinition && isEnabled();
+	}
+	
+	private boolean isEnabled() {
+		return getThreads() > 1 && PatientGridActivator.getDaemonToken() != null
+		        && Context.getAuthenticatedUser() != null;
+	}
+	
+	/**
+	 * Evaluates the searches of the specified composition and returns the patients matching all of them
+	 *
+	 * @param cohortDefinition the composition of the filters to evaluate
+	 * @param context the evaluation context
+	 * @return the cohort of the patients matching all the filters
+	 * @throws EvaluationException
+	 */
+	public Cohort evaluate(CompositionCohortDefinition cohortDefinition, EvaluationContextPersistantCache context)
+	        throws EvaluationException {
+		List<Callable<Cohort>> tasks = new ArrayList<>(cohortDefinition.getSearches().size());
+		for (Mapped<CohortDefinition> search : cohortDefinition.getSearches().values()) {
+			CohortDefinition def = search.getParameterizable();
+			EvaluationContextPersistantCache childContext = new EvaluationContextPersistantCache(context);
+			tasks.add(() -> Context.getService(CohortDefinitionService.class).evaluate(def, childContext));
+		}
+		
+		return intersect(invokeAll(tasks));
+	}
+	
+	/**
+	 * Runs the specified tasks concurrently as the authenticated user, each one in a daemon thread with
+	 * its own session, and waits for all of them. The tasks are run in the calling thread if concurrency
+	 * is disabled or if the executor rejects them. The tasks must not return entities since these are
+	 * detached once the session of their thread is closed.
+	 *
+	 * @param tasks the tasks to run
+	 * @return the results of the tasks in the same order
+	 * @throws EvaluationException if a task fails with an {@link EvaluationException}
+	 * @throws APIException if a task fails with any other exception
+	 */
+	public <T> List<T> invokeAll(List<? extends Callable<T>> tasks) throws EvaluationException {
+		List<Future<T>> futures = new ArrayList<>(tasks.size());
+		List<T> results = new ArrayList<>(tasks.size());
+		try {
+			if (isEnabled()) {
+				String systemId = Context.getAuthenticatedUser().getSystemId();
+				DaemonToken daemonToken = PatientGridActivator.getDaemonToken();
+				for (Callable<T> task : tasks) {
+					futures.add(submit(task, systemId, daemonToken));
+				}
+			}
+			for (int i = 0; i < tasks.size(); i++) {
+				Future<T> future = i < futures.size() ? futures.get(i) : null;
+				results.add(future == null ? tasks.get(i).call() : future.get());
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new APIException("Interrupted while evaluating the grid concurrently", e);
+		}
+		catch (ExecutionException e) {
+			throw propagate(e.getCause());
+		}
+		catch (EvaluationException | APIException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw propagate(e);
+		}
+		finally {
+			futures.stream().filter(Objects::nonNull).forEach(f -> f.cancel(true));
+		}
+		
+		return results;
+	}
+	
+	/**
+	 * @return the specified exception if it is an {@link EvaluationException}, other exceptions are
+	 *         thrown as {@link APIException}
+	 */
+	private static EvaluationException propagate(Throwable e) {
+		if (e instanceof EvaluationException) {
+			return (EvaluationException) e;
+		}
+		if (e instanceof APIException) {
+			throw (APIException) e;
+		}
+		
+		throw new APIException("Failed to evaluate the grid concurrently", e);
+	}
+	
+	private <T> Future<T> submit(Callable<T> task, String systemId, DaemonToken daemonToken) {
+		try {
+			return getExecutor().submit(() -> {
+				AtomicReference<T> result = new AtomicReference<>();
+				AtomicReference<Exception> error = new AtomicReference<>();
+				Thread thread = Daemon.runInDaemonThread(() -> {
+					try {
+						Context.becomeUser(systemId);
+						result.set(task.call());
+					}
+					catch (Exception e) {
+						error.set(e);
+					}
+				}, daemonToken);
+				
+				thread.join();
+				if (error.get() != null) {
+					throw error.get();
+				}
+				
+				return result.get();
+			});
+		}
+		catch (RejectedExecutionException e) {
+			log.debug("Failed to submit a task, running it in the calling thread", e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Gets the patients contained in all the specified cohorts
+	 *
+	 * @param cohorts the cohorts to intersect
+	 * @return the intersection
+	 */
+	protected static Cohort intersect(List<Cohort> cohorts) {
+		PatientIdSet patientIds = null;
+		for (Cohort cohort : cohorts) {
+			if (patientIds == null) {
+				patientIds = PatientIdSet.of(cohort);
+			} else {
+				patientIds.and(PatientIdSet.of(cohort));
+			}
+		}
+		
+		return patientIds == null ? new Cohort() : patientIds.toCohort();
+	}
+	
+	/**
+	 * Gets the maximum number of filters of all grids evaluated concurrently, a value of 1 or less
+	 * disables concurrent evaluation. The global property is read each time so that changes apply
+	 * without a restart.
+	 *
+	 * @return the number of threads
+	 */
+	protected int getThreads() {
+		String threadsDefinedInGP = Context.getAdministrationService().getGlobalProperty(GP_FILTER_THREADS);
+		if (StringUtils.isNotBlank(threadsDefinedInGP)) {
+			try {
+				return Integer.parseInt(threadsDefinedInGP.trim());
+			}
+			catch (NumberFormatException e) {
+				log.warn("The value '{}' defined in the global property '{}' is not supported, using {}",
+				    threadsDefinedInGP, GP_FILTER_THREADS, DEFAULT_THREADS);
+			}
+		}
+		
+		return DEFAULT_THREADS;
+	}
+	
+	private synchronized ExecutorService getExecutor() {
+		int threads = Math.max(1, getThreads());
+		if (executor == null || executor.isShutdown()) {
+			ThreadFactory threadFactory = r -> {
+				Thread thread = new Thread(r, "patientgrid-filter-evaluator");
+				thread.setDaemon(true);
+				return thread;
+			};
+			executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+			        threadFactory);
+		} else if (executor.getMaximumPoolSize() != threads) {
+			//The core size can't exceed the max size
+			if (threads > executor.getMaximumPoolSize()) {
+				executor.setMaximumPoolSize(threads);
+				executor.setCorePoolSize(threads);
+			} else {
+				executor.setCorePoolSize(threads);
+				executor.setMaximumPoolSize(threads);
+			}
+		}
+		
+		return executor;
+	}
+	
+	/**
+	 * Stops evaluating filters, the queued evaluations are discarded
+	 */
+	public synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+	
+}
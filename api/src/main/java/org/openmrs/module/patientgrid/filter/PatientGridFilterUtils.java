@@ -71,7 +71,7 @@ public class PatientGridFilterUtils {
 						cohortDef = createGenderCohortDefinition(column);
 						break;
 					case OBS:
-						cohortDef = createObsCohortDefinition(column, periodRange);
+						cohortDef = createObsCohortDefinition(column, periodRange, locationCohortDefinition);
 						break;
 					case ENC_LOCATION:
 					case ENC_COUNTRY:
@@ -206,16 +206,19 @@ public class PatientGridFilterUtils {
 	 * {@link PatientGridColumn}
 	 *
 	 * @param column {@link PatientGridColumn} object
+	 * @param periodRange the period the latest encounter must fall in or null
+	 * @param locationCohortDefinition the locations the latest encounter must take place at or null
 	 * @return ObsForLatestEncounterCohortDefinition
 	 */
 	private static ObsForLatestEncounterCohortDefinition createObsCohortDefinition(PatientGridColumn column,
-	        DateRange periodRange) {
+	        DateRange periodRange, LocationCohortDefinition locationCohortDefinition) {
 		ObsPatientGridColumn obsColumn = (ObsPatientGridColumn) column;
 		ObsForLatestEncounterCohortDefinition obsCohortDef = new ObsForLatestEncounterCohortDefinition();
 		Concept concept = obsColumn.getConcept();
 		obsCohortDef.setConcept(concept);
 		obsCohortDef.setEncounterType(obsColumn.getEncounterType());
 		obsCohortDef.setPeriodRange(periodRange);
+		obsCohortDef.setLocationCohortDefinition(locationCohortDefinition);
 		Class<?> valueType;
 		if (concept.getDatatype().isNumeric()) {
 			obsCohortDef.setPropertyName("valueNumeric");
@@ -333,7 +336,14 @@ public class PatientGridFilterUtils {
 		StopWatch stopWatch = new StopWatch();
 		stopWatch.start();
 		
-		Cohort cohort = Context.getService(CohortDefinitionService.class).evaluate(cohortDef.getObject(), context);
+		Cohort cohort;
+		ParallelCohortEvaluator parallelEvaluator = ParallelCohortEvaluator.getInstance();
+		if (context instanceof EvaluationContextPersistantCache && parallelEvaluator.isApplicable(cohortDef.getObject())) {
+			cohort = parallelEvaluator.evaluate((CompositionCohortDefinition) cohortDef.getObject(),
+			    (EvaluationContextPersistantCache) context);
+		} else {
+			cohort = Context.getService(CohortDefinitionService.class).evaluate(cohortDef.getObject(), context);
+		}
 		
 		stopWatch.stop();
 		
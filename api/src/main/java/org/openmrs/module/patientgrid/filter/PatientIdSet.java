@@ -0,0 +1,93 @@
+package org.openmrs.module.patientgrid.filter;
+
+import java.util.BitSet;
+import java.util.Collection;
+
+import org.openmrs.Cohort;
+import org.openmrs.CohortMembership;
+
+/**
+ * A set of patient ids backed by a {@link BitSet} where each patient id is a bit, it is used to
+ * combine the cohorts matching the grid filters and the static cohort of a grid without boxing the
+ * ids or allocating an entry per patient, an intersection is a word wise AND of the sets. Patient
+ * ids are sequential and dense so a set takes at most one bit per patient of the database. The
+ * {@link Cohort} objects of the reporting module are converted to and from this type only when
+ * they are combined.
+ */
+public class PatientIdSet {
+	
+	private final BitSet bits;
+	
+	public PatientIdSet() {
+		bits = new BitSet();
+	}
+	
+	/**
+	 * Creates a set of the ids of the patients in the specified cohort
+	 *
+	 * @param cohort the cohort
+	 * @return the patient id set
+	 */
+	public static PatientIdSet of(Cohort cohort) {
+		PatientIdSet set = new PatientIdSet();
+		for (CohortMembership membership : cohort.getMemberships()) {
+			set.add(membership.getPatientId());
+		}
+		
+		return set;
+	}
+	
+	/**
+	 * Creates a set of the specified patient ids
+	 *
+	 * @param patientIds the patient ids
+	 * @return the patient id set
+	 */
+	public static PatientIdSet of(Collection<Integer> patientIds) {
+		PatientIdSet set = new PatientIdSet();
+		patientIds.forEach(set::add);
+		return set;
+	}
+	
+	public void add(int patientId) {
+		bits.set(patientId);
+	}
+	
+	public boolean contains(int patientId) {
+		return patientId >= 0 && bits.get(patientId);
+	}
+	
+	/**
+	 * Removes from this set the patients which are not in the specified set
+	 *
+	 * @param other the set to intersect with
+	 * @return this set
+	 */
+	public PatientIdSet and(PatientIdSet other) {
+		bits.and(other.bits);
+		return this;
+	}
+	
+	public int size() {
+		return bits.cardinality();
+	}
+	
+	public boolean isEmpty() {
+		return bits.isEmpty();
+	}
+	
+	/**
+	 * Converts this set to a {@link Cohort}
+	 *
+	 * @return the cohort of the patients in this set
+	 */
+	public Cohort toCohort() {
+		Cohort cohort = new Cohort();
+		for (int patientId = bits.nextSetBit(0); patientId >= 0; patientId = bits.nextSetBit(patientId + 1)) {
+			cohort.addMembership(new CohortMembership(patientId));
+		}
+		
+		return cohort;
+	}
+	
+}
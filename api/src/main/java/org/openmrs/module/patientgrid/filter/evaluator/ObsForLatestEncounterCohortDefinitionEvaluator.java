@@ -1,13 +1,17 @@
 package org.openmrs.module.patientgrid.filter.evaluator;
 
 import org.hibernate.Criteria;
+import org.hibernate.Query;
 import org.hibernate.SessionFactory;
 import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
 import org.openmrs.Cohort;
 import org.openmrs.Obs;
+import org.openmrs.OpenmrsObject;
 import org.openmrs.annotation.Handler;
 import org.openmrs.module.patientgrid.EvaluationContextPersistantCache;
+import org.openmrs.module.patientgrid.cache.EncounterSnapshotCache;
+import org.openmrs.module.patientgrid.filter.PatientIdSet;
 import org.openmrs.module.patientgrid.filter.definition.ObsForLatestEncounterCohortDefinition;
 import org.openmrs.module.patientgrid.function.MostRecentEncounterIdByTypeFunction;
 import org.openmrs.module.reporting.cohort.EvaluatedCohort;
@@ -19,20 +23,52 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 @Handler(supports = ObsForLatestEncounterCohortDefinition.class, order = 50)
 public class ObsForLatestEncounterCohortDefinitionEvaluator implements CohortDefinitionEvaluator {
 	
 	private static final Logger log = LoggerFactory.getLogger(ObsForLatestEncounterCohortDefinitionEvaluator.class);
 	
+	protected static final int IN_LIST_LIMIT = MostRecentEncounterIdByTypeFunction.IN_LIST_LIMIT;
+	
+	protected static final int SUBQUERY_THRESHOLD = 10000;
+	
+	private static final Map<String, String> VALUE_COLUMNS = new HashMap<>();
+	
+	static {
+		VALUE_COLUMNS.put("valueNumeric", "value_numeric");
+		VALUE_COLUMNS.put("valueCoded", "value_coded");
+		VALUE_COLUMNS.put("valueDatetime", "value_datetime");
+		VALUE_COLUMNS.put("valueText", "value_text");
+	}
+	
 	//Unfortunately hibernate's criteria API and HQL don't support joins to a derived table with multiple columns
 	
 	private SessionFactory sf;
 	
+	private int inListLimit;
+	
+	private int subqueryThreshold;
+	
 	@Autowired
 	public ObsForLatestEncounterCohortDefinitionEvaluator(SessionFactory sf) {
+		this(sf, IN_LIST_LIMIT, SUBQUERY_THRESHOLD);
+	}
+	
+	/**
+	 * @param sf the session factory
+	 * @param inListLimit the maximum number of encounter or patient ids bound in a single query
+	 * @param subqueryThreshold the number of encounter ids above which the latest encounters are
+	 *            matched with a subquery instead of binding their ids
+	 */
+	public ObsForLatestEncounterCohortDefinitionEvaluator(SessionFactory sf, int inListLimit, int subqueryThreshold) {
 		this.sf = sf;
+		this.inListLimit = inListLimit;
+		this.subqueryThreshold = subqueryThreshold;
 	}
 	
 	@Override
@@ -42,10 +78,73 @@ public class ObsForLatestEncounterCohortDefinitionEvaluator implements CohortDef
 		ObsForLatestEncounterCohortDefinition cohortDef = (ObsForLatestEncounterCohortDefinition) cohortDefinition;
 		EvaluationContextPersistantCache contextPersistantCache = (EvaluationContextPersistantCache) evaluationContext;
 		
-		MostRecentEncounterIdByTypeFunction function = new MostRecentEncounterIdByTypeFunction(sf,
-		        cohortDef.getPeriodRange(), cohortDef.getLocationCohortDefinition());
-		List<Integer> encounterIds = contextPersistantCache.computeListIfAbsent(cohortDef.getEncounterType(), function);
+		Cohort baseCohort = evaluationContext.getBaseCohort();
+		//The strategy is picked before loading the encounter ids so that a huge list is never loaded for nothing
+		if (VALUE_COLUMNS.containsKey(cohortDef.getPropertyName())
+		        && countLatestEncounters(cohortDef, baseCohort) > subqueryThreshold) {
+			return new EvaluatedCohort(getCohortBySubquery(cohortDef, baseCohort), cohortDefinition, evaluationContext);
+		}
+		
+		List<Integer> encounterIds;
+		if (baseCohort == null) {
+			MostRecentEncounterIdByTypeFunction function = new MostRecentEncounterIdByTypeFunction(sf,
+			        cohortDef.getPeriodRange(), cohortDef.getLocationCohortDefinition());
+			encounterIds = contextPersistantCache.computeListIfAbsent(cohortDef.getEncounterType(),
+			    type -> EncounterSnapshotCache.getInstance().computeIfAbsent(type, cohortDef.getPeriodRange(),
+			        cohortDef.getLocationCohortDefinition(), function));
+		} else {
+			//The encounters of a subset of the patients are not shared across evaluations
+			encounterIds = contextPersistantCache.computeListIfAbsent(cohortDef.getEncounterType(),
+			    new MostRecentEncounterIdByTypeFunction(sf, cohortDef.getPeriodRange(),
+			            cohortDef.getLocationCohortDefinition(), baseCohort.getMemberIds(), inListLimit));
+		}
+		if (encounterIds.isEmpty()) {
+			return new EvaluatedCohort(new Cohort(), cohortDefinition, evaluationContext);
+		}
+		
+		//Binding a huge list of ids produces giant statements that can exceed the driver packet limits
+		Cohort cohort;
+		if (encounterIds.size() <= inListLimit) {
+			cohort = new Cohort(getPatientIds(cohortDef, encounterIds));
+		} else {
+			cohort = getCohortInChunks(cohortDef, encounterIds);
+		}
+		
+		return new EvaluatedCohort(cohort, cohortDefinition, evaluationContext);
+	}
+	
+	/**
+	 * Gets the number of latest encounters to match without loading their ids. A patient has at most
+	 * one latest encounter so the size of the base cohort is used as an upper bound, otherwise the size
+	 * of the shared snapshot if one exists or else the encounters are counted by the database.
+	 *
+	 * @param cohortDef the cohort definition
+	 * @param baseCohort the base cohort or null
+	 * @return the number of latest encounters or an upper bound
+	 */
+	private long countLatestEncounters(ObsForLatestEncounterCohortDefinition cohortDef, Cohort baseCohort) {
+		if (baseCohort != null) {
+			return baseCohort.size();
+		}
+		
+		List<Integer> snapshot = EncounterSnapshotCache.getInstance().get(cohortDef.getEncounterType(),
+		    cohortDef.getPeriodRange(), cohortDef.getLocationCohortDefinition());
+		if (snapshot != null) {
+			return snapshot.size();
+		}
 		
+		return new MostRecentEncounterIdByTypeFunction(sf, cohortDef.getPeriodRange(),
+		        cohortDef.getLocationCohortDefinition()).count(cohortDef.getEncounterType());
+	}
+	
+	/**
+	 * Gets the ids of the patients with matching obs in the specified encounters
+	 *
+	 * @param cohortDef the cohort definition
+	 * @param encounterIds the encounter ids
+	 * @return the patient ids
+	 */
+	private List<Integer> getPatientIds(ObsForLatestEncounterCohortDefinition cohortDef, List<Integer> encounterIds) {
 		Criteria criteria = sf.getCurrentSession().createCriteria(Obs.class, "o");
 		criteria.createCriteria("person", "p");
 		criteria.setProjection(Projections.property("p.personId"));
@@ -57,7 +156,68 @@ public class ObsForLatestEncounterCohortDefinitionEvaluator implements CohortDef
 		criteria.createCriteria("encounter", "e");
 		criteria.add(Restrictions.in("e.encounterId", encounterIds));
 		
-		return new EvaluatedCohort(new Cohort(criteria.list()), cohortDefinition, evaluationContext);
+		return criteria.list();
+	}
+	
+	/**
+	 * Matches the obs of the specified encounters in chunks of {@link #inListLimit} ids
+	 *
+	 * @param cohortDef the cohort definition
+	 * @param encounterIds the encounter ids
+	 * @return the cohort
+	 */
+	private Cohort getCohortInChunks(ObsForLatestEncounterCohortDefinition cohortDef, List<Integer> encounterIds) {
+		log.debug("Matching obs of {} encounters in chunks of {}", encounterIds.size(), inListLimit);
+		
+		PatientIdSet patientIds = new PatientIdSet();
+		for (int i = 0; i < encounterIds.size(); i += inListLimit) {
+			List<Integer> chunk = encounterIds.subList(i, Math.min(i + inListLimit, encounterIds.size()));
+			getPatientIds(cohortDef, chunk).forEach(patientIds::add);
+		}
+		
+		return patientIds.toCohort();
+	}
+	
+	/**
+	 * Matches the obs against the latest encounter query embedded as a subquery so that the database
+	 * resolves the encounters itself instead of receiving their ids, a base cohort too large to be
+	 * bound in the subquery is applied to the matching patients in memory instead. The subquery reads
+	 * the current encounters whereas a snapshot of {@link EncounterSnapshotCache} can be up to its time
+	 * to live old for changes it was not notified of i.e. those not made through this application.
+	 *
+	 * @param cohortDef the cohort definition
+	 * @param baseCohort the base cohort or null
+	 * @return the cohort
+	 */
+	private Cohort getCohortBySubquery(ObsForLatestEncounterCohortDefinition cohortDef, Cohort baseCohort) {
+		log.debug("Matching obs against the latest encounter subquery");
+		
+		boolean bindPatients = baseCohort != null && baseCohort.size() <= inListLimit;
+		MostRecentEncounterIdByTypeFunction function = new MostRecentEncounterIdByTypeFunction(sf,
+		        cohortDef.getPeriodRange(), cohortDef.getLocationCohortDefinition(),
+		        bindPatients ? baseCohort.getMemberIds() : null);
+		List<Integer> locationIds = function.getLocationIds();
+		Query query = sf.getCurrentSession().createSQLQuery("SELECT DISTINCT o.person_id FROM obs o WHERE o.concept_id "
+		        + "= :conceptId AND o.voided = false AND o." + VALUE_COLUMNS.get(cohortDef.getPropertyName())
+		        + " IN (:values) AND o.encounter_id IN (" + function.getQuery(locationIds != null) + ")");
+		function.setParameters(query, cohortDef.getEncounterType(), locationIds);
+		query.setParameter("conceptId", cohortDef.getConcept().getConceptId());
+		query.setParameterList("values", cohortDef.getValues().stream()
+		        .map(v -> v instanceof OpenmrsObject ? ((OpenmrsObject) v).getId() : v).collect(Collectors.toList()));
+		if (baseCohort == null || bindPatients) {
+			return new Cohort(query.list());
+		}
+		
+		PatientIdSet members = PatientIdSet.of(baseCohort);
+		PatientIdSet patientIds = new PatientIdSet();
+		for (Object personId : query.list()) {
+			int patientId = ((Number) personId).intValue();
+			if (members.contains(patientId)) {
+				patientIds.add(patientId);
+			}
+		}
+		
+		return patientIds.toCohort();
 	}
 	
 }
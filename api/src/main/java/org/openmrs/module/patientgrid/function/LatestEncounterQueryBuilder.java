@@ -0,0 +1,119 @@
+package org.openmrs.module.patientgrid.function;
+
+import java.sql.DatabaseMetaData;
+
+import org.hibernate.SessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds the SQL query returning the id of the latest encounter of each patient. On databases
+ * supporting window functions i.e. MySQL 8, MariaDB 10.2, PostgreSQL and H2 2 the encounters are
+ * ranked per patient with ROW_NUMBER so that a single encounter is returned per patient even when
+ * several share the latest datetime, the one with the greatest id. Otherwise the encounters are
+ * joined to the latest datetime of each patient computed in a derived table.
+ */
+public class LatestEncounterQueryBuilder {
+	
+	private static final Logger log = LoggerFactory.getLogger(LatestEncounterQueryBuilder.class);
+	
+	private static volatile Boolean windowFunctionsSupported;
+	
+	private final boolean windowFunctions;
+	
+	/**
+	 * @param windowFunctions specifies if the query should use window functions
+	 */
+	public LatestEncounterQueryBuilder(boolean windowFunctions) {
+		this.windowFunctions = windowFunctions;
+	}
+	
+	/**
+	 * Creates a builder for the database of the specified session factory, the database is inspected
+	 * once
+	 *
+	 * @param sf the session factory
+	 * @return the query builder
+	 */
+	public static LatestEncounterQueryBuilder forDatabase(SessionFactory sf) {
+		if (windowFunctionsSupported == null) {
+			windowFunctionsSupported = sf.getCurrentSession().doReturningWork(connection -> {
+				DatabaseMetaData metaData = connection.getMetaData();
+				boolean supported = supportsWindowFunctions(metaData.getDatabaseProductName(),
+				    metaData.getDatabaseProductVersion(), metaData.getDatabaseMajorVersion(),
+				    metaData.getDatabaseMinorVersion());
+				log.info("Window functions {} for the latest encounter queries on {} {}", supported ? "used" : "not used",
+				    metaData.getDatabaseProductName(), metaData.getDatabaseProductVersion());
+				return supported;
+			});
+		}
+		
+		return new LatestEncounterQueryBuilder(windowFunctionsSupported);
+	}
+	
+	/**
+	 * Checks if the specified database supports the ROW_NUMBER window function
+	 *
+	 * @param productName the database product name
+	 * @param productVersion the database product version
+	 * @param majorVersion the database major version
+	 * @param minorVersion the database minor version
+	 * @return true if window functions are supported otherwise false
+	 */
+	protected static boolean supportsWindowFunctions(String productName, String productVersion, int majorVersion,
+	        int minorVersion) {
+		String name = productName == null ? "" : productName.toLowerCase();
+		String version = productVersion == null ? "" : productVersion.toLowerCase();
+		if (name.contains("mariadb") || version.contains("mariadb")) {
+			//The MySQL driver reports MariaDB 10.x as 5.5.5-10.x
+			if (majorVersion == 5 && version.startsWith("5.5.5-")) {
+				String[] parts = version.substring(6).split("\\.");
+				try {
+					majorVersion = Integer.parseInt(parts[0]);
+					minorVersion = parts.length > 1 ? Integer.parseInt(parts[1].replaceAll("\\D.*", "")) : 0;
+				}
+				catch (NumberFormatException e) {
+					return false;
+				}
+			}
+			
+			return majorVersion > 10 || (majorVersion == 10 && minorVersion >= 2);
+		}
+		if (name.contains("mysql")) {
+			return majorVersion >= 8;
+		}
+		if (name.contains("postgresql")) {
+			return true;
+		}
+		if (name.contains("h2")) {
+			return majorVersion >= 2;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Builds the query, the restrictions are appended to the conditions on the encounter table aliased
+	 * as e, the :encType parameter must be set to the encounter type
+	 *
+	 * @param restrictions the additional restrictions each starting with AND
+	 * @return the query
+	 */
+	public String build(String restrictions) {
+		if (windowFunctions) {
+			return "SELECT ranked.encounter_id FROM (SELECT e.encounter_id, ROW_NUMBER() OVER (PARTITION BY "
+			        + "e.patient_id ORDER BY e.encounter_datetime DESC, e.encounter_id DESC) AS row_num FROM encounter e "
+			        + "INNER JOIN patient p ON e.patient_id = p.patient_id WHERE e.encounter_type = :encType AND "
+			        + "e.voided = false AND p.voided = false" + restrictions + ") ranked WHERE ranked.row_num = 1";
+		}
+		
+		final String MOST_RECENT_DATES = "SELECT e.patient_id, max(e.encounter_datetime) AS maxDate FROM encounter e, "
+		        + "patient p WHERE e.patient_id = p.patient_id AND e.encounter_type = :encType AND e.voided = false AND"
+		        + " p.voided = false" + restrictions + " GROUP BY e.patient_id";
+		
+		return "SELECT e.encounter_id FROM encounter e INNER JOIN (" + MOST_RECENT_DATES
+		        + ") e2 ON e.patient_id = e2.patient_id AND e.encounter_datetime = e2.maxDate WHERE "
+		        + "e.encounter_type = :encType AND e.voided = false" + restrictions;
+	}
+	
+}
@@ -3,54 +3,193 @@ package org.openmrs.module.patientgrid.function;
 import org.hibernate.Query;
 import org.hibernate.SessionFactory;
 import org.openmrs.EncounterType;
+import org.openmrs.Location;
+import org.openmrs.module.patientgrid.PatientGridUtils;
 import org.openmrs.module.patientgrid.filter.definition.LocationCohortDefinition;
 import org.openmrs.module.patientgrid.period.DateRange;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 public class MostRecentEncounterIdByTypeFunction implements Function<EncounterType, List> {
 	
+	/**
+	 * The default maximum number of patient ids bound in a single query
+	 */
+	public static final int IN_LIST_LIMIT = 1000;
+	
 	private DateRange periodRange;
 	
+	private LocationCohortDefinition locationCohortDefinition;
+	
+	private Collection<Integer> patientIds;
+	
 	private SessionFactory sf;
 	
+	private int inListLimit;
+	
 	private static final Logger log = LoggerFactory.getLogger(MostRecentEncounterIdByTypeFunction.class);
 	
 	public MostRecentEncounterIdByTypeFunction(SessionFactory sf, DateRange periodRange,
 	    LocationCohortDefinition locationCohortDefinition) {
+		this(sf, periodRange, locationCohortDefinition, null);
+	}
+	
+	/**
+	 * @param sf the session factory
+	 * @param periodRange the period the encounters must fall in or null
+	 * @param locationCohortDefinition the location filter or null
+	 * @param patientIds the ids of the patients to match or null to match all patients
+	 */
+	public MostRecentEncounterIdByTypeFunction(SessionFactory sf, DateRange periodRange,
+	    LocationCohortDefinition locationCohortDefinition, Collection<Integer> patientIds) {
+		this(sf, periodRange, locationCohortDefinition, patientIds, IN_LIST_LIMIT);
+	}
+	
+	/**
+	 * @param sf the session factory
+	 * @param periodRange the period the encounters must fall in or null
+	 * @param locationCohortDefinition the location filter or null
+	 * @param patientIds the ids of the patients to match or null to match all patients
+	 * @param inListLimit the maximum number of patient ids bound in a single query, see
+	 *            {@link #partition()}
+	 */
+	public MostRecentEncounterIdByTypeFunction(SessionFactory sf, DateRange periodRange,
+	    LocationCohortDefinition locationCohortDefinition, Collection<Integer> patientIds, int inListLimit) {
 		this.sf = sf;
 		this.periodRange = periodRange;
+		this.locationCohortDefinition = locationCohortDefinition;
+		this.patientIds = patientIds;
+		this.inListLimit = inListLimit;
 	}
 	
 	@Override
 	public List apply(EncounterType encounterType) {
 		log.debug("Loading ids for the latest patient encounters of type: {}", encounterType);
-		Query query = sf.getCurrentSession().createSQLQuery(getQuery(periodRange));
-		query.setParameter("encType", encounterType);
+		List<Integer> locationIds = getLocationIds();
+		if ((locationIds != null && locationIds.isEmpty()) || (patientIds != null && patientIds.isEmpty())) {
+			return Collections.emptyList();
+		}
+		
+		List encounterIds = new ArrayList();
+		for (MostRecentEncounterIdByTypeFunction chunk : partition()) {
+			Query query = sf.getCurrentSession().createSQLQuery(chunk.getQuery(locationIds != null));
+			chunk.setParameters(query, encounterType, locationIds);
+			encounterIds.addAll(query.list());
+		}
+		
+		return encounterIds;
+	}
+	
+	/**
+	 * Counts the latest encounters i.e. the matching patients without loading the encounter ids
+	 *
+	 * @param encounterType the encounter type
+	 * @return the number of latest encounters
+	 */
+	public long count(EncounterType encounterType) {
+		List<Integer> locationIds = getLocationIds();
+		if ((locationIds != null && locationIds.isEmpty()) || (patientIds != null && patientIds.isEmpty())) {
+			return 0;
+		}
+		
+		long count = 0;
+		for (MostRecentEncounterIdByTypeFunction chunk : partition()) {
+			Query query = sf.getCurrentSession()
+			        .createSQLQuery("SELECT COUNT(*) FROM (" + chunk.getQuery(locationIds != null) + ") latest");
+			chunk.setParameters(query, encounterType, locationIds);
+			count += ((Number) query.uniqueResult()).longValue();
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Splits this function into functions matching at most {@link #inListLimit} patients each since
+	 * binding a huge list of ids produces giant statements that can exceed the driver packet limits.
+	 * The latest encounter is picked per patient so the results of the chunks can be concatenated.
+	 *
+	 * @return the functions to run one after the other, this function alone if the patient ids fit in
+	 *         a single query or all patients are matched
+	 */
+	public List<MostRecentEncounterIdByTypeFunction> partition() {
+		if (patientIds == null || patientIds.size() <= inListLimit) {
+			return Collections.singletonList(this);
+		}
+		
+		log.debug("Loading the latest encounters of {} patients in chunks of {}", patientIds.size(), inListLimit);
+		
+		List<Integer> ids = new ArrayList<>(patientIds);
+		List<MostRecentEncounterIdByTypeFunction> chunks = new ArrayList<>();
+		for (int i = 0; i < ids.size(); i += inListLimit) {
+			chunks.add(new MostRecentEncounterIdByTypeFunction(sf, periodRange, locationCohortDefinition,
+			        ids.subList(i, Math.min(i + inListLimit, ids.size())), inListLimit));
+		}
+		
+		return chunks;
+	}
+	
+	/**
+	 * Gets the ids of the locations the encounters must take place at
+	 *
+	 * @return the location ids or null if the encounters are not filtered by location
+	 */
+	public List<Integer> getLocationIds() {
+		if (locationCohortDefinition == null) {
+			return null;
+		}
+		
+		return PatientGridUtils.getLocationList(locationCohortDefinition).stream().map(Location::getLocationId)
+		        .collect(Collectors.toList());
+	}
+	
+	/**
+	 * Sets the parameters of a query built with {@link #getQuery(boolean)} or embedding it as a
+	 * subquery, the patient ids must fit in a single query see {@link #partition()}
+	 *
+	 * @param query the query
+	 * @param encounterType the encounter type
+	 * @param locationIds the location ids as returned by {@link #getLocationIds()}
+	 */
+	public void setParameters(Query query, EncounterType encounterType, List<Integer> locationIds) {
+		query.setParameter("encType", encounterType.getEncounterTypeId());
 		if (periodRange != null) {
 			query.setParameter("fromDate", periodRange.getFromInServerTz());
 			query.setParameter("toDate", periodRange.getToInServerTz());
 		}
-		return query.list();
+		if (locationIds != null) {
+			query.setParameterList("locationIds", locationIds);
+		}
+		if (patientIds != null) {
+			query.setParameterList("patientIds", patientIds);
+		}
 	}
 	
-	private String getQuery(DateRange periodRange) {
-		final String MOST_RECENT_DATES = "SELECT e.patient_id, max(e.encounter_datetime) AS maxDate FROM encounter e, "
-		        + "patient p WHERE e.patient_id = p.patient_id AND e.encounter_type = :encType AND e.voided = false AND"
-		        + " p.voided = false GROUP BY e.patient_id";
-		
-		final String MOST_RECENT_DATES_WITHIN_PERIODRANGE = "SELECT e.patient_id, max(e.encounter_datetime) AS maxDate FROM encounter e, "
-		        + "patient p WHERE e.patient_id = p.patient_id AND e.encounter_type = :encType AND e.voided = false AND"
-		        + " p.voided = false AND (e.encounter_datetime BETWEEN :fromDate AND :toDate) GROUP BY e.patient_id";
-		
+	/**
+	 * Builds the query with the period, location and patient restrictions, see
+	 * {@link LatestEncounterQueryBuilder}
+	 *
+	 * @param filterLocations specifies if the encounters are filtered by location
+	 * @return the query
+	 */
+	public String getQuery(boolean filterLocations) {
+		StringBuilder restrictions = new StringBuilder();
 		if (periodRange != null) {
-			return "SELECT e1.encounter_id FROM encounter e1 INNER JOIN (" + MOST_RECENT_DATES_WITHIN_PERIODRANGE
-			        + ") e2 ON e1.patient_id = e2.patient_id AND e1.encounter_datetime = e2.maxDate";
+			restrictions.append(" AND (e.encounter_datetime BETWEEN :fromDate AND :toDate)");
+		}
+		if (filterLocations) {
+			restrictions.append(" AND e.location_id IN (:locationIds)");
 		}
-		return "SELECT e1.encounter_id FROM encounter e1 INNER JOIN (" + MOST_RECENT_DATES
-		        + ") e2 ON e1.patient_id = e2.patient_id AND e1.encounter_datetime = e2.maxDate";
+		if (patientIds != null) {
+			restrictions.append(" AND e.patient_id IN (:patientIds)");
+		}
+		
+		return LatestEncounterQueryBuilder.forDatabase(sf).build(restrictions.toString());
 	}
 }
@@ -0,0 +1,50 @@
+package org.openmrs.module.patientgrid.function;
+
+import org.openmrs.EncounterType;
+import org.openmrs.module.patientgrid.EncounterRecord;
+import org.openmrs.module.patientgrid.EvaluationContextPersistantCache;
+import org.openmrs.module.patientgrid.IntObjectMap;
+import org.openmrs.module.patientgrid.PatientGridUtils;
+import org.openmrs.module.patientgrid.filter.definition.LocationCohortDefinition;
+import org.openmrs.module.patientgrid.period.DateRange;
+import org.openmrs.module.reporting.evaluation.EvaluationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.function.Function;
+
+/**
+ * Loads the most recent encounter of each patient as an {@link EncounterRecord} for the columns
+ * that don't need the encounter entity, the records are keyed by patient id in an
+ * {@link IntObjectMap}
+ */
+public class MostRecentEncounterRecordPerPatientByTypeFunction
+        implements Function<EncounterType, IntObjectMap<EncounterRecord>> {
+	
+	private static final Logger log = LoggerFactory.getLogger(MostRecentEncounterRecordPerPatientByTypeFunction.class);
+	
+	private final EvaluationContextPersistantCache context;
+	
+	private final DateRange periodRange;
+	
+	private final LocationCohortDefinition locationCohortDefinition;
+	
+	public MostRecentEncounterRecordPerPatientByTypeFunction(EvaluationContextPersistantCache context,
+	    DateRange periodRange, LocationCohortDefinition locationCohortDefinition) {
+		this.context = context;
+		this.periodRange = periodRange;
+		this.locationCohortDefinition = locationCohortDefinition;
+	}
+	
+	@Override
+	public IntObjectMap<EncounterRecord> apply(EncounterType encounterType) {
+		log.debug("Loading most recent patient encounter records of type: {}", encounterType);
+		try {
+			return PatientGridUtils.getLatestEncounterRecords(encounterType, context, locationCohortDefinition,
+			    periodRange);
+		}
+		catch (EvaluationException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
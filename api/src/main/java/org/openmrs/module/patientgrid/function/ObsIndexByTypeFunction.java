@@ -0,0 +1,47 @@
+package org.openmrs.module.patientgrid.function;
+
+import org.hibernate.SessionFactory;
+import org.openmrs.Concept;
+import org.openmrs.EncounterType;
+import org.openmrs.module.patientgrid.EncounterRecord;
+import org.openmrs.module.patientgrid.IntObjectMap;
+import org.openmrs.module.patientgrid.ObsIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Indexes in bulk the ids of the obs of the specified concepts recorded in the most recent encounter
+ * of each patient, the obs entities must be loaded by the evaluating thread with
+ * {@link ObsIndex#resolve(SessionFactory)} since the index can be loaded in another thread
+ */
+public class ObsIndexByTypeFunction implements Function<EncounterType, ObsIndex> {
+	
+	private static final Logger log = LoggerFactory.getLogger(ObsIndexByTypeFunction.class);
+	
+	private final SessionFactory sf;
+	
+	private final IntObjectMap<EncounterRecord> patientIdAndRecord;
+	
+	private final Collection<Concept> concepts;
+	
+	public ObsIndexByTypeFunction(SessionFactory sf, IntObjectMap<EncounterRecord> patientIdAndRecord,
+	    Collection<Concept> concepts) {
+		this.sf = sf;
+		this.patientIdAndRecord = patientIdAndRecord;
+		this.concepts = concepts;
+	}
+	
+	@Override
+	public ObsIndex apply(EncounterType encounterType) {
+		log.debug("Loading obs for the most recent patient encounters of type: {}", encounterType);
+		ObsIndex index = new ObsIndex(concepts);
+		index.loadIds(sf, patientIdAndRecord.values().stream().map(EncounterRecord::getEncounterId)
+		        .collect(Collectors.toList()));
+		
+		return index;
+	}
+}
@@ -1,35 +1,39 @@
 package org.openmrs.module.patientgrid.function;
 
-import org.openmrs.Encounter;
+import org.openmrs.Cohort;
 import org.openmrs.EncounterType;
+import org.openmrs.Patient;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.patientgrid.EncounterRecord;
+import org.openmrs.module.patientgrid.IntObjectMap;
+import org.openmrs.module.reporting.common.Age;
 import org.openmrs.module.reporting.common.Birthdate;
 import org.openmrs.module.reporting.data.converter.BirthdateToAgeConverter;
-import org.openmrs.module.reporting.data.encounter.definition.AgeAtEncounterDataDefinition;
-import org.openmrs.module.reporting.data.encounter.service.EncounterDataService;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
-import org.openmrs.module.reporting.evaluation.context.EncounterEvaluationContext;
-import org.openmrs.module.reporting.query.encounter.EncounterIdSet;
+import org.openmrs.module.reporting.evaluation.querybuilder.HqlQueryBuilder;
+import org.openmrs.module.reporting.evaluation.service.EvaluationService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 
-public class PatientAgePerEncounterIdByTypeFunction implements Function<EncounterType, Map> {
+public class PatientAgePerEncounterIdByTypeFunction implements Function<EncounterType, IntObjectMap<Age>> {
 	
 	private static final Logger log = LoggerFactory.getLogger(PatientAgePerEncounterIdByTypeFunction.class);
 	
 	private final EvaluationContext context;
 	
-	private final Map<Integer, Object> patientIdAndEnc;
+	private final IntObjectMap<EncounterRecord> patientIdAndEnc;
 	
-	public PatientAgePerEncounterIdByTypeFunction(EvaluationContext context, Map<Integer, Object> patientIdAndEnc) {
+	/**
+	 * @param context the evaluation context
+	 * @param patientIdAndEnc map of patient id -> {@link EncounterRecord}
+	 */
+	public PatientAgePerEncounterIdByTypeFunction(EvaluationContext context, IntObjectMap<EncounterRecord> patientIdAndEnc) {
 		this.context = context;
 		this.patientIdAndEnc = patientIdAndEnc;
 	}
@@ -39,23 +43,39 @@ public class PatientAgePerEncounterIdByTypeFunction implements Function<Encounte
 	 * @return encounterId -> Age
 	 */
 	@Override
-	public Map apply(EncounterType encounterType) {
+	public IntObjectMap<Age> apply(EncounterType encounterType) {
 		
 		log.debug("Loading patient ages at most recent encounters of type: {}", encounterType);
-		List<Integer> encIds = patientIdAndEnc.values().stream().map(e -> ((Encounter) e).getId())
-		        .collect(Collectors.toList());
+		IntObjectMap<Age> agePerEncounterId = new IntObjectMap<>(patientIdAndEnc.size());
+		if (patientIdAndEnc.isEmpty()) {
+			return agePerEncounterId;
+		}
+		
+		List<Integer> patientIds = new ArrayList<>(patientIdAndEnc.size());
+		patientIdAndEnc.forEach((patientId, record) -> patientIds.add(patientId));
+		EvaluationContext patientContext = context.shallowCopy();
+		patientContext.setBaseCohort(new Cohort(patientIds));
+		HqlQueryBuilder q = new HqlQueryBuilder();
+		q.select("p.patientId", "p.birthdate", "p.birthdateEstimated");
+		q.from(Patient.class, "p");
+		q.wherePatientIn("p.patientId", patientContext);
 		
 		BirthdateToAgeConverter converter = new BirthdateToAgeConverter();
-		Map<Integer, Object> agePerEncounterId = new HashMap<>();
-		patientIdAndEnc.values().stream().forEach(o -> {
-			Encounter e = (Encounter) o;
-			Date birthdate = e.getPatient().getBirthdate();
-			if (birthdate != null) {
-				converter.setEffectiveDate(e.getEncounterDatetime());
-				agePerEncounterId.put(e.getEncounterId(),
-				    converter.convert(new Birthdate(birthdate, e.getPatient().getBirthdateEstimated())));
+		try {
+			for (Object[] row : Context.getService(EvaluationService.class).evaluateToList(q, patientContext)) {
+				Date birthdate = (Date) row[1];
+				EncounterRecord e = patientIdAndEnc.get((Integer) row[0]);
+				if (birthdate != null && e != null) {
+					converter.setEffectiveDate(new Date(e.getEncounterDatetime()));
+					agePerEncounterId.put(e.getEncounterId(),
+					    converter.convert(new Birthdate(birthdate, Boolean.TRUE.equals(row[2]))));
+				}
 			}
-		});
+		}
+		catch (EvaluationException e) {
+			throw new RuntimeException(e);
+		}
+		
 		return agePerEncounterId;
 	}
 }
@@ -27,19 +27,34 @@ public class CustomXstreamSerializer extends SimpleXStreamSerializer {
 		if (parent != null && !parent.mkdirs() && !parent.isDirectory()) {
 			throw new IOException("Directory '" + parent + "' could not be created");
 		}
-		try (BufferedWriter writer = new BufferedWriter(
-		        new OutputStreamWriter(Files.newOutputStream(target.toPath()), ENCODING), DEFAULT_BUFFER_SIZE)) {
-			xstream.toXML(value, writer);
+		try (OutputStream out = Files.newOutputStream(target.toPath())) {
+			writeXML(value, out);
 		}
 	}
 	
 	public Object fromXML(File targetFile) throws IOException {
-		try (final InputStreamReader buffered = new InputStreamReader(
-		        new BufferedInputStream(Files.newInputStream(targetFile.toPath()), DEFAULT_BUFFER_SIZE), ENCODING)) {
-			return xstream.fromXML(buffered);
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(targetFile.toPath()), DEFAULT_BUFFER_SIZE)) {
+			return readXML(in);
 		}
 	}
 	
+	/**
+	 * Writes the XML of the specified value to the specified stream, the stream is flushed but not
+	 * closed.
+	 */
+	public void writeXML(Object value, OutputStream out) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, ENCODING), DEFAULT_BUFFER_SIZE);
+		xstream.toXML(value, writer);
+		writer.flush();
+	}
+	
+	/**
+	 * Reads a value from the XML in the specified stream, the stream is not closed.
+	 */
+	public Object readXML(InputStream in) throws IOException {
+		return xstream.fromXML(new InputStreamReader(in, ENCODING));
+	}
+	
 	private void init() {
 		//serialize only the field idToRowMap
 		xstream.omitField(SimpleDataSet.class, "definition");
@@ -109,4 +109,24 @@ public class EvaluationContextPersistantCacheTest {
 		//patient sorted by patient id:
 		Assert.assertEquals(2, members.get(2).getPatientId().intValue());
 	}
+	
+	@Test
+	public void limitAndSortCohortBasedOnEncounterDate_shouldKeepTheNewestPatientsRegardlessOfTheCohortOrder()
+	        throws ParseException {
+		//setup
+		EvaluationContextPersistantCache evaluationContextPersistantCache = createContext();
+		evaluationContextPersistantCache.setBaseCohort(new Cohort(Arrays.asList(1, 2, 3, 4, 5)));
+		
+		//action
+		evaluationContextPersistantCache.limitAndSortCohortBasedOnEncounterDate(4);
+		
+		//assert
+		ArrayList<CohortMembership> members = new ArrayList<>(
+		        evaluationContextPersistantCache.getBaseCohort().getMemberships());
+		Assert.assertEquals(4, members.size());
+		Assert.assertEquals(5, members.get(0).getPatientId().intValue());
+		Assert.assertEquals(4, members.get(1).getPatientId().intValue());
+		Assert.assertEquals(2, members.get(2).getPatientId().intValue());
+		Assert.assertEquals(3, members.get(3).getPatientId().intValue());
+	}
 }
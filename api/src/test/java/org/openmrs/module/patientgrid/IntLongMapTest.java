@@ -0,0 +1,65 @@
+package org.openmrs.module.patientgrid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class IntLongMapTest {
+	
+	@Test
+	public void put_shouldMapTheKeysToTheValues() {
+		IntLongMap map = new IntLongMap();
+		map.put(1, 10L);
+		map.put(2, 20L);
+		map.put(1, 11L);
+		
+		assertEquals(2, map.size());
+		assertEquals(11L, map.get(1, -1L));
+		assertEquals(20L, map.get(2, -1L));
+		assertEquals(-1L, map.get(3, -1L));
+		assertTrue(map.containsKey(2));
+		assertFalse(map.containsKey(3));
+	}
+	
+	@Test
+	public void putIfGreater_shouldKeepTheGreatestValue() {
+		IntLongMap map = new IntLongMap();
+		map.putIfGreater(5, 100L);
+		map.putIfGreater(5, 50L);
+		assertEquals(100L, map.get(5, -1L));
+		
+		map.putIfGreater(5, 150L);
+		
+		assertEquals(150L, map.get(5, -1L));
+		assertEquals(1, map.size());
+	}
+	
+	@Test
+	public void put_shouldKeepAllTheEntriesWhenTheMapGrows() {
+		IntLongMap map = new IntLongMap(4);
+		for (int patientId = 0; patientId < 100000; patientId++) {
+			map.put(patientId, patientId * 1000L);
+		}
+		map.put(-7, 7L);
+		
+		assertEquals(100001, map.size());
+		for (int patientId = 0; patientId < 100000; patientId++) {
+			assertEquals(patientId * 1000L, map.get(patientId, -1L));
+		}
+		assertEquals(7L, map.get(-7, -1L));
+	}
+	
+	@Test
+	public void clear_shouldRemoveAllTheEntries() {
+		IntLongMap map = new IntLongMap();
+		map.put(1, 10L);
+		
+		map.clear();
+		
+		assertTrue(map.isEmpty());
+		assertFalse(map.containsKey(1));
+	}
+	
+}
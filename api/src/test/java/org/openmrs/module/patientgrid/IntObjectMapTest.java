@@ -0,0 +1,64 @@
+package org.openmrs.module.patientgrid;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class IntObjectMapTest {
+	
+	@Test
+	public void put_shouldMapTheKeysToTheValues() {
+		IntObjectMap<String> map = new IntObjectMap<>();
+		map.put(1, "a");
+		map.put(2, "b");
+		map.put(1, "c");
+		
+		assertEquals(2, map.size());
+		assertEquals("c", map.get(1));
+		assertEquals("b", map.get(2));
+		assertNull(map.get(3));
+		assertTrue(map.containsKey(2));
+		assertFalse(map.containsKey(3));
+	}
+	
+	@Test
+	public void put_shouldKeepAllTheEntriesWhenTheMapGrows() {
+		IntObjectMap<Integer> map = new IntObjectMap<>(4);
+		for (int patientId = 0; patientId < 100000; patientId++) {
+			map.put(patientId, patientId * 10);
+		}
+		map.put(-7, 7);
+		
+		assertEquals(100001, map.size());
+		for (int patientId = 0; patientId < 100000; patientId++) {
+			assertEquals(patientId * 10, map.get(patientId).intValue());
+		}
+		assertEquals(7, map.get(-7).intValue());
+	}
+	
+	@Test
+	public void forEach_shouldPassAllTheEntries() {
+		IntObjectMap<String> map = new IntObjectMap<>();
+		map.put(1, "a");
+		map.put(20, "b");
+		map.put(300, "c");
+		Map<Integer, String> entries = new HashMap<>();
+		
+		map.forEach(entries::put);
+		
+		assertEquals(3, entries.size());
+		assertEquals("a", entries.get(1));
+		assertEquals("b", entries.get(20));
+		assertEquals("c", entries.get(300));
+		assertEquals(new HashSet<>(asList("a", "b", "c")), new HashSet<>(map.values()));
+	}
+	
+}
@@ -0,0 +1,86 @@
+package org.openmrs.module.patientgrid;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.hibernate.SessionFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.api.ConceptService;
+import org.openmrs.api.ObsService;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+
+public class ObsIndexTest extends BaseModuleContextSensitiveTest {
+	
+	@Autowired
+	private SessionFactory sf;
+	
+	@Autowired
+	private ConceptService conceptService;
+	
+	@Autowired
+	private ObsService obsService;
+	
+	private Concept weightConcept;
+	
+	private Concept civilStatusConcept;
+	
+	@Before
+	public void setup() {
+		executeDataSet("entityBasisMaps.xml");
+		executeDataSet("patientGrids.xml");
+		executeDataSet("patientGridsTestData.xml");
+		weightConcept = conceptService.getConcept(5089);
+		civilStatusConcept = conceptService.getConcept(4);
+	}
+	
+	@Test
+	public void get_shouldReturnTheObsOfTheLoadedEncountersForTheIndexedConcepts() {
+		ObsIndex index = new ObsIndex(asList(weightConcept, civilStatusConcept));
+		
+		index.load(sf, asList(2001, 2004, 2006));
+		
+		assertEquals(obsService.getObs(1002), index.get(2001, weightConcept));
+		assertEquals(obsService.getObs(1004), index.get(2004, weightConcept));
+		assertEquals(obsService.getObs(1008), index.get(2004, civilStatusConcept));
+		assertEquals(obsService.getObs(1009), index.get(2006, civilStatusConcept));
+		assertNull(index.get(2002, weightConcept));
+		assertNull(index.get(2001, civilStatusConcept));
+	}
+	
+	@Test
+	public void resolve_shouldLoadTheObsOfTheIndexedIds() {
+		ObsIndex index = new ObsIndex(asList(weightConcept));
+		index.loadIds(sf, asList(2001));
+		
+		assertNull(index.get(2001, weightConcept));
+		
+		index.resolve(sf);
+		
+		assertEquals(obsService.getObs(1002), index.get(2001, weightConcept));
+	}
+	
+	@Test
+	public void get_shouldReturnNullForAnEncounterWithMultipleObsForTheConcept() {
+		ObsIndex index = new ObsIndex(asList(weightConcept));
+		index.load(sf, asList(2004));
+		
+		index.add(obsService.getObs(1004));
+		
+		assertNull(index.get(2004, weightConcept));
+	}
+	
+	@Test
+	public void covers_shouldReturnTrueOnlyForTheIndexedConcepts() {
+		ObsIndex index = new ObsIndex(asList(weightConcept));
+		
+		assertTrue(index.covers(weightConcept));
+		assertFalse(index.covers(civilStatusConcept));
+	}
+	
+}
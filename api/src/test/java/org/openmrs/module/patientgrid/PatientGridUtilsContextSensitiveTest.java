@@ -6,15 +6,18 @@ import org.openmrs.Cohort;
 import org.openmrs.Encounter;
 import org.openmrs.EncounterType;
 import org.openmrs.api.EncounterService;
+import org.openmrs.api.context.Context;
 import org.openmrs.module.patientgrid.api.PatientGridService;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
+import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
@@ -46,6 +49,85 @@ public class PatientGridUtilsContextSensitiveTest extends BaseModuleContextSensi
 		assertEquals(2004, ((Encounter) idsAndEncs.get(patientId)).getEncounterId().intValue());
 	}
 	
+	@Test
+	public void getLatestEncounterRecords_shouldReturnTheMostRecentEncounterOfTheSpecifiedTypeForAPatient()
+	        throws Exception {
+		Cohort cohort = new Cohort();
+		final Integer patientId = 2;
+		cohort.addMember(patientId);
+		EvaluationContextPersistantCache context = new EvaluationContextPersistantCache();
+		context.setBaseCohort(cohort);
+		IntObjectMap<EncounterRecord> records = PatientGridUtils.getLatestEncounterRecords(new EncounterType(101),
+		    context, null, null);
+		assertEquals(1, records.size());
+		Encounter encounter = es.getEncounter(2004);
+		EncounterRecord record = records.get(patientId);
+		assertEquals(2004, record.getEncounterId());
+		assertEquals(patientId.intValue(), record.getPatientId());
+		assertEquals(encounter.getEncounterDatetime().getTime(), record.getEncounterDatetime());
+		assertEquals(encounter.getLocation().getLocationId(), record.getLocationId());
+	}
+	
+	@Test
+	public void getLatestEncounterRecords_shouldReturnTheMostRecentEncounterOfEachPatient() throws Exception {
+		EvaluationContextPersistantCache context = new EvaluationContextPersistantCache();
+		context.setBaseCohort(new Cohort(asList(2, 6, 7, 8)));
+		
+		IntObjectMap<EncounterRecord> records = PatientGridUtils.getLatestEncounterRecords(new EncounterType(101),
+		    context, null, null);
+		
+		assertEquals(4, records.size());
+		assertEquals(2004, records.get(2).getEncounterId());
+		assertEquals(2006, records.get(6).getEncounterId());
+		assertEquals(2007, records.get(7).getEncounterId());
+		assertEquals(2008, records.get(8).getEncounterId());
+	}
+	
+	@Test
+	public void getLatestEncounterRecords_shouldReturnTheEncounterWithTheGreatestIdForEncountersWithTheSameDatetime()
+	        throws Exception {
+		Encounter latest = es.getEncounter(2004);
+		Encounter encounter = new Encounter();
+		encounter.setPatient(latest.getPatient());
+		encounter.setEncounterType(latest.getEncounterType());
+		encounter.setEncounterDatetime(latest.getEncounterDatetime());
+		encounter.setLocation(latest.getLocation());
+		es.saveEncounter(encounter);
+		Context.flushSession();
+		EvaluationContextPersistantCache context = new EvaluationContextPersistantCache();
+		context.setBaseCohort(new Cohort(asList(2)));
+		
+		IntObjectMap<EncounterRecord> records = PatientGridUtils.getLatestEncounterRecords(new EncounterType(101),
+		    context, null, null);
+		
+		assertEquals(encounter.getEncounterId().intValue(), records.get(2).getEncounterId());
+	}
+	
+	@Test
+	public void getLatestEncounterRecords_shouldReturnAnEmptyMapIfThePatientHasNoMatchingEncounters() throws Exception {
+		Cohort cohort = new Cohort();
+		cohort.addMember(8);
+		EvaluationContextPersistantCache context = new EvaluationContextPersistantCache();
+		context.setBaseCohort(cohort);
+		assertTrue(PatientGridUtils.getLatestEncounterRecords(new EncounterType(102), context, null, null).isEmpty());
+	}
+	
+	@Test
+	public void loadLatestEncounterDates_shouldSaveTheDateOfTheMostRecentEncounterOfAnyOfTheTypes() throws Exception {
+		EvaluationContextPersistantCache context = new EvaluationContextPersistantCache();
+		context.setBaseCohort(new Cohort(asList(2, 6, 7, 8)));
+		
+		PatientGridUtils.loadLatestEncounterDates(asList(new EncounterType(101), new EncounterType(102)), context, null,
+		    null);
+		
+		assertEquals(es.getEncounter(2002).getEncounterDatetime().getTime(), context.getLatestEncounterDate(2).getTime());
+		assertEquals(es.getEncounter(2009).getEncounterDatetime().getTime(), context.getLatestEncounterDate(6).getTime());
+		assertEquals(es.getEncounter(2010).getEncounterDatetime().getTime(), context.getLatestEncounterDate(7).getTime());
+		assertEquals(es.getEncounter(2008).getEncounterDatetime().getTime(), context.getLatestEncounterDate(8).getTime());
+		context.limitAndSortCohortBasedOnEncounterDate(2);
+		assertEquals(new HashSet<>(asList(6, 7)), context.getBaseCohort().getMemberIds());
+	}
+	
 	@Test
 	public void getEncounters_shouldReturnAllEncountersOfTheSpecifiedTypeForAPatient() throws Exception {
 		Cohort cohort = new Cohort();
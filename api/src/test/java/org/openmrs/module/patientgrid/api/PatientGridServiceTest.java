@@ -19,6 +19,9 @@ import org.openmrs.module.patientgrid.ExtendedDataSet;
 import org.openmrs.module.patientgrid.PatientGrid;
 import org.openmrs.module.patientgrid.PatientGridColumn;
 import org.openmrs.module.patientgrid.PatientGridColumn.ColumnDatatype;
+import org.openmrs.module.patientgrid.api.impl.PatientGridServiceImpl;
+import org.openmrs.module.patientgrid.cache.EncounterSnapshotCache;
+import org.openmrs.module.patientgrid.cache.SingleFlight;
 import org.openmrs.module.patientgrid.period.DateRange;
 import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
 import org.openmrs.module.reporting.cohort.definition.service.CohortDefinitionService;
@@ -29,14 +32,23 @@ import org.openmrs.module.reporting.dataset.definition.DataSetDefinition;
 import org.openmrs.module.reporting.dataset.definition.service.DataSetDefinitionService;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.powermock.reflect.Whitebox;
+import org.springframework.aop.framework.Advised;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.cache.Cache;
 import org.springframework.cache.CacheManager;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 import static org.mockito.Matchers.any;
@@ -84,6 +96,7 @@ public class PatientGridServiceTest extends BaseModuleContextSensitiveTest {
 		executeDataSet("patientGrids.xml");
 		executeDataSet("patientGridsTestData.xml");
 		getCache().clear();
+		EncounterSnapshotCache.getInstance().clear();
 		//We have test that replaces this service with a mock, we need to always put it back
 		serviceContext.setService(DataSetDefinitionService.class, dsds);
 		when(mockAdminService.getGlobalProperty(GP_AGE_RANGES)).thenReturn("0-17:<18yrs,18+");
@@ -93,6 +106,39 @@ public class PatientGridServiceTest extends BaseModuleContextSensitiveTest {
 		return cacheManager.getCache(CACHE_NAME_GRID_REPORTS);
 	}
 	
+	private SingleFlight<String, ExtendedDataSet> getSingleFlight(String name) throws Exception {
+		Object target = service;
+		while (target instanceof Advised) {
+			target = ((Advised) target).getTargetSource().getTarget();
+		}
+		
+		return Whitebox.getInternalState((PatientGridServiceImpl) target, name);
+	}
+	
+	/**
+	 * Holds a computation for the specified key in the specified single flight from another thread
+	 * until the returned latch is released
+	 */
+	private CountDownLatch holdInFlight(ExecutorService executor, SingleFlight<String, ExtendedDataSet> singleFlight,
+	        String key, List<Future<ExtendedDataSet>> futures) throws Exception {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		futures.add(executor.submit(() -> singleFlight.execute(key, () -> {
+			started.countDown();
+			try {
+				release.await(5, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			
+			return null;
+		})));
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		
+		return release;
+	}
+	
 	@Test
 	public void getPatientGrid_shouldReturnThePatientGridMatchingTheSpecifiedId() {
 		assertEquals(TEST_UUID, service.getPatientGrid(1).getUuid());
@@ -395,6 +441,134 @@ public class PatientGridServiceTest extends BaseModuleContextSensitiveTest {
 		    ((ExtendedDataSet) getCache().get(cacheKey).get()).getSimpleDataSet().getRows().size());
 	}
 	
+	@Test
+	public void refreshCachedReport_shouldEvaluateOnlyTheRowsOfTheSpecifiedPatients() {
+		PatientGrid patientGrid = service.getPatientGrid(1);
+		final String cacheKey = patientGrid.getUuid() + CACHE_KEY_SEPARATOR + Context.getAuthenticatedUser().getUuid();
+		ExtendedDataSet evaluated = service.evaluate(patientGrid);
+		SimpleDataSet outdatedDataSet = new SimpleDataSet(null, null);
+		for (DataSetRow row : evaluated.getSimpleDataSet().getRows()) {
+			DataSetRow outdatedRow = new DataSetRow();
+			for (Map.Entry<DataSetColumn, Object> entry : row.getColumnValues().entrySet()) {
+				outdatedRow.addColumnValue(entry.getKey(),
+				    "name".equals(entry.getKey().getName()) ? "Outdated" : entry.getValue());
+			}
+			outdatedDataSet.addRow(outdatedRow);
+		}
+		ExtendedDataSet outdated = new ExtendedDataSet(outdatedDataSet, null);
+		outdated.setUsedDateRange(evaluated.getUsedDateRange());
+		outdated.setPeriodOperand(evaluated.getPeriodOperand());
+		outdated.setRowsCountLimit(evaluated.getRowsCountLimit());
+		outdated.setInitialRowsCount(evaluated.getInitialRowsCount());
+		getCache().put(cacheKey, outdated);
+		
+		assertTrue(service.refreshCachedReport(patientGrid, Collections.singleton(2)));
+		
+		List<DataSetRow> rows = ((ExtendedDataSet) getCache().get(cacheKey).get()).getSimpleDataSet().getRows();
+		assertEquals(3, rows.size());
+		Patient patient = ps.getPatient(2);
+		assertEquals(patient.getUuid(), rows.get(0).getColumnValue(COLUMN_UUID));
+		assertEquals(patient.getPersonName().getFullName(), rows.get(0).getColumnValue("name"));
+		assertEquals(ps.getPatient(7).getUuid(), rows.get(1).getColumnValue(COLUMN_UUID));
+		assertEquals("Outdated", rows.get(1).getColumnValue("name"));
+	}
+	
+	@Test
+	public void refreshCachedReport_shouldAddTheRowsOfTheChangedPatientsMatchingTheFilters() {
+		PatientGrid patientGrid = service.getPatientGrid(1);
+		final String cacheKey = patientGrid.getUuid() + CACHE_KEY_SEPARATOR + Context.getAuthenticatedUser().getUuid();
+		ExtendedDataSet evaluated = service.evaluate(patientGrid);
+		List<DataSetRow> evaluatedRows = evaluated.getSimpleDataSet().getRows();
+		SimpleDataSet outdatedDataSet = new SimpleDataSet(null, null);
+		for (DataSetRow row : evaluatedRows) {
+			if (!ps.getPatient(7).getUuid().equals(row.getColumnValue(COLUMN_UUID))) {
+				outdatedDataSet.addRow(row);
+			}
+		}
+		ExtendedDataSet outdated = new ExtendedDataSet(outdatedDataSet, null);
+		outdated.setUsedDateRange(evaluated.getUsedDateRange());
+		outdated.setPeriodOperand(evaluated.getPeriodOperand());
+		outdated.setRowsCountLimit(evaluated.getRowsCountLimit());
+		outdated.setInitialRowsCount(evaluated.getInitialRowsCount() - 1);
+		getCache().put(cacheKey, outdated);
+		
+		assertTrue(service.refreshCachedReport(patientGrid, Collections.singleton(7)));
+		
+		ExtendedDataSet refreshed = (ExtendedDataSet) getCache().get(cacheKey).get();
+		List<DataSetRow> rows = refreshed.getSimpleDataSet().getRows();
+		assertEquals(evaluatedRows.size(), rows.size());
+		for (int i = 0; i < rows.size(); i++) {
+			assertEquals(evaluatedRows.get(i).getColumnValue(COLUMN_UUID), rows.get(i).getColumnValue(COLUMN_UUID));
+		}
+		assertEquals(evaluated.getInitialRowsCount(), refreshed.getInitialRowsCount());
+	}
+	
+	@Test
+	public void refreshCachedReport_shouldReturnFalseIfTheRowsOfATruncatedReportCantBeDecided() {
+		PatientGrid patientGrid = service.getPatientGrid(1);
+		final String cacheKey = patientGrid.getUuid() + CACHE_KEY_SEPARATOR + Context.getAuthenticatedUser().getUuid();
+		ExtendedDataSet evaluated = service.evaluate(patientGrid);
+		SimpleDataSet truncatedDataSet = new SimpleDataSet(null, null);
+		truncatedDataSet.addRow(evaluated.getSimpleDataSet().getRows().get(0));
+		ExtendedDataSet truncated = new ExtendedDataSet(truncatedDataSet, null);
+		truncated.setUsedDateRange(evaluated.getUsedDateRange());
+		truncated.setPeriodOperand(evaluated.getPeriodOperand());
+		truncated.setRowsCountLimit(1);
+		truncated.setInitialRowsCount(evaluated.getInitialRowsCount());
+		truncated.setTruncated(true);
+		getCache().put(cacheKey, truncated);
+		Integer patientId = ps.getPatientByUuid((String) truncatedDataSet.getRows().get(0).getColumnValue(COLUMN_UUID))
+		        .getPatientId();
+		
+		//The only row is changed, the patients beyond the limit could enter the report
+		assertFalse(service.refreshCachedReport(patientGrid, Collections.singleton(patientId)));
+	}
+	
+	@Test
+	public void evaluate_shouldNotJoinAConcurrentRefreshOfTheCachedReport() throws Exception {
+		PatientGrid patientGrid = service.getPatientGrid(1);
+		final String cacheKey = patientGrid.getUuid() + CACHE_KEY_SEPARATOR + Context.getAuthenticatedUser().getUuid();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		List<Future<ExtendedDataSet>> refreshes = new ArrayList<>();
+		CountDownLatch release = holdInFlight(executor, getSingleFlight("refreshes"), cacheKey, refreshes);
+		try {
+			ExtendedDataSet dataSet = service.evaluate(patientGrid);
+			
+			assertNotNull(dataSet);
+			assertEquals(3, dataSet.getSimpleDataSet().getRows().size());
+			assertEquals(3, ((ExtendedDataSet) getCache().get(cacheKey).get()).getSimpleDataSet().getRows().size());
+		}
+		finally {
+			release.countDown();
+			executor.shutdown();
+		}
+		assertNull(refreshes.get(0).get(5, TimeUnit.SECONDS));
+	}
+	
+	@Test
+	public void refreshCachedReport_shouldReturnFalseIfAnEvaluationOfTheReportIsInFlight() throws Exception {
+		PatientGrid patientGrid = service.getPatientGrid(1);
+		final String cacheKey = patientGrid.getUuid() + CACHE_KEY_SEPARATOR + Context.getAuthenticatedUser().getUuid();
+		service.evaluate(patientGrid);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		List<Future<ExtendedDataSet>> evaluations = new ArrayList<>();
+		CountDownLatch release = holdInFlight(executor, getSingleFlight("evaluations"), cacheKey, evaluations);
+		try {
+			//The in-flight evaluation could have started before the changes
+			assertFalse(service.refreshCachedReport(patientGrid, Collections.singleton(2)));
+		}
+		finally {
+			release.countDown();
+			executor.shutdown();
+		}
+		evaluations.get(0).get(5, TimeUnit.SECONDS);
+	}
+	
+	@Test
+	public void refreshCachedReport_shouldReturnFalseIfNoReportIsCached() {
+		assertFalse(service.refreshCachedReport(service.getPatientGrid(1), Collections.singleton(2)));
+	}
+	
 	@Test
 	public void evaluate_shouldNotCacheEmptyReportData() {
 		PatientGrid patientGrid = service.getPatientGrid(2);
@@ -0,0 +1,108 @@
+package org.openmrs.module.patientgrid.api.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.openmrs.module.patientgrid.PatientGridConstants.CACHE_MANAGER_NAME;
+import static org.openmrs.module.patientgrid.PatientGridConstants.CACHE_NAME_GRID_REPORTS;
+import static org.openmrs.module.patientgrid.PatientGridConstants.COLUMN_UUID;
+import static org.openmrs.module.patientgrid.PatientGridConstants.GP_SHARE_REPORTS;
+import static org.openmrs.module.patientgrid.PatientGridConstants.PRIV_MANAGE_PATIENT_GRIDS;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.patientgrid.ExtendedDataSet;
+import org.openmrs.module.patientgrid.PatientGrid;
+import org.openmrs.module.patientgrid.PatientGridActivator;
+import org.openmrs.module.patientgrid.PatientGridUtils;
+import org.openmrs.module.patientgrid.api.PatientGridService;
+import org.openmrs.module.patientgrid.cache.EncounterSnapshotCache;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.openmrs.util.PrivilegeConstants;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+
+public class SharedReportEvaluatorContextSensitiveTest extends BaseModuleContextSensitiveTest {
+	
+	private static final String[] VIEWER_PRIVILEGES = { PRIV_MANAGE_PATIENT_GRIDS, PrivilegeConstants.GET_PATIENTS,
+	        PrivilegeConstants.GET_PERSONS, PrivilegeConstants.GET_ENCOUNTERS, PrivilegeConstants.GET_ENCOUNTER_TYPES,
+	        PrivilegeConstants.GET_OBS, PrivilegeConstants.GET_CONCEPTS, PrivilegeConstants.GET_LOCATIONS,
+	        PrivilegeConstants.GET_GLOBAL_PROPERTIES };
+	
+	@Autowired
+	private PatientGridService service;
+	
+	@Autowired
+	@Qualifier(CACHE_MANAGER_NAME)
+	private CacheManager cacheManager;
+	
+	@Before
+	public void setup() {
+		executeDataSet("entityBasisMaps.xml");
+		executeDataSet("patientGrids.xml");
+		executeDataSet("patientGridsTestData.xml");
+		executeDataSet("sharedViewUser.xml");
+		getCache().clear();
+		EncounterSnapshotCache.getInstance().clear();
+	}
+	
+	@After
+	public void tearDown() {
+		new PatientGridActivator().setDaemonToken(null);
+		for (String privilege : VIEWER_PRIVILEGES) {
+			Context.removeProxyPrivilege(privilege);
+		}
+	}
+	
+	private Cache getCache() {
+		return cacheManager.getCache(CACHE_NAME_GRID_REPORTS);
+	}
+	
+	private List<Object> getPatientUuids(ExtendedDataSet dataSet) {
+		return dataSet.getSimpleDataSet().getRows().stream().map(row -> row.getColumnValue(COLUMN_UUID))
+		        .collect(Collectors.toList());
+	}
+	
+	@Test
+	public void evaluate_shouldReturnTheSameRowsAsAnUnsharedEvaluationForAUserNotFilteredByDatafilter()
+	        throws Exception {
+		PatientGrid patientGrid = service.getPatientGrid(1);
+		Context.getAdministrationService().setGlobalProperty(GP_SHARE_REPORTS, "true");
+		new PatientGridActivator().setDaemonToken(new DaemonToken("patientgrid"));
+		//The datafilter module is not running in tests so like a user with its bypass privilege the user sees all
+		//the patients even though they are only mapped to a location some of the patients are not mapped to
+		Context.becomeUser("5000-1");
+		for (String privilege : VIEWER_PRIVILEGES) {
+			Context.addProxyPrivilege(privilege);
+		}
+		assertFalse(Context.getAuthenticatedUser().isSuperUser());
+		ExtendedDataSet unshared = service.evaluate(patientGrid);
+		assertFalse(unshared.isSharedView());
+		getCache().clear();
+		//The daemon thread can't see the test data so the shared report is evaluated in the test transaction
+		final String clientTimezone = PatientGridUtils.getCurrentUserTimeZone();
+		final int limit = PatientGridServiceImpl.getRowsCountLimit();
+		ExtendedDataSet sharedReport = PatientGridServiceImpl.createSharedExtendedDataSet(patientGrid, clientTimezone,
+		    PatientGridUtils.createPatientDataSetDefinition(patientGrid, true, clientTimezone), limit,
+		    SharedReportEvaluator.getMaxRows());
+		getCache().put(SharedReportEvaluator.getCacheKey(patientGrid, clientTimezone, Context.getLocale()), sharedReport);
+		patientGrid.setShared(true);
+		
+		ExtendedDataSet view = service.evaluate(patientGrid);
+		
+		assertTrue(view.isSharedView());
+		assertEquals(3, unshared.getSimpleDataSet().getRows().size());
+		assertEquals(getPatientUuids(unshared), getPatientUuids(view));
+		assertEquals(unshared.getInitialRowsCount(), view.getInitialRowsCount());
+		assertEquals(unshared.isTruncated(), view.isTruncated());
+	}
+	
+}
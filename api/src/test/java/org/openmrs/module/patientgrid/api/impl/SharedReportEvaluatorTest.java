@@ -0,0 +1,132 @@
+package org.openmrs.module.patientgrid.api.impl;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.patientgrid.ExtendedDataSet;
+import org.openmrs.module.patientgrid.PatientGrid;
+import org.openmrs.module.reporting.dataset.DataSetColumn;
+import org.openmrs.module.reporting.dataset.DataSetRow;
+import org.openmrs.module.reporting.dataset.SimpleDataSet;
+
+public class SharedReportEvaluatorTest {
+	
+	private static final DataSetColumn UUID_COLUMN = new DataSetColumn("uuid", "uuid", String.class);
+	
+	private ExtendedDataSet sharedReport;
+	
+	@Before
+	public void setup() {
+		//Rows are sorted by a column while the patient locations follow the cohort order
+		SimpleDataSet simpleDataSet = new SimpleDataSet(null, null);
+		for (String patientUuid : asList("patient-4", "patient-3", "patient-2", "patient-1")) {
+			DataSetRow row = new DataSetRow();
+			row.addColumnValue(UUID_COLUMN, patientUuid);
+			simpleDataSet.addRow(row);
+		}
+		
+		Map<String, List<String>> patientLocations = new LinkedHashMap<>();
+		patientLocations.put("patient-1", asList("1"));
+		patientLocations.put("patient-2", asList("2"));
+		patientLocations.put("patient-3", asList("1", "2"));
+		patientLocations.put("patient-4", Collections.emptyList());
+		sharedReport = new ExtendedDataSet();
+		sharedReport.setSimpleDataSet(simpleDataSet);
+		sharedReport.setPatientLocations(patientLocations);
+		sharedReport.setUsedDateRange("2022-01-01,2022-12-31");
+		sharedReport.setPeriodOperand("LAST_YEAR");
+	}
+	
+	private List<Object> getPatientUuids(ExtendedDataSet dataSet) {
+		return dataSet.getSimpleDataSet().getRows().stream().map(row -> row.getColumnValue("uuid"))
+		        .collect(Collectors.toList());
+	}
+	
+	@Test
+	public void project_shouldKeepOnlyThePatientsVisibleToTheUser() {
+		ExtendedDataSet view = SharedReportEvaluator.project(sharedReport,
+		    new HashSet<>(asList("patient-1", "patient-3")), 0);
+		
+		assertEquals(asList("patient-3", "patient-1"), getPatientUuids(view));
+		assertEquals(2, view.getInitialRowsCount());
+		assertFalse(view.isTruncated());
+		assertTrue(view.isSharedView());
+		assertEquals("2022-01-01,2022-12-31", view.getUsedDateRange());
+		assertEquals("LAST_YEAR", view.getPeriodOperand());
+	}
+	
+	@Test
+	public void project_shouldKeepAllThePatientsIfTheUserCanSeeAllOfThem() {
+		ExtendedDataSet view = SharedReportEvaluator.project(sharedReport, sharedReport.getPatientLocations().keySet(), 0);
+		
+		assertEquals(asList("patient-4", "patient-3", "patient-2", "patient-1"), getPatientUuids(view));
+		assertEquals(4, view.getInitialRowsCount());
+	}
+	
+	@Test
+	public void project_shouldApplyTheLimitInTheCohortOrder() {
+		ExtendedDataSet view = SharedReportEvaluator.project(sharedReport,
+		    new HashSet<>(asList("patient-1", "patient-2", "patient-3")), 2);
+		
+		assertEquals(asList("patient-2", "patient-1"), getPatientUuids(view));
+		assertEquals(3, view.getInitialRowsCount());
+		assertEquals(2, view.getRowsCountLimit());
+		assertTrue(view.isTruncated());
+	}
+	
+	@Test
+	public void project_shouldReturnNoRowsForAUserWhoCanSeeNoPatient() {
+		ExtendedDataSet view = SharedReportEvaluator.project(sharedReport, Collections.emptySet(), 0);
+		
+		assertTrue(view.getSimpleDataSet().getRows().isEmpty());
+		assertEquals(0, view.getInitialRowsCount());
+	}
+	
+	@Test
+	public void project_shouldReturnNullIfTheRowOfAVisiblePatientWasNotEvaluated() {
+		sharedReport.getSimpleDataSet().getRows().remove(0);
+		
+		assertNull(SharedReportEvaluator.project(sharedReport, new HashSet<>(asList("patient-3", "patient-4")), 0));
+		assertEquals(asList("patient-3"),
+		    getPatientUuids(SharedReportEvaluator.project(sharedReport, new HashSet<>(asList("patient-3")), 0)));
+	}
+	
+	@Test
+	public void getVisiblePatients_shouldReturnTheFirstPatientsOfEachLocationAndOverall() {
+		Map<String, List<String>> patientLocations = sharedReport.getPatientLocations();
+		
+		assertEquals(new HashSet<>(asList("patient-1", "patient-2")),
+		    SharedReportEvaluator.getVisiblePatients(patientLocations, 1));
+		assertEquals(new HashSet<>(asList("patient-1", "patient-2", "patient-3")),
+		    SharedReportEvaluator.getVisiblePatients(patientLocations, 2));
+		assertEquals(patientLocations.keySet(), SharedReportEvaluator.getVisiblePatients(patientLocations, 0));
+	}
+	
+	@Test
+	public void getCacheKey_shouldStartWithTheGridUuidAndDependOnTheTimezoneAndLocale() {
+		PatientGrid patientGrid = new PatientGrid();
+		patientGrid.setUuid("grid-uuid");
+		
+		String key = SharedReportEvaluator.getCacheKey(patientGrid, "UTC", Locale.ENGLISH);
+		
+		assertTrue(key.startsWith("grid-uuid_shared-"));
+		assertEquals(key, SharedReportEvaluator.getCacheKey(patientGrid, "UTC", Locale.ENGLISH));
+		assertNotEquals(key, SharedReportEvaluator.getCacheKey(patientGrid, "Europe/Paris", Locale.ENGLISH));
+		assertNotEquals(key, SharedReportEvaluator.getCacheKey(patientGrid, "UTC", Locale.FRENCH));
+	}
+	
+}
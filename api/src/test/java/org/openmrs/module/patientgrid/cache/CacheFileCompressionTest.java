@@ -0,0 +1,80 @@
+package org.openmrs.module.patientgrid.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CacheFileCompressionTest {
+	
+	private static final byte[] CONTENT = StringUtils.repeat("<org.openmrs.module.patientgrid.ExtendedDataSet/>", 100)
+	        .getBytes(StandardCharsets.UTF_8);
+	
+	private File file;
+	
+	@Before
+	public void setup() throws Exception {
+		file = File.createTempFile("test", ".txt");
+	}
+	
+	@After
+	public void clean() {
+		file.delete();
+	}
+	
+	private void write(CacheFileCompression compression) throws Exception {
+		try (OutputStream out = compression.newOutputStream(file)) {
+			out.write(CONTENT);
+		}
+	}
+	
+	private byte[] read() throws Exception {
+		try (InputStream in = CacheFileCompression.newInputStream(file)) {
+			return IOUtils.toByteArray(in);
+		}
+	}
+	
+	@Test
+	public void newInputStream_shouldReadTheContentsWrittenWithEachCompression() throws Exception {
+		for (CacheFileCompression compression : CacheFileCompression.values()) {
+			write(compression);
+			
+			assertEquals(compression, CacheFileCompression.of(file));
+			assertArrayEquals(CONTENT, read());
+		}
+	}
+	
+	@Test
+	public void newOutputStream_shouldCompressTheContents() throws Exception {
+		write(CacheFileCompression.GZIP);
+		assertTrue(file.length() < CONTENT.length / 10);
+		
+		write(CacheFileCompression.DEFLATE);
+		assertTrue(file.length() < CONTENT.length / 10);
+	}
+	
+	@Test
+	public void of_shouldReturnNoneForAFileWithoutACompressionHeader() throws Exception {
+		Files.write(file.toPath(), CONTENT);
+		
+		assertEquals(CacheFileCompression.NONE, CacheFileCompression.of(file));
+		assertArrayEquals(CONTENT, read());
+	}
+	
+	@Test
+	public void of_shouldReturnNoneForAnEmptyFile() throws Exception {
+		assertEquals(CacheFileCompression.NONE, CacheFileCompression.of(file));
+	}
+	
+}
@@ -35,7 +35,9 @@ public class CleanCacheTaskTest {
 		new CleanCacheTask().execute();
 		
 		//assert
+		Mockito.verify(mockCache).flushAccessTimes();
 		Mockito.verify(mockCache).deleteCacheFileOlderThan(32);
+		Mockito.verify(mockCache).deleteLeastRecentlyUsedFiles();
 		
 	}
 	
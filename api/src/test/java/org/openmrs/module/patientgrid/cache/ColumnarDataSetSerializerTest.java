@@ -0,0 +1,224 @@
+package org.openmrs.module.patientgrid.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.patientgrid.ExtendedDataSet;
+import org.openmrs.module.patientgrid.xstream.CustomXstreamSerializer;
+import org.openmrs.module.reporting.dataset.DataSetColumn;
+import org.openmrs.module.reporting.dataset.DataSetRow;
+import org.openmrs.module.reporting.dataset.SimpleDataSet;
+
+public class ColumnarDataSetSerializerTest {
+	
+	private static final DataSetColumn UUID_COLUMN = new DataSetColumn("uuid", "uuid", String.class);
+	
+	private static final DataSetColumn AGE_COLUMN = new DataSetColumn("age", "age", Integer.class);
+	
+	private static final DataSetColumn OBS_COLUMN = new DataSetColumn("weight", "Weight", Map.class);
+	
+	private static final DataSetColumn DATE_COLUMN = new DataSetColumn("date", "date", Date.class);
+	
+	private ColumnarDataSetSerializer serializer;
+	
+	private File file;
+	
+	@Before
+	public void setup() throws Exception {
+		serializer = new ColumnarDataSetSerializer(new CustomXstreamSerializer());
+		file = File.createTempFile("test", ".bin");
+	}
+	
+	@After
+	public void clean() {
+		file.delete();
+	}
+	
+	private Map<String, Object> createObs(String uuid, Object value) {
+		Map<String, Object> encounter = new HashMap<>();
+		encounter.put("uuid", "encounter-uuid");
+		encounter.put("encounterType", "encounter-type-uuid");
+		encounter.put("form", "form-uuid");
+		Map<String, Object> obs = new HashMap<>();
+		obs.put("uuid", uuid);
+		obs.put("concept", "concept-uuid");
+		obs.put("value", value);
+		obs.put("encounter", encounter);
+		obs.put("formFieldNamespace", null);
+		return obs;
+	}
+	
+	private ExtendedDataSet createDataSet() {
+		SimpleDataSet simpleDataSet = new SimpleDataSet(null, null);
+		DataSetRow row1 = new DataSetRow();
+		row1.addColumnValue(UUID_COLUMN, "patient-1");
+		row1.addColumnValue(AGE_COLUMN, 30);
+		row1.addColumnValue(OBS_COLUMN, createObs("obs-1", 72.5));
+		row1.addColumnValue(DATE_COLUMN, new Date(1648771200000L));
+		simpleDataSet.addRow(row1);
+		DataSetRow row2 = new DataSetRow();
+		row2.addColumnValue(UUID_COLUMN, "patient-2");
+		row2.addColumnValue(AGE_COLUMN, null);
+		row2.addColumnValue(OBS_COLUMN, createObs("obs-2", Arrays.asList("a", true, 5L)));
+		simpleDataSet.addRow(row2);
+		ExtendedDataSet dataSet = new ExtendedDataSet(simpleDataSet, null);
+		dataSet.setTruncated(true);
+		dataSet.setRowsCountLimit(2);
+		dataSet.setInitialRowsCount(5);
+		dataSet.setUsedDateRange("1648771200000-1672531199999");
+		dataSet.setPeriodOperand("{\"code\":\"LASTTHIRTYDAYS\"}");
+		return dataSet;
+	}
+	
+	@Test
+	public void read_shouldRestoreTheWrittenDataSet() throws Exception {
+		ExtendedDataSet dataSet = createDataSet();
+		
+		serializer.write(dataSet, file);
+		ExtendedDataSet restored = serializer.read(file);
+		
+		assertEquals(ExtendedDataSet.LAST_XSTREAM_VERSION, restored.getXstreamVersion());
+		assertTrue(restored.isTruncated());
+		assertEquals(2, restored.getRowsCountLimit());
+		assertEquals(5, restored.getInitialRowsCount());
+		assertEquals(dataSet.getUsedDateRange(), restored.getUsedDateRange());
+		assertEquals(dataSet.getPeriodOperand(), restored.getPeriodOperand());
+		List<DataSetRow> rows = restored.getSimpleDataSet().getRows();
+		assertEquals(2, rows.size());
+		assertEquals(dataSet.getSimpleDataSet().getRows().get(0).getColumnValues(), rows.get(0).getColumnValues());
+		assertEquals(dataSet.getSimpleDataSet().getRows().get(1).getColumnValues(), rows.get(1).getColumnValues());
+		assertEquals(Integer.class, rows.get(0).getColumnValues().keySet().stream()
+		        .filter(c -> c.getName().equals("age")).findFirst().get().getDataType());
+	}
+	
+	@Test
+	public void read_shouldNotAddMissingCellsToTheRows() throws Exception {
+		serializer.write(createDataSet(), file);
+		
+		DataSetRow row = serializer.read(file).getSimpleDataSet().getRows().get(1);
+		
+		assertFalse(row.getColumnValues().containsKey(DATE_COLUMN));
+		assertTrue(row.getColumnValues().containsKey(AGE_COLUMN));
+		assertNull(row.getColumnValue("age"));
+	}
+	
+	@Test
+	public void read_shouldRestoreValuesOfUnsupportedTypesSerializedAsXml() throws Exception {
+		SimpleDataSet simpleDataSet = new SimpleDataSet(null, null);
+		DataSetColumn column = new DataSetColumn("locale", "locale", Locale.class);
+		simpleDataSet.addColumnValue(0, column, Locale.FRENCH);
+		
+		serializer.write(new ExtendedDataSet(simpleDataSet, null), file);
+		
+		assertEquals(Locale.FRENCH, serializer.read(file).getSimpleDataSet().getColumnValue(0, "locale"));
+	}
+	
+	@Test
+	public void read_shouldRestoreADataSetWithoutASimpleDataSet() throws Exception {
+		serializer.write(new ExtendedDataSet(), file);
+		
+		ExtendedDataSet restored = serializer.read(file);
+		
+		assertNull(restored.getSimpleDataSet());
+		assertTrue(restored.isLastVersion());
+	}
+	
+	@Test
+	public void read_shouldRestoreThePatientLocationsInOrder() throws Exception {
+		ExtendedDataSet dataSet = createDataSet();
+		Map<String, List<String>> patientLocations = new LinkedHashMap<>();
+		patientLocations.put("patient-2", Arrays.asList("1", "2"));
+		patientLocations.put("patient-1", Collections.emptyList());
+		dataSet.setPatientLocations(patientLocations);
+		serializer.write(dataSet, file);
+		
+		ExtendedDataSet restored = serializer.read(file);
+		
+		assertEquals(Arrays.asList("patient-2", "patient-1"), new ArrayList<>(restored.getPatientLocations().keySet()));
+		assertEquals(Arrays.asList("1", "2"), restored.getPatientLocations().get("patient-2"));
+		assertTrue(restored.getPatientLocations().get("patient-1").isEmpty());
+		serializer.write(createDataSet(), file);
+		assertNull(serializer.read(file).getPatientLocations());
+	}
+	
+	@Test
+	public void readHeader_shouldReadOnlyTheDataSetProperties() throws Exception {
+		ExtendedDataSet dataSet = createDataSet();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		serializer.write(dataSet, out);
+		
+		ExtendedDataSet header = serializer.readHeader(new ByteArrayInputStream(out.toByteArray()));
+		
+		assertNull(header.getSimpleDataSet());
+		assertEquals(dataSet.getRowsCountLimit(), header.getRowsCountLimit());
+		assertEquals(dataSet.getUsedDateRange(), header.getUsedDateRange());
+		assertEquals(dataSet.getPeriodOperand(), header.getPeriodOperand());
+		assertTrue(header.isLastVersion());
+	}
+	
+	@Test
+	public void readHeader_shouldReturnNullForAnXmlStream() throws Exception {
+		byte[] xml = "<org.openmrs.module.patientgrid.ExtendedDataSet/>".getBytes("UTF-8");
+		
+		assertNull(serializer.readHeader(new ByteArrayInputStream(xml)));
+	}
+	
+	@Test
+	public void read_shouldReturnNullIfTheFileWasWrittenWithAnotherFormatVersion() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		serializer.write(createDataSet(), out);
+		byte[] bytes = out.toByteArray();
+		//the format version follows the 4 bytes of the magic number
+		bytes[5] = (byte) (ColumnarDataSetSerializer.FORMAT_VERSION + 1);
+		
+		assertNull(serializer.read(new ByteArrayInputStream(bytes)));
+	}
+	
+	@Test
+	public void write_shouldWriteRepeatedStringsOnlyOnce() throws Exception {
+		SimpleDataSet simpleDataSet = new SimpleDataSet(null, null);
+		for (int i = 0; i < 100; i++) {
+			simpleDataSet.addColumnValue(i, OBS_COLUMN, createObs("obs", "value"));
+		}
+		
+		serializer.write(new ExtendedDataSet(simpleDataSet, null), file);
+		
+		String content = new String(Files.readAllBytes(file.toPath()), "UTF-8");
+		assertEquals(content.indexOf("encounter-type-uuid"), content.lastIndexOf("encounter-type-uuid"));
+	}
+	
+	@Test
+	public void isColumnar_shouldReturnFalseForAnXmlFile() throws IOException {
+		Files.write(file.toPath(), "<org.openmrs.module.patientgrid.ExtendedDataSet/>".getBytes("UTF-8"));
+		
+		assertFalse(ColumnarDataSetSerializer.isColumnar(file));
+	}
+	
+	@Test
+	public void isColumnar_shouldReturnTrueForAFileWrittenInTheColumnarFormat() throws IOException {
+		serializer.write(createDataSet(), file);
+		
+		assertTrue(ColumnarDataSetSerializer.isColumnar(file));
+	}
+	
+}
@@ -5,10 +5,14 @@ import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.when;
 import static org.openmrs.module.patientgrid.PatientGridConstants.DEFAULT_DISK_CACHE_DIR_NAME;
 import static org.openmrs.module.patientgrid.PatientGridConstants.GP_DISK_CACHE_DIR;
+import static org.openmrs.module.patientgrid.PatientGridConstants.GP_MAX_CACHE_SIZE;
 import static org.openmrs.module.patientgrid.PatientGridConstants.MODULE_ID;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.io.FileUtils;
 import org.hamcrest.Matchers;
@@ -43,12 +47,18 @@ public class DiskCacheTest {
 	@Rule
 	public ExpectedException ee = ExpectedException.none();
 	
+	private MemoryCache memoryCache;
+	
 	@Before
 	public void setup() {
 		PowerMockito.mockStatic(OpenmrsUtil.class);
 		PowerMockito.mockStatic(Context.class);
 		when(Context.getAdministrationService()).thenReturn(mockAdminService);
 		Whitebox.setInternalState(DiskCache.getInstance(), File.class, (Object) null);
+		Whitebox.setInternalState(DiskCache.getInstance(), "index", (Object) null);
+		Whitebox.setInternalState(DiskCache.getInstance(), "maxSize", (Object) null);
+		memoryCache = new MemoryCache(1024 * 1024);
+		Whitebox.setInternalState(DiskCache.getInstance(), MemoryCache.class, memoryCache);
 	}
 	
 	@Test
@@ -131,8 +141,10 @@ public class DiskCacheTest {
 			DiskCache.getInstance().deleteCacheFileOlderThan(1);
 			
 			//assert
+			fileToKeep = DiskCache.getInstance().getFile(fileToKeep.getName());
 			assertTrue(fileToKeep.isFile());
 			assertTrue(fileToKeep.exists());
+			assertFalse(DiskCache.getInstance().getFile(fileToClean.getName()).exists());
 			assertFalse(fileToClean.exists());
 		}
 		finally {
@@ -144,4 +156,257 @@ public class DiskCacheTest {
 		
 	}
 	
+	private File createCacheDirectory() {
+		final String cacheDirName = "test";
+		when(mockAdminService.getGlobalProperty(GP_DISK_CACHE_DIR)).thenReturn(cacheDirName);
+		File cacheDir = new File(FileUtils.getTempDirectory(), getClass().getName() + "-" + System.nanoTime());
+		assertTrue(cacheDir.mkdir());
+		when(OpenmrsUtil.getDirectoryInApplicationDataDirectory(cacheDirName)).thenReturn(cacheDir);
+		return cacheDir;
+	}
+	
+	private void writeFile(String filename) throws IOException {
+		FileUtils.writeStringToFile(DiskCache.getInstance().getFile(filename), "test", "UTF-8");
+		DiskCache.getInstance().fileWritten(filename);
+	}
+	
+	@Test
+	public void getFile_shouldReturnTheFilesOfTheSameGridInTheSameSubDirectory() {
+		File cacheDir = createCacheDirectory();
+		try {
+			File file1 = DiskCache.getInstance().getFile("grid-uuid_user1");
+			File file2 = DiskCache.getInstance().getFile("grid-uuid_user2");
+			
+			assertEquals("grid-uuid_user1", file1.getName());
+			assertEquals(cacheDir, file1.getParentFile().getParentFile());
+			assertEquals(file1.getParentFile(), file2.getParentFile());
+			assertEquals(DiskCache.getShardName("grid-uuid"), file1.getParentFile().getName());
+		}
+		finally {
+			FileUtils.deleteQuietly(cacheDir);
+		}
+	}
+	
+	@Test
+	public void deleteGridFiles_shouldDeleteOnlyTheFilesOfTheSpecifiedGrid() throws IOException {
+		File cacheDir = createCacheDirectory();
+		try {
+			writeFile("grid1_user1");
+			writeFile("grid1_user2");
+			writeFile("grid2_user1");
+			
+			DiskCache.getInstance().deleteGridFiles("grid1");
+			
+			assertFalse(DiskCache.getInstance().getFile("grid1_user1").exists());
+			assertFalse(DiskCache.getInstance().getFile("grid1_user2").exists());
+			assertTrue(DiskCache.getInstance().getFile("grid2_user1").exists());
+			assertTrue(DiskCache.getInstance().getIndex().get("grid1").isEmpty());
+			assertEquals(1, DiskCache.getInstance().getIndex().get("grid2").size());
+		}
+		finally {
+			FileUtils.deleteQuietly(cacheDir);
+		}
+	}
+	
+	@Test
+	public void deleteFilesWithPrefix_shouldDeleteOnlyTheFilesWithAKeyStartingWithThePrefix() throws IOException {
+		File cacheDir = createCacheDirectory();
+		try {
+			writeFile("grid1_user1");
+			writeFile("grid1_user1.variant.json");
+			writeFile("grid1_user10.variant.json");
+			
+			DiskCache.getInstance().deleteFilesWithPrefix("grid1_user1.");
+			
+			assertTrue(DiskCache.getInstance().getFile("grid1_user1").exists());
+			assertFalse(DiskCache.getInstance().getFile("grid1_user1.variant.json").exists());
+			assertTrue(DiskCache.getInstance().getFile("grid1_user10.variant.json").exists());
+			assertEquals(2, DiskCache.getInstance().getIndex().get("grid1").size());
+		}
+		finally {
+			FileUtils.deleteQuietly(cacheDir);
+		}
+	}
+	
+	@Test
+	public void getFilesAccessedSince_shouldReturnTheRecentlyUsedFilesMostRecentFirst() throws IOException {
+		File cacheDir = createCacheDirectory();
+		try {
+			writeFile("grid1_user1");
+			writeFile("grid1_user2");
+			writeFile("grid2_user1");
+			Whitebox.setInternalState(DiskCache.getInstance().getIndex().get("grid1").get("grid1_user1"), "lastAccessed",
+			    1000L);
+			Whitebox.setInternalState(DiskCache.getInstance().getIndex().get("grid1").get("grid1_user2"), "lastAccessed",
+			    3000L);
+			Whitebox.setInternalState(DiskCache.getInstance().getIndex().get("grid2").get("grid2_user1"), "lastAccessed",
+			    2000L);
+			
+			assertEquals(Arrays.asList("grid1_user2", "grid2_user1"), DiskCache.getInstance().getFilesAccessedSince(2000));
+		}
+		finally {
+			FileUtils.deleteQuietly(cacheDir);
+		}
+	}
+	
+	@Test
+	public void getVersion_shouldChangeEachTimeTheFileIsWritten() throws IOException {
+		File cacheDir = createCacheDirectory();
+		try {
+			assertNull(DiskCache.getInstance().getVersion("grid1_user1"));
+			writeFile("grid1_user1");
+			Object version = DiskCache.getInstance().getVersion("grid1_user1");
+			assertNotNull(version);
+			assertSame(version, DiskCache.getInstance().getVersion("grid1_user1"));
+			
+			writeFile("grid1_user1");
+			
+			assertNotSame(version, DiskCache.getInstance().getVersion("grid1_user1"));
+		}
+		finally {
+			FileUtils.deleteQuietly(cacheDir);
+		}
+	}
+	
+	@Test
+	public void getIndex_shouldIndexTheExistingFilesAndMoveFlatFilesToTheirSubDirectory() throws IOException {
+		File cacheDir = createCacheDirectory();
+		try {
+			File shardedFile = DiskCache.getInstance().getFile("grid1_user1");
+			FileUtils.writeStringToFile(shardedFile, "test", "UTF-8");
+			File flatFile = new File(cacheDir, "grid2_user1");
+			FileUtils.writeStringToFile(flatFile, "test2", "UTF-8");
+			File tempFile = new File(shardedFile.getParentFile(), DiskCache.TEMP_FILE_PREFIX + "123");
+			FileUtils.writeStringToFile(tempFile, "partial", "UTF-8");
+			
+			Map<String, ConcurrentMap<String, DiskCache.IndexEntry>> index = DiskCache.getInstance().getIndex();
+			
+			assertEquals(2, index.size());
+			assertEquals(4, index.get("grid1").get("grid1_user1").getSize());
+			assertEquals(5, index.get("grid2").get("grid2_user1").getSize());
+			assertFalse(flatFile.exists());
+			assertTrue(DiskCache.getInstance().getFile("grid2_user1").exists());
+			assertFalse(tempFile.exists());
+		}
+		finally {
+			FileUtils.deleteQuietly(cacheDir);
+		}
+	}
+	
+	@Test
+	public void fileAccessed_shouldNotUpdateTheFileUntilTheAccessTimesAreFlushed() throws IOException {
+		File cacheDir = createCacheDirectory();
+		try {
+			writeFile("grid1_user1");
+			File file = DiskCache.getInstance().getFile("grid1_user1");
+			final long lastModified = DateTime.now().minusHours(2).getMillis() / 1000 * 1000;
+			assertTrue(file.setLastModified(lastModified));
+			Whitebox.setInternalState(DiskCache.getInstance(), "index", (Object) null);
+			
+			DiskCache.getInstance().fileAccessed("grid1_user1");
+			
+			assertEquals(lastModified, file.lastModified());
+			DiskCache.getInstance().deleteCacheFileOlderThan(1);
+			assertTrue(file.exists());
+			DiskCache.getInstance().flushAccessTimes();
+			assertTrue(file.lastModified() > lastModified);
+		}
+		finally {
+			FileUtils.deleteQuietly(cacheDir);
+		}
+	}
+	
+	@Test
+	public void fileWritten_shouldDeleteTheLeastRecentlyUsedFilesIfTheMaxSizeIsExceeded() throws IOException {
+		File cacheDir = createCacheDirectory();
+		when(mockAdminService.getGlobalProperty(GP_MAX_CACHE_SIZE)).thenReturn("10");
+		try {
+			writeFile("grid1_user1");
+			writeFile("grid2_user1");
+			Whitebox.setInternalState(DiskCache.getInstance().getIndex().get("grid1").get("grid1_user1"), "lastAccessed", 2L);
+			Whitebox.setInternalState(DiskCache.getInstance().getIndex().get("grid2").get("grid2_user1"), "lastAccessed", 1L);
+			assertEquals(8, DiskCache.getInstance().getSize());
+			
+			writeFile("grid3_user1");
+			
+			assertTrue(DiskCache.getInstance().getFile("grid1_user1").exists());
+			assertFalse(DiskCache.getInstance().getFile("grid2_user1").exists());
+			assertTrue(DiskCache.getInstance().getFile("grid3_user1").exists());
+			assertEquals(8, DiskCache.getInstance().getSize());
+		}
+		finally {
+			FileUtils.deleteQuietly(cacheDir);
+		}
+	}
+	
+	@Test
+	public void fileWritten_shouldEvictTheMemoryEntriesOfTheDeletedFiles() throws IOException {
+		File cacheDir = createCacheDirectory();
+		when(mockAdminService.getGlobalProperty(GP_MAX_CACHE_SIZE)).thenReturn("10");
+		try {
+			writeFile("grid1_user1");
+			writeFile("grid2_user1");
+			memoryCache.put("grid1_user1", "report1");
+			memoryCache.put("grid2_user1", "report2");
+			Whitebox.setInternalState(DiskCache.getInstance().getIndex().get("grid1").get("grid1_user1"), "lastAccessed", 2L);
+			Whitebox.setInternalState(DiskCache.getInstance().getIndex().get("grid2").get("grid2_user1"), "lastAccessed", 1L);
+			
+			writeFile("grid3_user1");
+			
+			assertEquals("report1", memoryCache.get("grid1_user1"));
+			assertNull(memoryCache.get("grid2_user1"));
+		}
+		finally {
+			FileUtils.deleteQuietly(cacheDir);
+		}
+	}
+	
+	@Test
+	public void deleteFile_shouldEvictTheMemoryEntry() throws IOException {
+		File cacheDir = createCacheDirectory();
+		try {
+			writeFile("grid1_user1");
+			memoryCache.put("grid1_user1", "report");
+			
+			DiskCache.getInstance().deleteFile("grid1_user1");
+			
+			assertNull(memoryCache.get("grid1_user1"));
+		}
+		finally {
+			FileUtils.deleteQuietly(cacheDir);
+		}
+	}
+	
+	@Test
+	public void fileWritten_shouldNotDeleteFilesIfTheSizeIsNotLimited() throws IOException {
+		File cacheDir = createCacheDirectory();
+		try {
+			writeFile("grid1_user1");
+			writeFile("grid2_user1");
+			writeFile("grid3_user1");
+			
+			assertEquals(12, DiskCache.getInstance().getSize());
+			assertTrue(DiskCache.getInstance().getFile("grid1_user1").exists());
+		}
+		finally {
+			FileUtils.deleteQuietly(cacheDir);
+		}
+	}
+	
+	@Test
+	public void deleteAllFiles_shouldClearTheIndex() throws IOException {
+		File cacheDir = createCacheDirectory();
+		try {
+			writeFile("grid1_user1");
+			
+			DiskCache.getInstance().deleteAllFiles();
+			
+			assertTrue(DiskCache.getInstance().getIndex().isEmpty());
+			assertFalse(DiskCache.getInstance().getFile("grid1_user1").exists());
+		}
+		finally {
+			FileUtils.deleteQuietly(cacheDir);
+		}
+	}
+	
 }
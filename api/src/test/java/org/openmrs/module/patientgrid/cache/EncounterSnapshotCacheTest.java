@@ -0,0 +1,128 @@
+package org.openmrs.module.patientgrid.cache;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.EncounterType;
+import org.openmrs.module.patientgrid.period.DateRange;
+
+public class EncounterSnapshotCacheTest {
+	
+	private EncounterType encounterType;
+	
+	private AtomicInteger loadCount;
+	
+	private long now;
+	
+	private EncounterSnapshotCache cache;
+	
+	@Before
+	public void setup() {
+		encounterType = new EncounterType(1);
+		encounterType.setUuid("enc-type-uuid");
+		loadCount = new AtomicInteger();
+		now = 0;
+		cache = new EncounterSnapshotCache(60, 5) {
+			
+			@Override
+			protected long currentTimeMillis() {
+				return now;
+			}
+			
+		};
+	}
+	
+	private Function<EncounterType, List> loader(Integer... encounterIds) {
+		return type -> {
+			loadCount.incrementAndGet();
+			return asList(encounterIds);
+		};
+	}
+	
+	@Test
+	public void computeIfAbsent_shouldReturnTheCachedSnapshot() {
+		List<Integer> snapshot = cache.computeIfAbsent(encounterType, null, null, loader(1, 2));
+		
+		assertSame(snapshot, cache.computeIfAbsent(encounterType, null, null, loader(1, 2)));
+		assertEquals(asList(1, 2), snapshot);
+		assertEquals(1, loadCount.get());
+	}
+	
+	@Test
+	public void computeIfAbsent_shouldKeepASnapshotPerPeriod() {
+		DateRange period = new DateRange("today", new Date(0), new Date(1000));
+		cache.computeIfAbsent(encounterType, null, null, loader(1, 2));
+		
+		assertEquals(asList(1), cache.computeIfAbsent(encounterType, period, null, loader(1)));
+		assertEquals(2, loadCount.get());
+	}
+	
+	@Test
+	public void computeIfAbsent_shouldReloadAnExpiredSnapshot() {
+		cache.computeIfAbsent(encounterType, null, null, loader(1, 2));
+		now = 60 * 1000;
+		
+		assertEquals(asList(3), cache.computeIfAbsent(encounterType, null, null, loader(3)));
+		assertEquals(2, loadCount.get());
+	}
+	
+	@Test
+	public void computeIfAbsent_shouldEvictTheLeastRecentlyUsedSnapshotsWhenTheMaxSizeIsExceeded() {
+		EncounterType otherType = new EncounterType(2);
+		otherType.setUuid("other-enc-type-uuid");
+		cache.computeIfAbsent(encounterType, null, null, loader(1, 2, 3));
+		cache.computeIfAbsent(otherType, null, null, loader(4, 5, 6));
+		
+		assertEquals(3, cache.getSize());
+		cache.computeIfAbsent(otherType, null, null, loader(4, 5, 6));
+		assertEquals(2, loadCount.get());
+		cache.computeIfAbsent(encounterType, null, null, loader(1, 2, 3));
+		assertEquals(3, loadCount.get());
+	}
+	
+	@Test
+	public void invalidate_shouldDiscardTheSnapshotsOfTheEncounterTypes() {
+		List<Integer> snapshot = cache.computeIfAbsent(encounterType, null, null, loader(1, 2));
+		cache.invalidate(singleton(2));
+		assertSame(snapshot, cache.computeIfAbsent(encounterType, null, null, loader(1, 2)));
+		
+		cache.invalidate(singleton(1));
+		
+		assertEquals(0, cache.getSize());
+		assertNotEquals(asList(1, 2), cache.computeIfAbsent(encounterType, null, null, loader(3)));
+		assertEquals(2, loadCount.get());
+	}
+	
+	@Test
+	public void computeIfAbsent_shouldNotKeepASnapshotLoadedWhileItsEncounterTypeWasChanged() {
+		cache.computeIfAbsent(encounterType, null, null, type -> {
+			cache.invalidate(singleton(1));
+			return asList(1, 2);
+		});
+		
+		assertEquals(0, cache.getSize());
+	}
+	
+	@Test
+	public void get_shouldReturnTheSnapshotWithoutLoadingIt() {
+		assertNull(cache.get(encounterType, null, null));
+		List<Integer> snapshot = cache.computeIfAbsent(encounterType, null, null, loader(1, 2));
+		
+		assertSame(snapshot, cache.get(encounterType, null, null));
+		now = 60 * 1000;
+		assertNull(cache.get(encounterType, null, null));
+		assertEquals(1, loadCount.get());
+	}
+	
+}
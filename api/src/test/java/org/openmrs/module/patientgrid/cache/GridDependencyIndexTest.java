@@ -0,0 +1,86 @@
+package org.openmrs.module.patientgrid.cache;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.EncounterType;
+import org.openmrs.module.patientgrid.AgeAtEncounterPatientGridColumn;
+import org.openmrs.module.patientgrid.EncounterDatePatientGridColumn;
+import org.openmrs.module.patientgrid.ObsPatientGridColumn;
+import org.openmrs.module.patientgrid.PatientGrid;
+import org.openmrs.module.patientgrid.PatientGridColumn;
+import org.openmrs.module.patientgrid.PatientGridColumn.ColumnDatatype;
+
+public class GridDependencyIndexTest {
+	
+	private GridDependencyIndex index;
+	
+	@Before
+	public void setup() {
+		EncounterType initial = new EncounterType(1);
+		EncounterType followUp = new EncounterType(2);
+		Concept weight = new Concept(10);
+		
+		PatientGrid obsGrid = new PatientGrid();
+		obsGrid.setUuid("obs-grid");
+		obsGrid.addColumn(new EncounterDatePatientGridColumn("date", initial));
+		obsGrid.addColumn(new ObsPatientGridColumn("weight", weight, initial));
+		
+		PatientGrid demographicsGrid = new PatientGrid();
+		demographicsGrid.setUuid("demographics-grid");
+		demographicsGrid.addColumn(new PatientGridColumn("name", ColumnDatatype.NAME));
+		demographicsGrid.addColumn(new AgeAtEncounterPatientGridColumn("age", followUp));
+		
+		PatientGrid locationGrid = new PatientGrid();
+		locationGrid.setUuid("location-grid");
+		locationGrid.addColumn(new PatientGridColumn("location", ColumnDatatype.ENC_LOCATION));
+		
+		PatientGrid sharedGrid = new PatientGrid();
+		sharedGrid.setUuid("shared-grid");
+		sharedGrid.setShared(true);
+		
+		index = new GridDependencyIndex(asList(obsGrid, demographicsGrid, locationGrid, sharedGrid));
+	}
+	
+	@Test
+	public void getAffectedGrids_shouldReturnTheGridsWithAColumnForTheEncounterType() {
+		assertEquals(new HashSet<>(asList("obs-grid")),
+		    index.getAffectedGrids(new HashSet<>(asList(1)), Collections.emptySet(), false, false));
+		assertEquals(new HashSet<>(asList("demographics-grid")),
+		    index.getAffectedGrids(new HashSet<>(asList(2)), Collections.emptySet(), false, false));
+		assertTrue(index.getAffectedGrids(new HashSet<>(asList(3)), Collections.emptySet(), false, false).isEmpty());
+	}
+	
+	@Test
+	public void getAffectedGrids_shouldReturnTheGridsWithAnObsColumnForTheConcept() {
+		assertEquals(new HashSet<>(asList("obs-grid")),
+		    index.getAffectedGrids(Collections.emptySet(), new HashSet<>(asList(10)), false, false));
+		assertTrue(index.getAffectedGrids(Collections.emptySet(), new HashSet<>(asList(11)), false, false).isEmpty());
+	}
+	
+	@Test
+	public void getAffectedGrids_shouldReturnTheGridsDependingOnPatientDemographics() {
+		assertEquals(new HashSet<>(asList("demographics-grid")),
+		    index.getAffectedGrids(Collections.emptySet(), Collections.emptySet(), true, false));
+	}
+	
+	@Test
+	public void getAffectedGrids_shouldReturnTheLocationAndSharedGridsIfPatientLocationsChanged() {
+		assertEquals(new HashSet<>(asList("location-grid", "shared-grid")),
+		    index.getAffectedGrids(Collections.emptySet(), Collections.emptySet(), false, true));
+	}
+	
+	@Test
+	public void getAllGrids_shouldReturnAllTheGrids() {
+		assertEquals(new HashSet<>(asList("obs-grid", "demographics-grid", "location-grid", "shared-grid")),
+		    index.getAllGrids());
+	}
+	
+}
@@ -0,0 +1,109 @@
+package org.openmrs.module.patientgrid.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.openmrs.module.patientgrid.ExtendedDataSet;
+import org.openmrs.module.reporting.dataset.DataSetColumn;
+import org.openmrs.module.reporting.dataset.SimpleDataSet;
+
+public class MemoryCacheTest {
+	
+	private static ExtendedDataSet createDataSet(int rowCount) {
+		SimpleDataSet simpleDataSet = new SimpleDataSet(null, null);
+		DataSetColumn column = new DataSetColumn("name", "name", String.class);
+		for (int i = 0; i < rowCount; i++) {
+			simpleDataSet.addColumnValue(i, column, "Patient " + i);
+		}
+		
+		return new ExtendedDataSet(simpleDataSet, null);
+	}
+	
+	@Test
+	public void put_shouldEvictTheLeastRecentlyUsedEntriesWhenTheMaxSizeIsExceeded() {
+		ExtendedDataSet dataSet1 = createDataSet(10);
+		ExtendedDataSet dataSet2 = createDataSet(10);
+		ExtendedDataSet dataSet3 = createDataSet(10);
+		long entrySize = MemoryCache.estimateSize(dataSet1);
+		MemoryCache cache = new MemoryCache(entrySize * 2);
+		cache.put("key1", dataSet1);
+		cache.put("key2", dataSet2);
+		//key1 becomes the most recently used
+		assertSame(dataSet1, cache.get("key1"));
+		
+		cache.put("key3", dataSet3);
+		
+		assertSame(dataSet1, cache.get("key1"));
+		assertNull(cache.get("key2"));
+		assertSame(dataSet3, cache.get("key3"));
+		assertEquals(entrySize * 2, cache.getSize());
+	}
+	
+	@Test
+	public void put_shouldNotCacheAValueBiggerThanTheMaxSize() {
+		ExtendedDataSet dataSet = createDataSet(10);
+		MemoryCache cache = new MemoryCache(MemoryCache.estimateSize(dataSet) - 1);
+		
+		cache.put("key", dataSet);
+		
+		assertNull(cache.get("key"));
+		assertEquals(0, cache.getSize());
+	}
+	
+	@Test
+	public void put_shouldReplaceTheExistingValue() {
+		ExtendedDataSet dataSet = createDataSet(5);
+		MemoryCache cache = new MemoryCache(1024 * 1024);
+		cache.put("key", createDataSet(10));
+		
+		cache.put("key", dataSet);
+		
+		assertSame(dataSet, cache.get("key"));
+		assertEquals(MemoryCache.estimateSize(dataSet), cache.getSize());
+	}
+	
+	@Test
+	public void put_shouldNotCacheAnythingIfTheCacheIsDisabled() {
+		MemoryCache cache = new MemoryCache(0);
+		
+		cache.put("key", createDataSet(1));
+		
+		assertNull(cache.get("key"));
+	}
+	
+	@Test
+	public void evictByPrefix_shouldRemoveAllTheEntriesStartingWithThePrefix() {
+		MemoryCache cache = new MemoryCache(1024 * 1024);
+		ExtendedDataSet otherDataSet = createDataSet(1);
+		cache.put("grid1_user1", createDataSet(1));
+		cache.put("grid1_user2", createDataSet(1));
+		cache.put("grid2_user1", otherDataSet);
+		
+		cache.evictByPrefix("grid1");
+		
+		assertNull(cache.get("grid1_user1"));
+		assertNull(cache.get("grid1_user2"));
+		assertSame(otherDataSet, cache.get("grid2_user1"));
+		assertEquals(MemoryCache.estimateSize(otherDataSet), cache.getSize());
+	}
+	
+	@Test
+	public void clear_shouldRemoveAllEntries() {
+		MemoryCache cache = new MemoryCache(1024 * 1024);
+		cache.put("key", createDataSet(1));
+		
+		cache.clear();
+		
+		assertNull(cache.get("key"));
+		assertEquals(0, cache.getSize());
+	}
+	
+	@Test
+	public void estimateSize_shouldGrowWithTheNumberOfRows() {
+		assertTrue(MemoryCache.estimateSize(createDataSet(20)) > MemoryCache.estimateSize(createDataSet(10)));
+	}
+	
+}
@@ -1,11 +1,13 @@
 package org.openmrs.module.patientgrid.cache;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.Mockito;
+import org.openmrs.User;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.patientgrid.ExtendedDataSet;
 import org.openmrs.module.patientgrid.PatientGridConstants;
@@ -20,6 +22,9 @@ import org.powermock.modules.junit4.PowerMockRunner;
 import org.powermock.reflect.Whitebox;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
 
 import static org.junit.Assert.*;
 import static org.mockito.Matchers.*;
@@ -38,8 +43,13 @@ public class PatientGridCacheTest {
 	@Mock
 	private CustomXstreamSerializer mockOpenmrsSerializer;
 	
+	@Mock
+	private StaleReportRefresher mockRefresher;
+	
 	private final PatientGridCache cache = new PatientGridCache();
 	
+	private final MemoryCache memoryCache = new MemoryCache(1024 * 1024);
+	
 	final String filename = "test_file";
 	
 	File file;
@@ -49,7 +59,12 @@ public class PatientGridCacheTest {
 		PowerMockito.mockStatic(Context.class);
 		PowerMockito.mockStatic(PatientGridUtils.class);
 		Whitebox.setInternalState(cache, DiskCache.class, mockDiskCache);
+		Whitebox.setInternalState(cache, MemoryCache.class, memoryCache);
+		Whitebox.setInternalState(cache, StaleReportRefresher.class, mockRefresher);
 		cache.setSerializer(mockOpenmrsSerializer);
+		cache.setCacheFormat(PatientGridConstants.CACHE_FORMAT_XML);
+		cache.setCompression(CacheFileCompression.NONE);
+		cache.setServeStale("");
 		file = File.createTempFile("test", ".txt");
 		when(mockDiskCache.getFile(filename)).thenReturn(file);
 		when(PatientGridUtils.getCurrentUserTimeZone()).thenReturn("utcTimeZone");
@@ -99,6 +114,56 @@ public class PatientGridCacheTest {
 		assertNull(cache.get(filename));
 	}
 	
+	@Test
+	public void get_shouldServeAStaleCopyOfAnObsoleteReportWhileItIsRefreshed() throws Exception {
+		cache.setServeStale("other-grid, test");
+		User user = new User();
+		user.setSystemId("admin");
+		when(Context.getAuthenticatedUser()).thenReturn(user);
+		when(Context.getLocale()).thenReturn(Locale.ENGLISH);
+		when(mockRefresher.refresh(filename, "test", "admin", Locale.ENGLISH)).thenReturn(true);
+		ExtendedDataSet dataSet = new ExtendedDataSet();
+		dataSet.setUsedDateRange("");
+		dataSet.setPeriodOperand("{\"code\":\"LASTTHIRTYDAYS\"}");
+		dataSet.setInitialRowsCount(3);
+		memoryCache.put(filename, dataSet);
+		
+		ExtendedDataSet stale = (ExtendedDataSet) cache.get(filename).get();
+		
+		assertNotSame(dataSet, stale);
+		assertTrue(stale.isStale());
+		assertEquals(3, stale.getInitialRowsCount());
+		assertFalse(dataSet.isStale());
+		assertSame(dataSet, memoryCache.get(filename));
+		Mockito.verify(mockRefresher).refresh(filename, "test", "admin", Locale.ENGLISH);
+	}
+	
+	@Test
+	public void get_shouldReturnNullForAnObsoleteReportIfItCannotBeRefreshed() throws Exception {
+		cache.setServeStale("true");
+		ExtendedDataSet dataSet = new ExtendedDataSet();
+		dataSet.setUsedDateRange("");
+		dataSet.setPeriodOperand("{\"code\":\"LASTTHIRTYDAYS\"}");
+		memoryCache.put(filename, dataSet);
+		
+		assertNull(cache.get(filename));
+		assertNull(memoryCache.get(filename));
+		Mockito.verifyZeroInteractions(mockRefresher);
+	}
+	
+	@Test
+	public void isServeStale_shouldMatchAllGridsOrTheListedGrids() {
+		cache.setServeStale("true");
+		assertTrue(cache.isServeStale("grid1"));
+		
+		cache.setServeStale("grid1,grid2");
+		assertTrue(cache.isServeStale("grid2"));
+		assertFalse(cache.isServeStale("grid3"));
+		
+		cache.setServeStale("false");
+		assertFalse(cache.isServeStale("grid1"));
+	}
+	
 	@Test
 	public void get_shouldReturnCacheIfNotObsolete() throws Exception {
 		//setup
@@ -145,7 +210,8 @@ public class PatientGridCacheTest {
 		cache.put(filename, dataSet);
 		
 		Mockito.verify(mockDiskCache).getFile(filename);
-		Mockito.verify(mockOpenmrsSerializer).toXML(dataSet, file);
+		Mockito.verify(mockDiskCache).fileWritten(filename);
+		Mockito.verify(mockOpenmrsSerializer).toXML(eq(dataSet), any(File.class));
 	}
 	
 	@Test
@@ -157,8 +223,183 @@ public class PatientGridCacheTest {
 		assertSame(oldDataSet, cache.putIfAbsent(filename, dataSet).get());
 		
 		assertSame(oldDataSet, cache.get(filename).get());
-		Mockito.verify(mockOpenmrsSerializer, never()).toXML(dataSet, file);
+		Mockito.verify(mockOpenmrsSerializer, never()).toXML(eq(dataSet), any(File.class));
+		
+	}
+	
+	@Test
+	public void get_shouldReturnTheDataSetFromMemoryWithoutDeserializingTheFile() throws Exception {
+		ExtendedDataSet dataSet = new ExtendedDataSet();
+		when(mockOpenmrsSerializer.fromXML(file)).thenReturn(dataSet);
+		
+		assertSame(dataSet, cache.get(filename, ExtendedDataSet.class));
+		assertSame(dataSet, cache.get(filename, ExtendedDataSet.class));
+		
+		Mockito.verify(mockOpenmrsSerializer, times(1)).fromXML(file);
+	}
+	
+	@Test
+	public void get_shouldReturnTheDataSetFromMemoryWithoutCheckingTheCacheFile() throws Exception {
+		ExtendedDataSet dataSet = new ExtendedDataSet();
+		memoryCache.put(filename, dataSet);
+		
+		assertSame(dataSet, cache.get(filename, ExtendedDataSet.class));
+		
+		Mockito.verify(mockDiskCache, never()).getFile(filename);
+		Mockito.verify(mockDiskCache).fileAccessed(filename);
+	}
+	
+	@Test
+	public void get_shouldReturnNullIfTheCacheFileWasDeleted() throws Exception {
+		assertTrue(file.delete());
+		
+		assertNull(cache.get(filename, ExtendedDataSet.class));
+		Mockito.verify(mockDiskCache).deleteFile(filename);
+	}
+	
+	@Test
+	public void put_shouldKeepTheDataSetInMemory() throws Exception {
+		ExtendedDataSet dataSet = new ExtendedDataSet();
+		cache.put(filename, dataSet);
+		
+		assertSame(dataSet, cache.get(filename, ExtendedDataSet.class));
+		Mockito.verify(mockOpenmrsSerializer, never()).fromXML(file);
+	}
+	
+	@Test
+	public void evict_shouldRemoveTheDataSetFromMemory() throws Exception {
+		final String key = "grid-uuid" + PatientGridConstants.CACHE_KEY_SEPARATOR + "user-uuid";
+		memoryCache.put(key, new ExtendedDataSet());
+		
+		cache.evict(key);
+		
+		assertNull(memoryCache.get(key));
+		Mockito.verify(mockDiskCache).deleteFile(key);
+	}
+	
+	@Test
+	public void evict_shouldRemoveAllTheDataSetsOfTheGridIfTheKeyIsTheGridUuid() throws Exception {
+		final String key = "grid-uuid" + PatientGridConstants.CACHE_KEY_SEPARATOR + "user-uuid";
+		memoryCache.put(key, new ExtendedDataSet());
+		
+		cache.evict("grid-uuid");
+		
+		assertNull(memoryCache.get(key));
+		Mockito.verify(mockDiskCache).deleteGridFiles("grid-uuid");
+	}
+	
+	@Test
+	public void clear_shouldRemoveAllDataSetsFromMemory() throws Exception {
+		memoryCache.put(filename, new ExtendedDataSet());
+		
+		cache.clear();
+		
+		assertNull(memoryCache.get(filename));
+		Mockito.verify(mockDiskCache).deleteAllFiles();
+	}
+	
+	@Test
+	public void put_shouldWriteTheDataSetInTheBinaryFormatIfConfigured() throws Exception {
+		cache.setCacheFormat(PatientGridConstants.CACHE_FORMAT_BINARY);
+		ExtendedDataSet dataSet = new ExtendedDataSet(new SimpleDataSet(null, null), null);
+		dataSet.setRowsCountLimit(10);
+		
+		cache.put(filename, dataSet);
+		
+		assertTrue(ColumnarDataSetSerializer.isColumnar(file));
+		Mockito.verify(mockOpenmrsSerializer, never()).toXML(anyObject(), any(File.class));
+		memoryCache.clear();
+		ExtendedDataSet cachedDataSet = cache.get(filename, ExtendedDataSet.class);
+		assertNotSame(dataSet, cachedDataSet);
+		assertEquals(10, cachedDataSet.getRowsCountLimit());
+		Mockito.verify(mockOpenmrsSerializer, never()).fromXML(any(File.class));
+	}
+	
+	@Test
+	public void getValueWrapper_shouldNotReadTheRowsIfTheFileHeaderIsObsolete() throws Exception {
+		cache.setCacheFormat(PatientGridConstants.CACHE_FORMAT_BINARY);
+		cache.setCompression(CacheFileCompression.GZIP);
+		ColumnarDataSetSerializer columnarSerializer = spy(new ColumnarDataSetSerializer(mockOpenmrsSerializer));
+		Whitebox.setInternalState(cache, "columnarSerializer", columnarSerializer);
+		ExtendedDataSet dataSet = new ExtendedDataSet(new SimpleDataSet(null, null), null);
+		dataSet.setXstreamVersion("0.1");
+		cache.put(filename, dataSet);
+		memoryCache.clear();
+		
+		assertNull(cache.get(filename));
+		
+		Mockito.verify(columnarSerializer).readHeader(any(InputStream.class));
+		Mockito.verify(columnarSerializer, never()).read(any(InputStream.class));
+		Mockito.verify(columnarSerializer, never()).read(any(File.class));
+	}
+	
+	@Test
+	public void put_shouldCompressTheFileIfConfigured() throws Exception {
+		cache.setCacheFormat(PatientGridConstants.CACHE_FORMAT_BINARY);
+		cache.setCompression(CacheFileCompression.GZIP);
+		ExtendedDataSet dataSet = new ExtendedDataSet(new SimpleDataSet(null, null), null);
+		dataSet.setRowsCountLimit(10);
 		
+		cache.put(filename, dataSet);
+		
+		assertEquals(CacheFileCompression.GZIP, CacheFileCompression.of(file));
+		memoryCache.clear();
+		ExtendedDataSet cachedDataSet = cache.get(filename, ExtendedDataSet.class);
+		assertNotSame(dataSet, cachedDataSet);
+		assertEquals(10, cachedDataSet.getRowsCountLimit());
+	}
+	
+	@Test
+	public void get_shouldReadACompressedFileWhenCompressionIsDisabled() throws Exception {
+		cache.setCacheFormat(PatientGridConstants.CACHE_FORMAT_BINARY);
+		cache.setCompression(CacheFileCompression.DEFLATE);
+		ExtendedDataSet dataSet = new ExtendedDataSet(new SimpleDataSet(null, null), null);
+		dataSet.setRowsCountLimit(10);
+		cache.put(filename, dataSet);
+		memoryCache.clear();
+		cache.setCompression(CacheFileCompression.NONE);
+		
+		assertEquals(10, cache.get(filename, ExtendedDataSet.class).getRowsCountLimit());
+	}
+	
+	@Test
+	public void put_shouldNotWriteTheFileAgainForTheSameDataSetInstance() throws Exception {
+		ExtendedDataSet dataSet = new ExtendedDataSet();
+		
+		cache.put(filename, dataSet);
+		cache.put(filename, dataSet);
+		
+		Mockito.verify(mockOpenmrsSerializer, times(1)).toXML(eq(dataSet), any(File.class));
+	}
+	
+	@Test
+	public void put_shouldWriteToATemporaryFileThatIsRenamedToTheCacheFile() throws Exception {
+		ExtendedDataSet dataSet = new ExtendedDataSet();
+		doAnswer(invocation -> {
+			File tempFile = (File) invocation.getArguments()[1];
+			assertNotEquals(file, tempFile);
+			assertEquals(file.getParentFile(), tempFile.getParentFile());
+			assertTrue(tempFile.getName().startsWith(DiskCache.TEMP_FILE_PREFIX));
+			FileUtils.writeStringToFile(tempFile, "new", "UTF-8");
+			return null;
+		}).when(mockOpenmrsSerializer).toXML(eq(dataSet), any(File.class));
+		
+		cache.put(filename, dataSet);
+		
+		assertEquals("new", FileUtils.readFileToString(file, "UTF-8"));
+		assertEquals(0, file.getParentFile().list((dir, name) -> name.startsWith(DiskCache.TEMP_FILE_PREFIX)).length);
+	}
+	
+	@Test
+	public void put_shouldKeepThePreviousFileIfTheWriteFails() throws Exception {
+		FileUtils.writeStringToFile(file, "old", "UTF-8");
+		doThrow(new IOException()).when(mockOpenmrsSerializer).toXML(anyObject(), any(File.class));
+		
+		cache.put(filename, new ExtendedDataSet());
+		
+		assertEquals("old", FileUtils.readFileToString(file, "UTF-8"));
+		assertEquals(0, file.getParentFile().list((dir, name) -> name.startsWith(DiskCache.TEMP_FILE_PREFIX)).length);
+		assertNull(memoryCache.get(filename));
 	}
 	
 	@Test
@@ -166,8 +407,59 @@ public class PatientGridCacheTest {
 		ExtendedDataSet dataSet = new ExtendedDataSet();
 		assertNull(cache.putIfAbsent(filename, dataSet));
 		
-		Mockito.verify(mockOpenmrsSerializer).toXML(dataSet, file);
+		Mockito.verify(mockOpenmrsSerializer).toXML(eq(dataSet), any(File.class));
+		
+	}
+	
+	@Test
+	public void put_shouldDeleteTheRepresentationsOfTheReport() throws Exception {
+		cache.put(filename, new ExtendedDataSet());
+		
+		Mockito.verify(mockDiskCache).deleteFilesWithPrefix(filename + ".");
+	}
+	
+	@Test
+	public void putRepresentation_shouldWriteTheBodyIfTheReportWasNotWrittenAgain() throws Exception {
+		final String representationKey = filename + ".variant.json";
+		File representationFile = new File(file.getParentFile(), file.getName() + ".json");
+		representationFile.deleteOnExit();
+		when(mockDiskCache.getFile(representationKey)).thenReturn(representationFile);
+		Object version = new Object();
+		when(mockDiskCache.getVersion(filename)).thenReturn(version);
+		
+		cache.putRepresentation(filename, version, "variant", false, "{}".getBytes("UTF-8"));
+		
+		assertEquals("{}", FileUtils.readFileToString(representationFile, "UTF-8"));
+		Mockito.verify(mockDiskCache).fileWritten(representationKey);
+		Mockito.verify(mockDiskCache, never()).deleteFile(representationKey);
+	}
+	
+	@Test
+	public void putRepresentation_shouldDiscardTheBodyIfTheReportWasWrittenAgain() throws Exception {
+		final String representationKey = filename + ".variant.json.gz";
+		File representationFile = new File(file.getParentFile(), file.getName() + ".json.gz");
+		representationFile.deleteOnExit();
+		when(mockDiskCache.getFile(representationKey)).thenReturn(representationFile);
+		when(mockDiskCache.getVersion(filename)).thenReturn(new Object());
+		
+		cache.putRepresentation(filename, new Object(), "variant", true, "{}".getBytes("UTF-8"));
+		
+		Mockito.verify(mockDiskCache).deleteFile(representationKey);
+	}
+	
+	@Test
+	public void getRepresentationFile_shouldReturnNullIfTheReportIsObsolete() throws Exception {
+		final String representationKey = filename + ".variant.json";
+		File representationFile = File.createTempFile("test", ".json");
+		representationFile.deleteOnExit();
+		when(mockDiskCache.getFile(representationKey)).thenReturn(representationFile);
+		ExtendedDataSet dataSet = new ExtendedDataSet();
+		memoryCache.put(filename, dataSet);
+		assertEquals(representationFile, cache.getRepresentationFile(filename, "variant", false));
+		
+		dataSet.setXstreamVersion("0.1");
 		
+		assertNull(cache.getRepresentationFile(filename, "variant", false));
 	}
 	
 }
@@ -0,0 +1,47 @@
+package org.openmrs.module.patientgrid.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Locale;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+import org.openmrs.User;
+import org.openmrs.util.LocaleUtility;
+import org.openmrs.util.OpenmrsConstants;
+
+public class PrewarmCacheTaskTest {
+	
+	@Test
+	public void isInWindow_shouldReturnTrueWithinTheWindowAfterMidnightInTheTimezone() {
+		DateTime now = new DateTime(2023, 3, 10, 23, 30, DateTimeZone.UTC);
+		
+		assertTrue(PrewarmCacheTask.isInWindow("Europe/Paris", 60, now));
+		assertFalse(PrewarmCacheTask.isInWindow("Europe/Paris", 30, now));
+		assertFalse(PrewarmCacheTask.isInWindow("UTC", 60, now));
+	}
+	
+	@Test
+	public void isInWindow_shouldUseTheDefaultTimezoneForAnUnknownTimezone() {
+		DateTime now = new DateTime(2023, 3, 10, 0, 10, DateTimeZone.getDefault());
+		
+		assertTrue(PrewarmCacheTask.isInWindow("Unknown/Zone", 60, now));
+	}
+	
+	@Test
+	public void getLocale_shouldReturnTheDefaultLocaleOfTheUser() {
+		User user = new User();
+		user.setUserProperty(OpenmrsConstants.USER_PROPERTY_DEFAULT_LOCALE, "fr_CA");
+		
+		assertEquals(Locale.CANADA_FRENCH, PrewarmCacheTask.getLocale(user));
+	}
+	
+	@Test
+	public void getLocale_shouldReturnTheSystemDefaultLocaleIfTheUserHasNone() {
+		assertEquals(LocaleUtility.getDefaultLocale(), PrewarmCacheTask.getLocale(new User()));
+	}
+	
+}
@@ -0,0 +1,189 @@
+package org.openmrs.module.patientgrid.cache;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.HashSet;
+
+import org.hibernate.Transaction;
+import org.hibernate.resource.transaction.spi.TransactionStatus;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.Encounter;
+import org.openmrs.EncounterType;
+import org.openmrs.Obs;
+import org.openmrs.Patient;
+import org.openmrs.Person;
+import org.openmrs.PersonName;
+import org.openmrs.module.patientgrid.AgeAtEncounterPatientGridColumn;
+import org.openmrs.module.patientgrid.EncounterDatePatientGridColumn;
+import org.openmrs.module.patientgrid.ObsPatientGridColumn;
+import org.openmrs.module.patientgrid.PatientGrid;
+import org.openmrs.module.patientgrid.PatientGridColumn;
+import org.openmrs.module.patientgrid.PatientGridColumn.ColumnDatatype;
+import org.openmrs.module.patientgrid.cache.ReportInvalidationInterceptor.Changes;
+import org.powermock.reflect.Whitebox;
+
+public class ReportInvalidationInterceptorTest {
+	
+	private static final String[] VOIDED_PROPERTY = new String[] { "personVoided" };
+	
+	private TestInterceptor interceptor;
+	
+	private EncounterSnapshotCache snapshotCache;
+	
+	private static class TestInterceptor extends ReportInvalidationInterceptor {
+		
+		private Changes submitted;
+		
+		@Override
+		protected void submit(Changes changes) {
+			submitted = changes;
+		}
+		
+	}
+	
+	@Before
+	public void setup() {
+		EncounterType initial = new EncounterType(1);
+		EncounterType followUp = new EncounterType(2);
+		
+		PatientGrid obsGrid = new PatientGrid();
+		obsGrid.setUuid("obs-grid");
+		obsGrid.addColumn(new EncounterDatePatientGridColumn("date", initial));
+		obsGrid.addColumn(new ObsPatientGridColumn("weight", new Concept(10), initial));
+		
+		PatientGrid demographicsGrid = new PatientGrid();
+		demographicsGrid.setUuid("demographics-grid");
+		demographicsGrid.addColumn(new PatientGridColumn("name", ColumnDatatype.NAME));
+		demographicsGrid.addColumn(new AgeAtEncounterPatientGridColumn("age", followUp));
+		
+		PatientGrid otherGrid = new PatientGrid();
+		otherGrid.setUuid("other-grid");
+		otherGrid.addColumn(new EncounterDatePatientGridColumn("date", new EncounterType(3)));
+		
+		interceptor = new TestInterceptor();
+		snapshotCache = mock(EncounterSnapshotCache.class);
+		Whitebox.setInternalState(interceptor, "index",
+		    new GridDependencyIndex(asList(obsGrid, demographicsGrid, otherGrid)));
+		Whitebox.setInternalState(interceptor, "snapshotCache", snapshotCache);
+	}
+	
+	private static Transaction transaction(TransactionStatus status) {
+		Transaction tx = mock(Transaction.class);
+		when(tx.getStatus()).thenReturn(status);
+		return tx;
+	}
+	
+	private Encounter createEncounter(Integer encounterTypeId, Integer patientId) {
+		Encounter encounter = new Encounter();
+		encounter.setEncounterType(new EncounterType(encounterTypeId));
+		encounter.setPatient(new Patient(patientId));
+		return encounter;
+	}
+	
+	@Test
+	public void afterTransactionCompletion_shouldSubmitTheGridsAffectedBySavedEncountersAndObs() {
+		interceptor.onSave(createEncounter(1, 7), null, null, null, null);
+		Obs obs = new Obs();
+		obs.setConcept(new Concept(10));
+		obs.setPerson(new Person(8));
+		interceptor.onSave(obs, null, null, null, null);
+		
+		interceptor.afterTransactionCompletion(transaction(TransactionStatus.COMMITTED));
+		
+		assertEquals(new HashSet<>(asList("obs-grid")), interceptor.getAffectedGrids(interceptor.submitted));
+		assertEquals(new HashSet<>(asList(7, 8)), Whitebox.getInternalState(interceptor.submitted, "patientIds"));
+		verify(snapshotCache).invalidate(new HashSet<>(asList(1)));
+	}
+	
+	@Test
+	public void afterTransactionCompletion_shouldSubmitTheGridsAffectedBySavedPatientNames() {
+		PersonName name = new PersonName("John", null, "Doe");
+		name.setPerson(new Patient(7));
+		interceptor.onSave(name, null, null, null, null);
+		
+		interceptor.afterTransactionCompletion(transaction(TransactionStatus.COMMITTED));
+		
+		assertEquals(new HashSet<>(asList("demographics-grid")), interceptor.getAffectedGrids(interceptor.submitted));
+		verify(snapshotCache, never()).clear();
+	}
+	
+	@Test
+	public void afterTransactionCompletion_shouldDiscardTheChangesOfARolledBackTransaction() {
+		interceptor.onSave(createEncounter(1, 7), null, null, null, null);
+		
+		interceptor.afterTransactionCompletion(transaction(TransactionStatus.ROLLED_BACK));
+		
+		assertNull(interceptor.submitted);
+		verify(snapshotCache).invalidate(new HashSet<>(asList(1)));
+		interceptor.afterTransactionCompletion(transaction(TransactionStatus.COMMITTED));
+		assertNull(interceptor.submitted);
+	}
+	
+	@Test
+	public void afterTransactionCompletion_shouldRecordTheChangesOfTheNextTransactionAfterACommit() {
+		interceptor.onSave(createEncounter(1, 7), null, null, null, null);
+		interceptor.afterTransactionCompletion(transaction(TransactionStatus.COMMITTED));
+		
+		interceptor.onSave(createEncounter(2, 8), null, null, null, null);
+		interceptor.afterTransactionCompletion(transaction(TransactionStatus.COMMITTED));
+		
+		assertEquals(new HashSet<>(asList("demographics-grid")), interceptor.getAffectedGrids(interceptor.submitted));
+		assertEquals(new HashSet<>(asList(8)), Whitebox.getInternalState(interceptor.submitted, "patientIds"));
+	}
+	
+	@Test
+	public void afterTransactionCompletion_shouldIgnoreSavedPersonsThatAreNotPatients() {
+		Person person = new Person(3);
+		interceptor.onFlushDirty(person, null, new Object[] { true }, new Object[] { false }, VOIDED_PROPERTY, null);
+		PersonName name = new PersonName("Super", null, "User");
+		name.setPerson(person);
+		interceptor.onSave(name, null, null, null, null);
+		
+		interceptor.afterTransactionCompletion(transaction(TransactionStatus.COMMITTED));
+		
+		assertNull(interceptor.submitted);
+		verify(snapshotCache, never()).clear();
+	}
+	
+	@Test
+	public void afterTransactionCompletion_shouldAffectAllGridsWhenAPatientIsVoided() {
+		interceptor.onFlushDirty(new Patient(7), null, new Object[] { true }, new Object[] { false }, VOIDED_PROPERTY,
+		    null);
+		
+		interceptor.afterTransactionCompletion(transaction(TransactionStatus.COMMITTED));
+		
+		assertEquals(new HashSet<>(asList("obs-grid", "demographics-grid", "other-grid")),
+		    interceptor.getAffectedGrids(interceptor.submitted));
+		verify(snapshotCache).clear();
+	}
+	
+	@Test
+	public void afterTransactionCompletion_shouldAffectAllGridsWhenAPatientIsDeleted() {
+		interceptor.onDelete(new Patient(7), null, null, null, null);
+		
+		interceptor.afterTransactionCompletion(transaction(TransactionStatus.COMMITTED));
+		
+		assertEquals(3, interceptor.getAffectedGrids(interceptor.submitted).size());
+		verify(snapshotCache).clear();
+	}
+	
+	@Test
+	public void afterTransactionCompletion_shouldNotClearTheSnapshotsIfTheVoidedPropertyIsUnchanged() {
+		interceptor.onFlushDirty(new Patient(7), null, new Object[] { false }, new Object[] { false },
+		    VOIDED_PROPERTY, null);
+		
+		interceptor.afterTransactionCompletion(transaction(TransactionStatus.COMMITTED));
+		
+		assertEquals(new HashSet<>(asList("demographics-grid")), interceptor.getAffectedGrids(interceptor.submitted));
+		verify(snapshotCache, never()).clear();
+	}
+	
+}
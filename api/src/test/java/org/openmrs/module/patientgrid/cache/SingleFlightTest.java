@@ -0,0 +1,120 @@
+package org.openmrs.module.patientgrid.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class SingleFlightTest {
+	
+	private final SingleFlight<String, Object> singleFlight = new SingleFlight<>();
+	
+	private final ExecutorService executor = Executors.newFixedThreadPool(2);
+	
+	@After
+	public void clean() {
+		executor.shutdownNow();
+	}
+	
+	@Test
+	public void execute_shouldReturnTheResultOfTheInFlightComputationForTheSameKey() throws Exception {
+		final Object result = new Object();
+		final AtomicInteger count = new AtomicInteger();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		Future<Object> first = executor.submit(() -> singleFlight.execute("key", () -> {
+			count.incrementAndGet();
+			started.countDown();
+			await(release);
+			return result;
+		}));
+		started.await(5, TimeUnit.SECONDS);
+		Future<Object> second = executor.submit(() -> singleFlight.execute("key", () -> {
+			count.incrementAndGet();
+			return new Object();
+		}));
+		//give the second call time to join the in-flight computation
+		Thread.sleep(200);
+		release.countDown();
+		
+		assertSame(result, first.get(5, TimeUnit.SECONDS));
+		assertSame(result, second.get(5, TimeUnit.SECONDS));
+		assertEquals(1, count.get());
+		assertEquals(0, singleFlight.getInFlightCount());
+	}
+	
+	@Test
+	public void execute_shouldComputeTheValueAgainOnceTheInFlightComputationIsDone() {
+		final AtomicInteger count = new AtomicInteger();
+		
+		singleFlight.execute("key", count::incrementAndGet);
+		singleFlight.execute("key", count::incrementAndGet);
+		
+		assertEquals(2, count.get());
+	}
+	
+	@Test
+	public void execute_shouldNotCoalesceComputationsForDifferentKeys() throws Exception {
+		final CountDownLatch started = new CountDownLatch(2);
+		Future<Object> first = executor.submit(() -> singleFlight.execute("key1", () -> {
+			started.countDown();
+			await(started);
+			return "value1";
+		}));
+		Future<Object> second = executor.submit(() -> singleFlight.execute("key2", () -> {
+			started.countDown();
+			await(started);
+			return "value2";
+		}));
+		
+		assertEquals("value1", first.get(5, TimeUnit.SECONDS));
+		assertEquals("value2", second.get(5, TimeUnit.SECONDS));
+	}
+	
+	@Test
+	public void execute_shouldPropagateTheExceptionAndReleaseTheKey() {
+		try {
+			singleFlight.execute("key", () -> {
+				throw new IllegalStateException("failed");
+			});
+			fail("Expected an exception");
+		}
+		catch (IllegalStateException e) {
+			assertEquals("failed", e.getMessage());
+		}
+		
+		assertEquals("value", singleFlight.execute("key", () -> "value"));
+	}
+	
+	@Test
+	public void isInFlight_shouldReturnTrueOnlyWhileAComputationIsInProgressForTheKey() {
+		singleFlight.execute("key", () -> {
+			assertTrue(singleFlight.isInFlight("key"));
+			assertFalse(singleFlight.isInFlight("other"));
+			return null;
+		});
+		
+		assertFalse(singleFlight.isInFlight("key"));
+	}
+	
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+}
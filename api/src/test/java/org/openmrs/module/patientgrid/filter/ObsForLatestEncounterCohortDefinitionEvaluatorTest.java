@@ -2,15 +2,20 @@ package org.openmrs.module.patientgrid.filter;
 
 import static java.util.Arrays.asList;
 
+import org.hibernate.SessionFactory;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.openmrs.Cohort;
 import org.openmrs.Concept;
 import org.openmrs.EncounterType;
 import org.openmrs.Patient;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.patientgrid.EvaluationContextPersistantCache;
+import org.openmrs.module.patientgrid.cache.EncounterSnapshotCache;
+import org.openmrs.module.patientgrid.filter.definition.LocationCohortDefinition;
 import org.openmrs.module.patientgrid.filter.definition.ObsForLatestEncounterCohortDefinition;
+import org.openmrs.module.patientgrid.filter.evaluator.ObsForLatestEncounterCohortDefinitionEvaluator;
 import org.openmrs.module.reporting.cohort.EvaluatedCohort;
 import org.openmrs.module.reporting.cohort.definition.service.CohortDefinitionService;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
@@ -21,6 +26,9 @@ public class ObsForLatestEncounterCohortDefinitionEvaluatorTest extends BaseModu
 	@Autowired
 	private CohortDefinitionService cohortDefService;
 	
+	@Autowired
+	private SessionFactory sf;
+	
 	@Before
 	public void setup() {
 		executeDataSet("entityBasisMaps.xml");
@@ -59,4 +67,115 @@ public class ObsForLatestEncounterCohortDefinitionEvaluatorTest extends BaseModu
 		Assert.assertNotNull(evaluatedCohort.getActiveMembership(new Patient(6)));
 	}
 	
+	@Test
+	public void evaluate_shouldOnlyMatchTheLatestEncountersAtTheSpecifiedLocations() throws Exception {
+		ObsForLatestEncounterCohortDefinition def = new ObsForLatestEncounterCohortDefinition();
+		def.setPropertyName("valueNumeric");
+		def.setConcept(new Concept(5089));
+		def.setEncounterType(new EncounterType(101));
+		def.setValues(asList(72.0, 84.0, 88.0));
+		LocationCohortDefinition locationDef = new LocationCohortDefinition();
+		locationDef.setLocations(asList(Context.getLocationService().getLocation(4001)));
+		def.setLocationCohortDefinition(locationDef);
+		
+		EvaluatedCohort evaluatedCohort = cohortDefService.evaluate(def, new EvaluationContextPersistantCache());
+		
+		Assert.assertEquals(1, evaluatedCohort.activeMembershipSize());
+		Assert.assertNotNull(evaluatedCohort.getActiveMembership(new Patient(6)));
+	}
+	
+	@Test
+	public void evaluate_shouldOnlyMatchThePatientsInTheBaseCohort() throws Exception {
+		ObsForLatestEncounterCohortDefinition def = new ObsForLatestEncounterCohortDefinition();
+		def.setPropertyName("valueNumeric");
+		def.setConcept(new Concept(5089));
+		def.setEncounterType(new EncounterType(101));
+		def.setValues(asList(72.0, 84.0, 88.0));
+		EvaluationContextPersistantCache context = new EvaluationContextPersistantCache();
+		context.setBaseCohort(new Cohort(asList(2, 7)));
+		
+		EvaluatedCohort evaluatedCohort = cohortDefService.evaluate(def, context);
+		
+		Assert.assertEquals(2, evaluatedCohort.activeMembershipSize());
+		Assert.assertNotNull(evaluatedCohort.getActiveMembership(new Patient(2)));
+		Assert.assertNotNull(evaluatedCohort.getActiveMembership(new Patient(7)));
+	}
+	
+	@Test
+	public void evaluate_shouldMatchTheObsOfTheLatestEncountersInChunks() throws Exception {
+		ObsForLatestEncounterCohortDefinition def = new ObsForLatestEncounterCohortDefinition();
+		def.setPropertyName("valueNumeric");
+		def.setConcept(new Concept(5089));
+		def.setEncounterType(new EncounterType(101));
+		def.setValues(asList(72.0, 84.0, 88.0));
+		
+		EvaluatedCohort evaluatedCohort = new ObsForLatestEncounterCohortDefinitionEvaluator(sf, 1, 1000).evaluate(def,
+		    new EvaluationContextPersistantCache());
+		
+		Assert.assertEquals(3, evaluatedCohort.activeMembershipSize());
+		Assert.assertNotNull(evaluatedCohort.getActiveMembership(new Patient(2)));
+		Assert.assertNotNull(evaluatedCohort.getActiveMembership(new Patient(6)));
+		Assert.assertNotNull(evaluatedCohort.getActiveMembership(new Patient(7)));
+	}
+	
+	@Test
+	public void evaluate_shouldMatchTheObsAgainstTheLatestEncounterSubquery() throws Exception {
+		ObsForLatestEncounterCohortDefinition def = new ObsForLatestEncounterCohortDefinition();
+		def.setPropertyName("valueCoded");
+		def.setConcept(new Concept(4));
+		def.setEncounterType(new EncounterType(101));
+		def.setValues(asList(Context.getConceptService().getConcept(5)));
+		LocationCohortDefinition locationDef = new LocationCohortDefinition();
+		locationDef.setLocations(asList(Context.getLocationService().getLocation(4000),
+		    Context.getLocationService().getLocation(4001), Context.getLocationService().getLocation(4002)));
+		def.setLocationCohortDefinition(locationDef);
+		
+		EncounterSnapshotCache.getInstance().clear();
+		
+		EvaluatedCohort evaluatedCohort = new ObsForLatestEncounterCohortDefinitionEvaluator(sf, 1, 1).evaluate(def,
+		    new EvaluationContextPersistantCache());
+		
+		Assert.assertEquals(2, evaluatedCohort.activeMembershipSize());
+		Assert.assertNotNull(evaluatedCohort.getActiveMembership(new Patient(2)));
+		Assert.assertNotNull(evaluatedCohort.getActiveMembership(new Patient(6)));
+		//The encounter ids are counted instead of being loaded
+		Assert.assertNull(EncounterSnapshotCache.getInstance().get(def.getEncounterType(), null, locationDef));
+	}
+	}
+	
+	@Test
+	public void evaluate_shouldLoadTheLatestEncountersOfTheBaseCohortInChunks() throws Exception {
+		ObsForLatestEncounterCohortDefinition def = new ObsForLatestEncounterCohortDefinition();
+		def.setPropertyName("valueNumeric");
+		def.setConcept(new Concept(5089));
+		def.setEncounterType(new EncounterType(101));
+		def.setValues(asList(72.0, 84.0, 88.0));
+		EvaluationContextPersistantCache context = new EvaluationContextPersistantCache();
+		context.setBaseCohort(new Cohort(asList(2, 7, 8)));
+		
+		EvaluatedCohort evaluatedCohort = new ObsForLatestEncounterCohortDefinitionEvaluator(sf, 1, 1000).evaluate(def,
+		    context);
+		
+		Assert.assertEquals(2, evaluatedCohort.activeMembershipSize());
+		Assert.assertNotNull(evaluatedCohort.getActiveMembership(new Patient(2)));
+		Assert.assertNotNull(evaluatedCohort.getActiveMembership(new Patient(7)));
+	}
+	
+	@Test
+	public void evaluate_shouldApplyALargeBaseCohortInMemoryWhenMatchingAgainstTheSubquery() throws Exception {
+		ObsForLatestEncounterCohortDefinition def = new ObsForLatestEncounterCohortDefinition();
+		def.setPropertyName("valueCoded");
+		def.setConcept(new Concept(4));
+		def.setEncounterType(new EncounterType(101));
+		def.setValues(asList(Context.getConceptService().getConcept(5)));
+		EvaluationContextPersistantCache context = new EvaluationContextPersistantCache();
+		context.setBaseCohort(new Cohort(asList(2, 7)));
+		
+		EvaluatedCohort evaluatedCohort = new ObsForLatestEncounterCohortDefinitionEvaluator(sf, 1, 1).evaluate(def,
+		    context);
+		
+		Assert.assertEquals(1, evaluatedCohort.activeMembershipSize());
+		Assert.assertNotNull(evaluatedCohort.getActiveMembership(new Patient(2)));
+	}
+	
 }
@@ -0,0 +1,205 @@
+package org.openmrs.module.patientgrid.filter;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+import static org.openmrs.module.patientgrid.PatientGridConstants.GP_FILTER_THREADS;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.openmrs.Cohort;
+import org.openmrs.User;
+import org.openmrs.api.APIException;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.patientgrid.EvaluationContextPersistantCache;
+import org.openmrs.module.patientgrid.PatientGridActivator;
+import org.openmrs.module.patientgrid.filter.definition.AgeRangeAtLatestEncounterCohortDefinition;
+import org.openmrs.module.reporting.cohort.EvaluatedCohort;
+import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.CompositionCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.GenderCohortDefinition;
+import org.openmrs.module.reporting.cohort.definition.service.CohortDefinitionService;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.EvaluationException;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Context.class, Daemon.class })
+@PowerMockIgnore("jdk.internal.reflect.*")
+public class ParallelCohortEvaluatorTest {
+	
+	private static final String SYSTEM_ID = "test-user";
+	
+	@Mock
+	private AdministrationService mockAdminService;
+	
+	@Mock
+	private CohortDefinitionService mockCohortDefinitionService;
+	
+	private final List<String> becomeUserCalls = new CopyOnWriteArrayList<>();
+	
+	private final List<Thread> daemonThreads = new CopyOnWriteArrayList<>();
+	
+	private final ParallelCohortEvaluator evaluator = new ParallelCohortEvaluator();
+	
+	@Before
+	public void setup() throws Exception {
+		PowerMockito.mockStatic(Context.class);
+		PowerMockito.mockStatic(Daemon.class);
+		User user = new User();
+		user.setSystemId(SYSTEM_ID);
+		when(Context.getAuthenticatedUser()).thenReturn(user);
+		when(Context.getAdministrationService()).thenReturn(mockAdminService);
+		when(Context.getService(CohortDefinitionService.class)).thenReturn(mockCohortDefinitionService);
+		when(mockAdminService.getGlobalProperty(GP_FILTER_THREADS)).thenReturn("4");
+		PowerMockito.doAnswer(invocation -> becomeUserCalls.add((String) invocation.getArguments()[0])).when(Context.class,
+		    "becomeUser", anyString());
+		when(Daemon.runInDaemonThread(any(Runnable.class), any(DaemonToken.class))).thenAnswer(invocation -> {
+			Thread thread = new Thread((Runnable) invocation.getArguments()[0]);
+			daemonThreads.add(thread);
+			thread.start();
+			return thread;
+		});
+		Whitebox.setInternalState(PatientGridActivator.class, "daemonToken", PowerMockito.mock(DaemonToken.class));
+	}
+	
+	@After
+	public void tearDown() {
+		evaluator.shutdown();
+		Whitebox.setInternalState(PatientGridActivator.class, "daemonToken", (DaemonToken) null);
+	}
+	
+	@Test
+	public void intersect_shouldReturnThePatientsContainedInAllTheCohorts() {
+		Cohort cohort1 = new Cohort(asList(1, 2, 3, 4));
+		Cohort cohort2 = new Cohort(asList(2, 3, 4, 5));
+		Cohort cohort3 = new Cohort(asList(3, 4, 6));
+		
+		Cohort cohort = ParallelCohortEvaluator.intersect(asList(cohort1, cohort2, cohort3));
+		
+		assertEquals(new HashSet<>(asList(3, 4)), cohort.getMemberIds());
+	}
+	
+	@Test
+	public void intersect_shouldReturnAnEmptyCohortIfACohortIsEmpty() {
+		Cohort cohort = ParallelCohortEvaluator.intersect(asList(new Cohort(asList(1, 2)), new Cohort()));
+		
+		assertTrue(cohort.isEmpty());
+		assertTrue(ParallelCohortEvaluator.intersect(Collections.emptyList()).isEmpty());
+	}
+	
+	@Test
+	public void isApplicable_shouldReturnFalseForASingleFilter() {
+		assertFalse(ParallelCohortEvaluator.getInstance().isApplicable(new GenderCohortDefinition()));
+	}
+	
+	@Test
+	public void invokeAll_shouldRunTheTasksInDaemonThreadsAsTheAuthenticatedUser() throws Exception {
+		List<Callable<Thread>> tasks = asList(Thread::currentThread, Thread::currentThread);
+		
+		List<Thread> threads = evaluator.invokeAll(tasks);
+		
+		assertEquals(2, threads.size());
+		assertEquals(2, daemonThreads.size());
+		assertTrue(daemonThreads.containsAll(threads));
+		assertNotEquals(threads.get(0), threads.get(1));
+		assertEquals(asList(SYSTEM_ID, SYSTEM_ID), becomeUserCalls);
+	}
+	
+	@Test
+	public void invokeAll_shouldRunTheTasksInTheCallingThreadIfConcurrencyIsDisabled() throws Exception {
+		when(mockAdminService.getGlobalProperty(GP_FILTER_THREADS)).thenReturn("1");
+		List<Callable<Thread>> tasks = asList(Thread::currentThread, Thread::currentThread);
+		
+		List<Thread> threads = evaluator.invokeAll(tasks);
+		
+		assertEquals(asList(Thread.currentThread(), Thread.currentThread()), threads);
+		assertTrue(daemonThreads.isEmpty());
+		assertTrue(becomeUserCalls.isEmpty());
+	}
+	
+	@Test
+	public void invokeAll_shouldRethrowTheEvaluationExceptionOfATask() {
+		EvaluationException error = new EvaluationException("test");
+		List<Callable<Object>> tasks = asList(() -> "ok", () -> {
+			throw error;
+		});
+		
+		try {
+			evaluator.invokeAll(tasks);
+			fail("An EvaluationException should have been thrown");
+		}
+		catch (EvaluationException e) {
+			assertSame(error, e);
+		}
+	}
+	
+	@Test
+	public void invokeAll_shouldThrowAnAPIExceptionIfATaskFails() throws Exception {
+		IllegalStateException error = new IllegalStateException("test");
+		List<Callable<Object>> tasks = asList(() -> "ok", () -> {
+			throw error;
+		});
+		
+		try {
+			evaluator.invokeAll(tasks);
+			fail("An APIException should have been thrown");
+		}
+		catch (APIException e) {
+			assertSame(error, e.getCause());
+		}
+	}
+	
+	@Test
+	public void getThreads_shouldReadTheGlobalPropertyEachTime() {
+		assertEquals(4, evaluator.getThreads());
+		
+		when(mockAdminService.getGlobalProperty(GP_FILTER_THREADS)).thenReturn("2");
+		
+		assertEquals(2, evaluator.getThreads());
+	}
+	
+	@Test
+	public void evaluate_shouldEvaluateAllTheFiltersIncludingTheAgeFiltersConcurrently() throws Exception {
+		GenderCohortDefinition genderDef = new GenderCohortDefinition();
+		AgeRangeAtLatestEncounterCohortDefinition ageDef = new AgeRangeAtLatestEncounterCohortDefinition();
+		CompositionCohortDefinition composition = new CompositionCohortDefinition();
+		composition.addSearch("gender", genderDef, null);
+		composition.addSearch("age", ageDef, null);
+		when(mockCohortDefinitionService.evaluate(any(CohortDefinition.class), any(EvaluationContext.class)))
+		        .thenAnswer(invocation -> {
+			        CohortDefinition def = (CohortDefinition) invocation.getArguments()[0];
+			        Cohort cohort = new Cohort(def == genderDef ? asList(1, 2, 3) : asList(2, 3, 4));
+			        return new EvaluatedCohort(cohort, def, (EvaluationContext) invocation.getArguments()[1]);
+		        });
+		
+		Cohort cohort = evaluator.evaluate(composition, new EvaluationContextPersistantCache());
+		
+		assertEquals(new HashSet<>(asList(2, 3)), cohort.getMemberIds());
+		assertEquals(2, daemonThreads.size());
+	}
+	
+}
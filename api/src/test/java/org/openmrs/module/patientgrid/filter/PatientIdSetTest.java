@@ -0,0 +1,43 @@
+package org.openmrs.module.patientgrid.filter;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+
+import org.junit.Test;
+import org.openmrs.Cohort;
+
+public class PatientIdSetTest {
+	
+	@Test
+	public void and_shouldKeepOnlyThePatientsInBothSets() {
+		PatientIdSet set = PatientIdSet.of(new Cohort(asList(1, 2, 3, 100000)));
+		
+		set.and(PatientIdSet.of(asList(2, 3, 4, 100000)));
+		
+		assertEquals(3, set.size());
+		assertTrue(set.contains(2));
+		assertTrue(set.contains(100000));
+		assertFalse(set.contains(1));
+		assertFalse(set.contains(4));
+	}
+	
+	@Test
+	public void toCohort_shouldReturnACohortOfThePatientsInTheSet() {
+		Cohort cohort = PatientIdSet.of(asList(7, 3, 5)).toCohort();
+		
+		assertEquals(new HashSet<>(asList(3, 5, 7)), cohort.getMemberIds());
+	}
+	
+	@Test
+	public void isEmpty_shouldReturnTrueForDisjointSets() {
+		PatientIdSet set = PatientIdSet.of(asList(1, 2));
+		
+		assertTrue(set.and(PatientIdSet.of(asList(3))).isEmpty());
+		assertFalse(set.contains(-1));
+	}
+	
+}
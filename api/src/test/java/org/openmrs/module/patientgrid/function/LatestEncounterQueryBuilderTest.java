@@ -0,0 +1,41 @@
+package org.openmrs.module.patientgrid.function;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatestEncounterQueryBuilderTest {
+	
+	@Test
+	public void supportsWindowFunctions_shouldReturnTrueOnlyForDatabaseVersionsSupportingThem() {
+		assertTrue(LatestEncounterQueryBuilder.supportsWindowFunctions("MySQL", "8.0.33", 8, 0));
+		assertFalse(LatestEncounterQueryBuilder.supportsWindowFunctions("MySQL", "5.7.42", 5, 7));
+		assertTrue(LatestEncounterQueryBuilder.supportsWindowFunctions("MySQL", "5.5.5-10.6.12-MariaDB", 5, 5));
+		assertFalse(LatestEncounterQueryBuilder.supportsWindowFunctions("MySQL", "5.5.5-10.1.48-MariaDB", 5, 5));
+		assertTrue(LatestEncounterQueryBuilder.supportsWindowFunctions("MariaDB", "10.2.44", 10, 2));
+		assertTrue(LatestEncounterQueryBuilder.supportsWindowFunctions("PostgreSQL", "14.8", 14, 8));
+		assertTrue(LatestEncounterQueryBuilder.supportsWindowFunctions("H2", "2.1.214 (2022-06-13)", 2, 1));
+		assertFalse(LatestEncounterQueryBuilder.supportsWindowFunctions("H2", "1.4.200 (2019-10-14)", 1, 4));
+		assertFalse(LatestEncounterQueryBuilder.supportsWindowFunctions("Other", "1.0", 1, 0));
+	}
+	
+	@Test
+	public void build_shouldRankTheEncountersPerPatientIfWindowFunctionsAreSupported() {
+		String query = new LatestEncounterQueryBuilder(true).build(" AND e.location_id IN (:locationIds)");
+		
+		assertTrue(query.contains("ROW_NUMBER() OVER (PARTITION BY e.patient_id ORDER BY e.encounter_datetime DESC, "
+		        + "e.encounter_id DESC)"));
+		assertTrue(query.contains("AND e.location_id IN (:locationIds)"));
+		assertFalse(query.contains("max(e.encounter_datetime)"));
+	}
+	
+	@Test
+	public void build_shouldJoinTheLatestDatesIfWindowFunctionsAreNotSupported() {
+		String query = new LatestEncounterQueryBuilder(false).build("");
+		
+		assertTrue(query.contains("max(e.encounter_datetime)"));
+		assertFalse(query.contains("ROW_NUMBER()"));
+	}
+	
+}
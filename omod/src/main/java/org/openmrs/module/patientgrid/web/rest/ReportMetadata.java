@@ -24,12 +24,18 @@ public class ReportMetadata {
 	 */
 	private String periodOperand;
 	
+	/**
+	 * true if the report is obsolete and is being recomputed in the background
+	 */
+	private boolean stale;
+	
 	public ReportMetadata(ExtendedDataSet extendedDataSet) {
 		if (extendedDataSet != null) {
 			truncated = extendedDataSet.isTruncated();
 			rowsCountLimit = extendedDataSet.getRowsCountLimit();
 			initialRowsCount = extendedDataSet.getInitialRowsCount();
 			periodOperand = extendedDataSet.getPeriodOperand();
+			stale = extendedDataSet.isStale();
 		}
 	}
 	
@@ -61,4 +67,11 @@ public class ReportMetadata {
 		return periodOperand;
 	}
 	
+	/**
+	 * @return true if the report is obsolete and is being recomputed in the background
+	 */
+	public boolean isStale() {
+		return stale;
+	}
+	
 }
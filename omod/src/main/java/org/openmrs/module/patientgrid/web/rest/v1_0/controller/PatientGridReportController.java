@@ -1,11 +1,36 @@
 package org.openmrs.module.patientgrid.web.rest.v1_0.controller;
 
+import static org.openmrs.module.patientgrid.PatientGridConstants.CACHE_KEY_SEPARATOR;
+import static org.openmrs.module.patientgrid.PatientGridConstants.CACHE_MANAGER_NAME;
+import static org.openmrs.module.patientgrid.PatientGridConstants.CACHE_NAME_GRID_REPORTS;
+import static org.openmrs.module.patientgrid.PatientGridConstants.CACHE_REPRESENTATION_GZIP;
+import static org.openmrs.module.patientgrid.PatientGridConstants.CACHE_REPRESENTATION_JSON;
+import static org.openmrs.module.patientgrid.PatientGridConstants.GP_CACHE_REPRESENTATION;
+import static org.openmrs.module.patientgrid.PatientGridConstants.PRIV_MANAGE_PATIENT_GRIDS;
 import static org.openmrs.module.patientgrid.web.rest.v1_0.PatientGridRestConstants.NAMESPACE;
 import static org.springframework.web.bind.annotation.RequestMethod.GET;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.patientgrid.cache.PatientGridCache;
 import org.openmrs.module.patientgrid.web.rest.PatientGridReport;
 import org.openmrs.module.webservices.rest.SimpleObject;
 import org.openmrs.module.webservices.rest.web.RequestContext;
@@ -15,40 +40,224 @@ import org.openmrs.module.webservices.rest.web.resource.api.SubResource;
 import org.openmrs.module.webservices.rest.web.response.ResponseException;
 import org.openmrs.module.webservices.rest.web.v1_0.controller.BaseRestController;
 import org.openmrs.module.webservices.rest.web.v1_0.controller.BaseUriSetup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.cache.CacheManager;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerAdapter;
 
 @Controller
 public class PatientGridReportController extends BaseRestController {
 	
+	private static final Logger log = LoggerFactory.getLogger(PatientGridReportController.class);
+	
+	private static final String CONTENT_TYPE_JSON = "application/json;charset=UTF-8";
+	
+	private static final String ENCODING_GZIP = "gzip";
+	
 	@Autowired
 	private RestService restService;
 	
 	@Autowired
 	private BaseUriSetup baseUriSetup;
 	
+	@Autowired
+	@Qualifier(CACHE_MANAGER_NAME)
+	private CacheManager cacheManager;
+	
+	@Autowired(required = false)
+	private List<RequestMappingHandlerAdapter> handlerAdapters;
+	
 	/**
+	 * When caching of representations is enabled via the
+	 * {@link org.openmrs.module.patientgrid.PatientGridConstants#GP_CACHE_REPRESENTATION} global
+	 * property, the JSON body of a cached report is written to disk next to the report the second
+	 * time it is requested and the following requests are served by streaming the file.
+	 *
 	 * @param patientGridUuid the uuid of the patient grid
 	 * @param request {@link HttpServletRequest} object
 	 * @param response {@link HttpServletResponse} object
-	 * @return SimpleObject
+	 * @return SimpleObject or null if the response body was streamed from the cached representation
 	 * @throws ResponseException
+	 * @throws IOException
 	 */
 	@RequestMapping(value = "/rest/" + NAMESPACE + "/patientgrid/{patientGridUuid}/report", method = GET)
 	@ResponseBody
 	public SimpleObject evaluate(@PathVariable("patientGridUuid") String patientGridUuid, HttpServletRequest request,
-	        HttpServletResponse response) throws ResponseException {
+	        HttpServletResponse response) throws ResponseException, IOException {
 		
 		baseUriSetup.setup(request);
 		
 		RequestContext context = RestUtil.getRequestContext(request, response);
 		
+		String mode = getRepresentationCacheMode();
+		User user = Context.getAuthenticatedUser();
+		if (mode == null || user == null || !Context.hasPrivilege(PRIV_MANAGE_PATIENT_GRIDS)
+		        || !request.getParameterMap().isEmpty() || !acceptsJson(request)) {
+			return getReport(patientGridUuid, context);
+		}
+		
+		boolean gzip = CACHE_REPRESENTATION_GZIP.equals(mode);
+		PatientGridCache cache = (PatientGridCache) cacheManager.getCache(CACHE_NAME_GRID_REPORTS);
+		String key = patientGridUuid + CACHE_KEY_SEPARATOR + user.getUuid();
+		String variant = getVariant(request);
+		File file = cache.getRepresentationFile(key, variant, gzip);
+		if (file != null && writeRepresentation(file, gzip, request, response)) {
+			return null;
+		}
+		
+		Object version = cache.getVersion(key);
+		SimpleObject report = getReport(patientGridUuid, context);
+		byte[] body = encode(report);
+		if (body != null) {
+			cache.putRepresentation(key, version, variant, gzip, body);
+		}
+		
+		return report;
+	}
+	
+	/**
+	 * Encodes the specified report as JSON with the message converter the response body is written
+	 * with so that a cached representation is identical to the body of an uncached response
+	 *
+	 * @param report the report to encode
+	 * @return the encoded report or null if no message converter can write it as JSON
+	 * @throws IOException
+	 */
+	private byte[] encode(SimpleObject report) throws IOException {
+		if (handlerAdapters != null) {
+			for (RequestMappingHandlerAdapter adapter : handlerAdapters) {
+				for (HttpMessageConverter<?> converter : adapter.getMessageConverters()) {
+					if (converter.canWrite(SimpleObject.class, MediaType.APPLICATION_JSON)) {
+						ByteArrayOutputStream out = new ByteArrayOutputStream();
+						((HttpMessageConverter<Object>) converter).write(report, MediaType.APPLICATION_JSON,
+						    new ByteArrayOutputMessage(out));
+						return out.toByteArray();
+					}
+				}
+			}
+		}
+		
+		log.debug("No message converter found to encode grid reports as JSON, not caching the representation");
+		return null;
+	}
+	
+	private SimpleObject getReport(String patientGridUuid, RequestContext context) {
 		SubResource resource = (SubResource) restService.getResourceBySupportedClass(PatientGridReport.class);
 		
 		return resource.getAll(patientGridUuid, context);
 	}
 	
+	/**
+	 * @return the representation cache mode i.e. json or gzip, null if representations are not cached
+	 */
+	private String getRepresentationCacheMode() {
+		String mode = Context.getAdministrationService().getGlobalProperty(GP_CACHE_REPRESENTATION);
+		if (StringUtils.isBlank(mode) || "none".equalsIgnoreCase(mode.trim())) {
+			return null;
+		}
+		
+		mode = mode.trim().toLowerCase();
+		if (!CACHE_REPRESENTATION_JSON.equals(mode) && !CACHE_REPRESENTATION_GZIP.equals(mode)) {
+			log.warn("The representation cache mode '{}' defined in the global property '{}' is not supported", mode,
+			    GP_CACHE_REPRESENTATION);
+			return null;
+		}
+		
+		return mode;
+	}
+	
+	private boolean acceptsJson(HttpServletRequest request) {
+		String accept = request.getHeader("Accept");
+		return StringUtils.isBlank(accept) || accept.contains("*/*") || accept.contains("application/json");
+	}
+	
+	/**
+	 * The links in a representation contain the base URI of the request, a representation is cached
+	 * for each base URI it is requested with
+	 */
+	private String getVariant(HttpServletRequest request) {
+		String baseUri = request.getScheme() + "://" + request.getServerName() + ":" + request.getServerPort()
+		        + request.getContextPath();
+		return Integer.toHexString(baseUri.hashCode());
+	}
+	
+	/**
+	 * Streams the specified representation file to the response, the file is transferred as is if it is
+	 * not compressed or if the client accepts gzip otherwise it is decompressed on the fly
+	 *
+	 * @return false if the file was deleted in the meantime and nothing was written
+	 */
+	private boolean writeRepresentation(File file, boolean gzip, HttpServletRequest request,
+	        HttpServletResponse response) throws IOException {
+		boolean acceptsGzip = StringUtils.contains(request.getHeader("Accept-Encoding"), ENCODING_GZIP);
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		}
+		catch (NoSuchFileException e) {
+			log.debug("Representation file {} was deleted, building the representation", file);
+			return false;
+		}
+		
+		try {
+			response.setContentType(CONTENT_TYPE_JSON);
+			response.setHeader("Vary", "Accept-Encoding");
+			if (gzip && !acceptsGzip) {
+				try (InputStream in = new GZIPInputStream(Channels.newInputStream(channel))) {
+					IOUtils.copy(in, response.getOutputStream());
+				}
+			} else {
+				if (gzip) {
+					response.setHeader("Content-Encoding", ENCODING_GZIP);
+				}
+				long size = channel.size();
+				response.setHeader("Content-Length", String.valueOf(size));
+				OutputStream out = response.getOutputStream();
+				WritableByteChannel target = Channels.newChannel(out);
+				long position = 0;
+				while (position < size) {
+					position += channel.transferTo(position, size - position, target);
+				}
+			}
+		}
+		finally {
+			channel.close();
+		}
+		
+		response.flushBuffer();
+		return true;
+	}
+	
+	private static class ByteArrayOutputMessage implements HttpOutputMessage {
+		
+		private final HttpHeaders headers = new HttpHeaders();
+		
+		private final ByteArrayOutputStream body;
+		
+		private ByteArrayOutputMessage(ByteArrayOutputStream body) {
+			this.body = body;
+		}
+		
+		@Override
+		public OutputStream getBody() {
+			return body;
+		}
+		
+		@Override
+		public HttpHeaders getHeaders() {
+			return headers;
+		}
+		
+	}
+	
 }
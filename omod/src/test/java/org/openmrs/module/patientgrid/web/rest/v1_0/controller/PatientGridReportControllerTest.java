@@ -12,12 +12,16 @@ import org.openmrs.module.webservices.rest.web.response.ResourceDoesNotSupportOp
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.cache.CacheManager;
+import org.springframework.mock.web.MockHttpServletResponse;
 
 import java.util.List;
 import java.util.Map;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.openmrs.module.patientgrid.PatientGridConstants.*;
 import static org.openmrs.module.patientgrid.web.rest.v1_0.PatientGridRestConstants.PARAM_REFRESH;
 
@@ -54,8 +58,9 @@ public class PatientGridReportControllerTest extends BasePatientGridRestControll
 		Map report = (Map) ((List) Util.getByPath(result, "results")).get(0);
 		assertEquals(GRID_UUID, Util.getByPath(report, new String[] { "patientGrid", "uuid" }));
 		assertEquals(3, ((List) Util.getByPath(report, "report")).size());
-		assertEquals(4, ((Map) Util.getByPath(report, "reportMetadata")).size());
+		assertEquals(5, ((Map) Util.getByPath(report, "reportMetadata")).size());
 		assertEquals(false, Util.getByPath(report, new String[] { "reportMetadata", "truncated" }));
+		assertEquals(false, Util.getByPath(report, new String[] { "reportMetadata", "stale" }));
 	}
 	
 	@Test
@@ -72,6 +77,22 @@ public class PatientGridReportControllerTest extends BasePatientGridRestControll
 		assertNotEquals(cachedDataSet.getRows().size(), ((List) Util.getByPath(report, "report")).size());
 	}
 	
+	@Test
+	public void shouldStreamTheCachedRepresentationOfACachedReport() throws Exception {
+		Context.getAdministrationService().setGlobalProperty(GP_CACHE_REPRESENTATION, CACHE_REPRESENTATION_JSON);
+		//The first request caches the report and the second one its representation
+		SimpleObject expected = deserialize(handle(newGetRequest(getURI())));
+		MockHttpServletResponse response = handle(newGetRequest(getURI()));
+		assertNull(response.getHeader("Content-Length"));
+		assertEquals(expected, deserialize(response));
+		byte[] uncachedBody = response.getContentAsByteArray();
+		
+		response = handle(newGetRequest(getURI()));
+		
+		assertNotNull(response.getHeader("Content-Length"));
+		assertArrayEquals(uncachedBody, response.getContentAsByteArray());
+	}
+	
 	@Override
 	@Test(expected = ResourceDoesNotSupportOperationException.class)
 	public void shouldGetDefaultByUuid() throws Exception {